@@ -0,0 +1,82 @@
+package jenkins.plugins.hipchat.benchmark;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.hipchat.HipChatNotifier;
+import jenkins.plugins.hipchat.Messages;
+import jenkins.plugins.hipchat.impl.DefaultCardProvider;
+import jenkins.plugins.hipchat.model.notifications.Card;
+import jenkins.plugins.hipchat.template.CompiledTemplate;
+import org.apache.commons.io.output.NullOutputStream;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the parts of a build notification that need a real build: the token macro expansion of the message
+ * templates, and the construction of the default card.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuildNotificationBenchmark {
+
+    @Param({"started", "completed"})
+    public String templateType;
+
+    private final JenkinsInstance jenkins = new JenkinsInstance();
+    private final TaskListener listener = new StreamTaskListener(new NullOutputStream());
+    private final DefaultCardProvider cardProvider = new DefaultCardProvider();
+    private FreeStyleBuild build;
+    private String template;
+    private CompiledTemplate compiledTemplate;
+
+    @Setup
+    public void setUp() throws Exception {
+        JenkinsRule rule = jenkins.start();
+        FreeStyleProject project = rule.createFreeStyleProject("example-job");
+        build = rule.buildAndAssertSuccess(project);
+        template = HipChatNotifier.migrateMessageTemplate(
+                "started".equals(templateType) ? Messages.JobStarted() : Messages.JobCompleted());
+        compiledTemplate = CompiledTemplate.compile(template, TokenMacro.all());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        jenkins.stop();
+    }
+
+    @Benchmark
+    public String expandAll() throws Exception {
+        return TokenMacro.expandAll(build, null, listener, template, false, null);
+    }
+
+    @Benchmark
+    public String expandCompiled() throws Exception {
+        return compiledTemplate.expand(build, null, listener, Collections.singletonMap("STATUS", "Build successful"),
+                false);
+    }
+
+    @Benchmark
+    public Card getCard() {
+        return cardProvider.getCard(build, listener, null, template);
+    }
+}
@@ -0,0 +1,51 @@
+package jenkins.plugins.hipchat.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Runs a {@link JenkinsRule} outside of JUnit, so that benchmarks can use a real Jenkins instance. The rule is
+ * evaluated on a background thread that keeps the instance alive until {@link #stop()} is called.
+ */
+class JenkinsInstance {
+
+    private final JenkinsRule rule = new JenkinsRule();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile Throwable failure;
+    private Thread thread;
+
+    JenkinsRule start() throws Exception {
+        final Statement statement = rule.apply(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                started.countDown();
+                stopped.await();
+            }
+        }, Description.createTestDescription(JenkinsInstance.class, "benchmark"));
+        thread = new Thread("Benchmark Jenkins instance") {
+            @Override
+            public void run() {
+                try {
+                    statement.evaluate();
+                } catch (Throwable t) {
+                    failure = t;
+                    started.countDown();
+                }
+            }
+        };
+        thread.start();
+        if (!started.await(5, TimeUnit.MINUTES) || failure != null) {
+            throw new IllegalStateException("Unable to start Jenkins", failure);
+        }
+        return rule;
+    }
+
+    void stop() throws InterruptedException {
+        stopped.countDown();
+        thread.join(TimeUnit.MINUTES.toMillis(1));
+    }
+}
@@ -0,0 +1,49 @@
+package jenkins.plugins.hipchat.benchmark;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.hipchat.HipChatNotifier;
+import jenkins.plugins.hipchat.template.CompiledTemplate;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the migration of legacy message templates and their compilation, which are performed once for every
+ * distinct template.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTemplateBenchmark {
+
+    @Param({
+        "$JOB_NAME #$BUILD_NUMBER $STATUS ($HIPCHAT_CHANGES_OR_CAUSE) (<a href=\"$BUILD_URL\">View build</a>)",
+        "$JOB_NAME #$BUILD_NUMBER $STATUS after $BUILD_DURATION (<a href=\"$BUILD_URL\">View build</a>)",
+        "$JOB_NAME #$BUILD_NUMBER $STATUS after $DURATION (<a href=\"$URL\">Open</a>) $CHANGES_OR_CAUSE",
+        "Deployment finished without any macros"
+    })
+    public String template;
+
+    @Benchmark
+    public String migrateMessageTemplate() {
+        return HipChatNotifier.migrateMessageTemplate(template);
+    }
+
+    @Benchmark
+    public CompiledTemplate compile() {
+        return CompiledTemplate.compile(HipChatNotifier.migrateMessageTemplate(template),
+                Collections.<TokenMacro>emptyList());
+    }
+}
@@ -0,0 +1,77 @@
+package jenkins.plugins.hipchat.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.hipchat.model.Constants;
+import jenkins.plugins.hipchat.model.notifications.Activity;
+import jenkins.plugins.hipchat.model.notifications.Attribute;
+import jenkins.plugins.hipchat.model.notifications.Card;
+import jenkins.plugins.hipchat.model.notifications.Icon;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import jenkins.plugins.hipchat.model.notifications.Notification.Color;
+import jenkins.plugins.hipchat.model.notifications.Notification.MessageFormat;
+import jenkins.plugins.hipchat.model.notifications.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the JSON serialization of a v2 notification carrying a fully populated card.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationSerializationBenchmark {
+
+    private final ObjectWriter writer = new ObjectMapper().writerWithView(Notification.class);
+    private Notification notification;
+
+    @Setup
+    public void setUp() {
+        String message = "example-job #42 Build successful after 3 min 12 sec "
+                + "(<a href=\"https://jenkins.example.com/job/example-job/42/\">View build</a>)";
+        Icon icon = new Icon().withUrl(Constants.DEFAULT_ICON_URL);
+        List<Attribute> attributes = new ArrayList<>();
+        attributes.add(attribute("Tests Successful", "1234", Value.Style.LOZENGE_SUCCESS));
+        attributes.add(attribute("Tests Failed", "0", Value.Style.LOZENGE_SUCCESS));
+        attributes.add(attribute("Tests Skipped", "12", Value.Style.LOZENGE_CURRENT));
+        notification = new Notification()
+                .withMessage(message)
+                .withMessageFormat(MessageFormat.HTML)
+                .withColor(Color.GREEN)
+                .withNotify(true)
+                .withCard(new Card()
+                        .withStyle(Card.Style.APPLICATION)
+                        .withUrl("https://jenkins.example.com/job/example-job/42/")
+                        .withFormat(Card.Format.MEDIUM)
+                        .withId(UUID.randomUUID().toString())
+                        .withTitle("example-job")
+                        .withIcon(icon)
+                        .withAttributes(attributes)
+                        .withActivity(new Activity().withHtml(message).withIcon(icon)));
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return writer.writeValueAsBytes(notification);
+    }
+
+    private static Attribute attribute(String label, String value, Value.Style style) {
+        return new Attribute().withLabel(label).withValue(new Value().withLabel(value).withStyle(style));
+    }
+}
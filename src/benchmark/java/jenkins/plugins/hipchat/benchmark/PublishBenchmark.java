@@ -0,0 +1,81 @@
+package jenkins.plugins.hipchat.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.hipchat.HipChatTransport;
+import jenkins.plugins.hipchat.exceptions.NotificationException;
+import jenkins.plugins.hipchat.impl.AsyncHipChatTransport;
+import jenkins.plugins.hipchat.impl.BlockingHipChatTransport;
+import jenkins.plugins.hipchat.impl.HipChatV2Service;
+import jenkins.plugins.hipchat.impl.PooledHipChatTransport;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import jenkins.plugins.hipchat.model.notifications.Notification.Color;
+import jenkins.plugins.hipchat.stub.HipChatStubServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the end-to-end publication of a v2 notification against a local stub server, using each of the available
+ * transports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishBenchmark {
+
+    @Param({"async", "pooled", "blocking"})
+    public String transport;
+
+    @Param({"1", "5"})
+    public int rooms;
+
+    private HipChatStubServer stub;
+    private HipChatV2Service service;
+
+    @Setup
+    public void setUp() throws Exception {
+        // The stub reports a practically unlimited rate limit, so that the requests are not paced
+        stub = HipChatStubServer.start().withRateLimit(Integer.MAX_VALUE);
+        StringBuilder roomIds = new StringBuilder("room0");
+        for (int i = 1; i < rooms; i++) {
+            roomIds.append(",room").append(i);
+        }
+        service = new HipChatV2Service(stub.getServer(), "token", roomIds.toString());
+        service.setTransport(createTransport());
+    }
+
+    @TearDown
+    public void tearDown() {
+        stub.close();
+    }
+
+    @Benchmark
+    public void publish() throws NotificationException {
+        service.publish(new Notification()
+                .withMessage("example-job #42 Build successful after 3 min 12 sec")
+                .withColor(Color.GREEN));
+    }
+
+    private HipChatTransport createTransport() {
+        switch (transport) {
+            case "pooled":
+                return new PooledHipChatTransport();
+            case "blocking":
+                return new BlockingHipChatTransport();
+            default:
+                return new AsyncHipChatTransport();
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package jenkins.plugins.hipchat;
 
+import hudson.ExtensionList;
+import hudson.ExtensionListListener;
 import hudson.ExtensionPoint;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import jenkins.plugins.hipchat.impl.NoopCardProvider;
 import jenkins.plugins.hipchat.model.notifications.Attribute;
 import jenkins.plugins.hipchat.model.notifications.Card;
 import jenkins.plugins.hipchat.model.notifications.Icon;
@@ -16,6 +22,53 @@ import jenkins.plugins.hipchat.model.notifications.Value;
  */
 public abstract class CardProvider extends AbstractDescribableImpl<CardProvider> implements ExtensionPoint {
 
+    private static volatile CardProvider configured;
+
+    /**
+     * Returns the card provider selected in the global configuration. The provider is only looked up again after the
+     * configuration has been saved or the set of available card providers has changed.
+     *
+     * @return The configured card provider, or {@link NoopCardProvider#INSTANCE} if it is not available.
+     */
+    public static CardProvider getConfigured() {
+        CardProvider provider = configured;
+        return provider != null ? provider : resolveConfigured();
+    }
+
+    /**
+     * Discards the resolved card provider, so that the next notification looks it up again.
+     */
+    public static synchronized void resetConfigured() {
+        configured = null;
+    }
+
+    private static synchronized CardProvider resolveConfigured() {
+        if (configured == null) {
+            CardProvider provider = null;
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins != null) {
+                HipChatNotifier.DescriptorImpl descriptor =
+                        jenkins.getDescriptorByType(HipChatNotifier.DescriptorImpl.class);
+                if (descriptor != null) {
+                    provider = ExtensionList.lookup(CardProvider.class).getDynamic(descriptor.getCardProvider());
+                }
+            }
+            configured = provider != null ? provider : NoopCardProvider.INSTANCE;
+        }
+        return configured;
+    }
+
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static void resetOnExtensionChange() {
+        ExtensionList.lookup(CardProvider.class).addListener(new ExtensionListListener() {
+
+            @Override
+            public void onChange() {
+                resetConfigured();
+            }
+        });
+    }
+
     @Override
     public CardProviderDescriptor getDescriptor() {
         return (CardProviderDescriptor) super.getDescriptor();
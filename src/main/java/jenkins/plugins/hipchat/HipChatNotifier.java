@@ -31,18 +31,33 @@ import hudson.util.ListBoxModel.Option;
 import hudson.util.Secret;
 import hudson.util.VersionNumber;
 import jenkins.model.Jenkins;
+import jenkins.plugins.hipchat.delivery.NotificationDispatcher;
 import jenkins.plugins.hipchat.exceptions.NotificationException;
+import jenkins.plugins.hipchat.ext.httpclient.SharedHttpClients;
+import jenkins.plugins.hipchat.impl.AsyncHipChatTransport;
 import jenkins.plugins.hipchat.impl.DefaultCardProvider;
 import jenkins.plugins.hipchat.impl.HipChatV1Service;
 import jenkins.plugins.hipchat.impl.HipChatV2Service;
+import jenkins.plugins.hipchat.ledger.LedgerEntry;
+import jenkins.plugins.hipchat.ledger.NotificationLedgerAction;
+import jenkins.plugins.hipchat.metrics.HipChatMetrics;
+import jenkins.plugins.hipchat.model.HipChatTarget;
 import jenkins.plugins.hipchat.model.MatrixTriggerMode;
 import jenkins.plugins.hipchat.model.NotificationConfig;
 import jenkins.plugins.hipchat.model.NotificationType;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import jenkins.plugins.hipchat.model.notifications.Notification;
 import jenkins.plugins.hipchat.model.notifications.Notification.Color;
+import jenkins.plugins.hipchat.template.MacroMemo;
+import jenkins.plugins.hipchat.template.TemplateCache;
+import jenkins.plugins.hipchat.tracing.Span;
+import jenkins.plugins.hipchat.tracing.Tracer;
 import jenkins.plugins.hipchat.utils.BuildUtils;
 import jenkins.plugins.hipchat.utils.CredentialUtils;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.concurrent.FutureCallback;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -54,6 +69,7 @@ import org.kohsuke.stapler.interceptor.RequirePOST;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -314,25 +330,61 @@ public class HipChatNotifier extends Notifier implements MatrixAggregatable {
         if (notificationConfig != null) {
             logger.log(Level.FINE, "Notification config found for notification type {0}: {1}",
                     new Object[]{notificationType, notificationConfig.toString()});
-            String messageTemplate = Util.fixEmpty(notificationConfig.getMessageTemplate());
-            if (messageTemplate == null) {
-                if (notificationType.isStartType()) {
-                    messageTemplate = Util.fixEmpty(getStartJobMessage()) == null
-                            ? getDescriptor().getStartJobMessageDefault() : getStartJobMessage();
-                } else {
-                    messageTemplate = Util.fixEmpty(getCompleteJobMessage()) == null
-                            ? getDescriptor().getCompleteJobMessageDefault() : getCompleteJobMessage();
-                }
+            try (Span trace = Tracer.startTrace("notification " + notificationType)) {
+                publishNotification(notificationType, notificationConfig, build, listener);
             }
-            notificationConfig = notificationConfig.overrideMessageTemplate(migrateMessageTemplate(messageTemplate));
+        }
+    }
 
-            try {
-                getHipChatService(build).publish(notificationType.getNotification(notificationConfig, build, listener));
-                listener.getLogger().println(Messages.NotificationSuccessful(getResolvedRoom(build)));
-            } catch (NotificationException ne) {
-                listener.getLogger().println(Messages.NotificationFailed(ne.getMessage()));
+    private void publishNotification(NotificationType notificationType, NotificationConfig notificationConfig,
+            AbstractBuild<?, ?> build, BuildListener listener) {
+        String messageTemplate = Util.fixEmpty(notificationConfig.getMessageTemplate());
+        if (messageTemplate == null) {
+            if (notificationType.isStartType()) {
+                messageTemplate = Util.fixEmpty(getStartJobMessage()) == null
+                        ? getDescriptor().getStartJobMessageDefault() : getStartJobMessage();
+            } else {
+                messageTemplate = Util.fixEmpty(getCompleteJobMessage()) == null
+                        ? getDescriptor().getCompleteJobMessageDefault() : getCompleteJobMessage();
             }
         }
+        // Legacy macros are migrated when the template is compiled
+        notificationConfig = notificationConfig.overrideMessageTemplate(messageTemplate);
+
+        String room = getResolvedRoom(build);
+        LedgerEntry entry = NotificationLedgerAction.record(build, notificationType.name(), room);
+        try {
+            // Identifies the event, so that it is delivered at most once even if this build step is executed again
+            HipChatTarget target = getHipChatTarget(build)
+                    .withEventKey(build.getExternalizableId() + '/' + notificationType.name());
+            Notification notification;
+            try (MacroMemo memo = MacroMemo.open(build)) {
+                notification = notificationType.getNotification(notificationConfig, build, listener, target);
+            }
+            PublishReport report;
+            try (Span span = Tracer.startSpan("dispatch")) {
+                report = get(NotificationDispatcher.class).dispatch(target, notification,
+                        entry.track(new PublishCallback(build, notificationType, room))).get();
+            }
+            if (report.isSuccessful()) {
+                listener.getLogger().println(Messages.NotificationSuccessful(room));
+            } else {
+                for (RoomOutcome failure : report.getFailures()) {
+                    listener.getLogger().println(Messages.NotificationFailed(failure.getFailure().getMessage()));
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            listener.getLogger().println(Messages.NotificationFailed(ie.toString()));
+        } catch (ExecutionException ee) {
+            listener.getLogger().println(Messages.NotificationFailed(ee.getCause().getMessage()));
+        } catch (NotificationException ne) {
+            HipChatMetrics.get().recordNotification(notificationType, null);
+            entry.failed(ne.getMessage());
+            listener.getLogger().println(Messages.NotificationFailed(ne.getMessage()));
+        } finally {
+            entry.dispatched();
+        }
     }
 
     public static String migrateMessageTemplate(String oldMessageTemplate) {
@@ -350,14 +402,17 @@ public class HipChatNotifier extends Notifier implements MatrixAggregatable {
         return null;
     }
 
-    private HipChatService getHipChatService(AbstractBuild<?, ?> build) throws NotificationException {
+    private HipChatTarget getHipChatTarget(AbstractBuild<?, ?> build) throws NotificationException {
         DescriptorImpl desc = getDescriptor();
-        StringCredentials credentials = get(CredentialUtils.class).resolveCredential(build.getParent(),
-                Util.fixEmpty(credentialId) != null ? credentialId : desc.getCredentialId(), desc.getServer());
+        StringCredentials credentials;
+        try (Span span = Tracer.startSpan("resolveCredential")) {
+            credentials = get(CredentialUtils.class).resolveCredential(build.getParent(),
+                    Util.fixEmpty(credentialId) != null ? credentialId : desc.getCredentialId(), desc.getServer());
+        }
         if (credentials == null) {
             throw new NotificationException(Messages.CredentialMissing(credentialId));
         }
-        return getHipChatService(desc.getServer(), Secret.toString(credentials.getSecret()), desc.isV2Enabled(),
+        return new HipChatTarget(desc.getServer(), Secret.toString(credentials.getSecret()), desc.isV2Enabled(),
                 getResolvedRoom(build), desc.getSendAs());
     }
 
@@ -380,6 +435,50 @@ public class HipChatNotifier extends Notifier implements MatrixAggregatable {
         }
     }
 
+    /**
+     * Records the outcome of the build notifications in the metrics and the system log.
+     */
+    private static class PublishCallback implements FutureCallback<PublishReport> {
+
+        private final String buildName;
+        private final NotificationType notificationType;
+        private final String room;
+
+        private PublishCallback(AbstractBuild<?, ?> build, NotificationType notificationType, String room) {
+            this.buildName = build.getFullDisplayName();
+            this.notificationType = notificationType;
+            this.room = room;
+        }
+
+        @Override
+        public void completed(PublishReport report) {
+            HipChatMetrics.get().recordNotification(notificationType, report);
+            if (report.isSuccessful()) {
+                logger.log(Level.FINE, "HipChat {0} notification for {1} sent to the following rooms: {2}",
+                        new Object[]{notificationType, buildName, room});
+            } else {
+                for (RoomOutcome failure : report.getFailures()) {
+                    logger.log(Level.WARNING, "HipChat {0} notification for {1} to room {2} failed with error "
+                            + "message: {3}", new Object[]{notificationType, buildName, failure.getRoomId(),
+                                failure.getFailure().getMessage()});
+                }
+            }
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            HipChatMetrics.get().recordNotification(notificationType, null);
+            logger.log(Level.WARNING, "HipChat {0} notification for {1} failed with error message: {2}",
+                    new Object[]{notificationType, buildName, ex.getMessage()});
+        }
+
+        @Override
+        public void cancelled() {
+            logger.log(Level.FINE, "HipChat {0} notification for {1} was cancelled",
+                    new Object[]{notificationType, buildName});
+        }
+    }
+
     @Override
     public MatrixAggregator createAggregator(MatrixBuild build, Launcher launcher, BuildListener listener) {
         return new MatrixAggregator(build, launcher, listener) {
@@ -416,7 +515,11 @@ public class HipChatNotifier extends Notifier implements MatrixAggregatable {
         private String room;
         private String sendAs = "Jenkins";
         private String cardProvider = DefaultCardProvider.class.getName();
+        private String transport = AsyncHipChatTransport.class.getName();
         private List<NotificationConfig> defaultNotifications;
+        private int coalescingWindow = 0;
+        private int coalescingMaxSize = 25;
+        private int traceSamplePercentage = 0;
         private String configVersion;
         private static int testNotificationCount = 0;
 
@@ -488,6 +591,15 @@ public class HipChatNotifier extends Notifier implements MatrixAggregatable {
 
         public void setCardProvider(String cardProvider) {
             this.cardProvider = cardProvider;
+            CardProvider.resetConfigured();
+        }
+
+        public String getTransport() {
+            return transport;
+        }
+
+        public void setTransport(String transport) {
+            this.transport = transport;
         }
 
         public List<NotificationConfig> getDefaultNotifications() {
@@ -498,6 +610,42 @@ public class HipChatNotifier extends Notifier implements MatrixAggregatable {
             this.defaultNotifications = defaultNotifications;
         }
 
+        /**
+         * Returns the number of seconds build notifications sent to the same rooms are held back, so that they can be
+         * merged into a single message.
+         *
+         * @return The coalescing window in seconds, or 0 if coalescing is disabled.
+         */
+        public int getCoalescingWindow() {
+            return coalescingWindow;
+        }
+
+        public void setCoalescingWindow(int coalescingWindow) {
+            this.coalescingWindow = Math.max(0, coalescingWindow);
+        }
+
+        public int getCoalescingMaxSize() {
+            return coalescingMaxSize;
+        }
+
+        public void setCoalescingMaxSize(int coalescingMaxSize) {
+            this.coalescingMaxSize = Math.max(1, coalescingMaxSize);
+        }
+
+        /**
+         * Returns the percentage of the notifications whose trace is written to the log. Slow notifications are always
+         * logged regardless of this setting.
+         *
+         * @return The trace sampling percentage between 0 and 100.
+         */
+        public int getTraceSamplePercentage() {
+            return traceSamplePercentage;
+        }
+
+        public void setTraceSamplePercentage(int traceSamplePercentage) {
+            this.traceSamplePercentage = Math.max(0, Math.min(100, traceSamplePercentage));
+        }
+
         public String getConfigVersion() {
             return configVersion;
         }
@@ -526,7 +674,13 @@ public class HipChatNotifier extends Notifier implements MatrixAggregatable {
 
         @Override
         public boolean configure(StaplerRequest request, JSONObject formData) throws FormException {
+            String previousServer = server;
             request.bindJSON(this, formData);
+            if (!StringUtils.equals(previousServer, server)) {
+                SharedHttpClients.invalidate();
+            }
+            get(TemplateCache.class).invalidate();
+            CardProvider.resetConfigured();
 
             save();
             return super.configure(request, formData);
@@ -573,6 +727,18 @@ public class HipChatNotifier extends Notifier implements MatrixAggregatable {
             return new ListBoxModel(clazzNames);
         }
 
+        @RequirePOST
+        public ListBoxModel doFillTransportItems() {
+            Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+            ExtensionList<HipChatTransport> transports = ExtensionList.lookup(HipChatTransport.class);
+            List<Option> clazzNames = new ArrayList<>(transports.size());
+            for (HipChatTransport transport : transports) {
+                clazzNames.add(new Option(transport.getDescriptor().getDisplayName(), transport.getClass().getName(),
+                        transport.getClass().getName().equals(this.transport)));
+            }
+            return new ListBoxModel(clazzNames);
+        }
+
         @RequirePOST
         public ListBoxModel doFillCredentialIdItems(@AncestorInPath Item context, @QueryParameter String server) {
             // permission checks are implemented in CredentialUtils
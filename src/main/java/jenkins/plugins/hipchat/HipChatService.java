@@ -1,57 +1,220 @@
 package jenkins.plugins.hipchat;
 
-import hudson.ProxyConfiguration;
-import hudson.Util;
+import com.google.common.net.InetAddresses;
+import hudson.ExtensionList;
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import jenkins.plugins.hipchat.delivery.CircuitBreaker;
+import jenkins.plugins.hipchat.delivery.DeduplicationStore;
+import jenkins.plugins.hipchat.delivery.RateLimiter;
+import jenkins.plugins.hipchat.delivery.RetryBudget;
+import jenkins.plugins.hipchat.delivery.RetryPolicy;
+import jenkins.plugins.hipchat.exceptions.InvalidResponseCodeException;
 import jenkins.plugins.hipchat.exceptions.NotificationException;
-import jenkins.plugins.hipchat.ext.httpclient.ProxyRoutePlanner;
-import jenkins.plugins.hipchat.ext.httpclient.TLSSocketFactory;
+import jenkins.plugins.hipchat.ext.httpclient.SharedHttpClients;
+import jenkins.plugins.hipchat.impl.AsyncHipChatTransport;
+import jenkins.plugins.hipchat.metrics.HipChatMetrics;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import jenkins.plugins.hipchat.model.ServiceCapability;
 import jenkins.plugins.hipchat.model.notifications.Notification;
 import jenkins.plugins.hipchat.model.notifications.Notification.Color;
 import jenkins.plugins.hipchat.model.notifications.Notification.MessageFormat;
+import jenkins.plugins.hipchat.template.BoundedMessage;
+import jenkins.plugins.hipchat.tracing.Span;
+import jenkins.plugins.hipchat.tracing.Tracer;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpEntity;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.client.ProxyAuthenticationStrategy;
 import org.apache.http.util.EntityUtils;
 
 public abstract class HipChatService {
 
+    private static final Logger LOGGER = Logger.getLogger(HipChatService.class.getName());
+    private static final String[] DEFAULT_ROOMS = new String[0];
+    private static final String HTTPS_PREFIX = "https://";
+    private static final String HTTP_PREFIX = "http://";
     /**
-     * HTTP Connection timeout when making calls to HipChat.
+     * The maximum number of rooms a single notification is sent to concurrently.
      */
-    private static final Integer DEFAULT_TIMEOUT = 10000;
+    protected static final int MAX_PARALLEL_ROOMS = 10;
 
+    protected final String server;
+    protected final String token;
+    protected final String[] roomIds;
+    private HipChatTransport transport;
+    private DeduplicationStore deduplicationStore;
+    private String eventKey;
+
+    protected HipChatService(String server, String token, String roomIds) {
+        this.server = server;
+        this.token = token;
+        this.roomIds = roomIds == null ? DEFAULT_ROOMS : roomIds.split("\\s*,\\s*");
+    }
+
+    /**
+     * Returns the base URL of the HipChat server.
+     *
+     * @return The base URL, without a trailing slash.
+     * @see #getBaseUrl(String)
+     */
+    protected String getBaseUrl() {
+        return getBaseUrl(server);
+    }
+
+    /**
+     * Returns the base URL of a HipChat server. The server is normally configured as a host name, in which case HTTPS
+     * is used. Plain HTTP is only honored for loopback addresses (e.g. <code>http://127.0.0.1:8080</code>), so that
+     * auth tokens are never sent over the network unencrypted.
+     *
+     * @param server The HipChat server, optionally prefixed with a scheme.
+     * @return The base URL, without a trailing slash.
+     */
+    public static String getBaseUrl(String server) {
+        String host = StringUtils.removeEnd(server, "/");
+        if (host.startsWith(HTTPS_PREFIX)) {
+            return host;
+        }
+        if (host.startsWith(HTTP_PREFIX)) {
+            host = host.substring(HTTP_PREFIX.length());
+            if (isLoopback(host)) {
+                return HTTP_PREFIX + host;
+            }
+        }
+        return HTTPS_PREFIX + host;
+    }
+
+    private static boolean isLoopback(String host) {
+        String hostName;
+        try {
+            hostName = URI.create(HTTP_PREFIX + host).getHost();
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+        if (hostName == null) {
+            return false;
+        }
+        hostName = StringUtils.removeEnd(StringUtils.removeStart(hostName, "["), "]");
+        return "localhost".equalsIgnoreCase(hostName)
+                || (InetAddresses.isInetAddress(hostName) && InetAddresses.forString(hostName).isLoopbackAddress());
+    }
+
+    /**
+     * Overrides the globally configured transport for this service instance.
+     *
+     * @param transport The transport to send the requests with.
+     */
+    public void setTransport(HipChatTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Makes sure that the notifications sent by this service reach each room at most once. Rooms that have already
+     * received the event are skipped, and failed requests are only retried if they cannot have been delivered.
+     *
+     * @param deduplicationStore The store keeping track of the delivered notifications.
+     * @param eventKey The deterministic identifier of the event the notifications are sent for.
+     */
+    public void setDeduplication(DeduplicationStore deduplicationStore, String eventKey) {
+        this.deduplicationStore = deduplicationStore;
+        this.eventKey = eventKey;
+    }
+
+    /**
+     * Creates a new HTTP client configured with the Jenkins proxy settings.
+     *
+     * @return A new HTTP client, which has to be closed by the caller.
+     * @deprecated The requests are now sent by the {@link HipChatTransport} returned by {@link #getTransport()},
+     * subclasses should implement {@link #prepare(Notification)} instead of sending the requests themselves.
+     */
+    @Deprecated
     protected CloseableHttpClient getHttpClient() {
-        HttpClientBuilder httpClientBuilder = HttpClients.custom()
-                .setDefaultRequestConfig(
-                        RequestConfig.custom()
-                                .setConnectTimeout(DEFAULT_TIMEOUT).setSocketTimeout(DEFAULT_TIMEOUT).build())
-                .setSSLSocketFactory(new TLSSocketFactory());
-
-        if (Jenkins.getInstance() != null) {
-            ProxyConfiguration proxy = Jenkins.getInstance().proxy;
-
-            if (proxy != null) {
-                httpClientBuilder.setRoutePlanner(new ProxyRoutePlanner(proxy));
-                if (Util.fixEmpty(proxy.getUserName()) != null) {
-                    BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-                    credentialsProvider.setCredentials(new AuthScope(proxy.name, proxy.port),
-                            new UsernamePasswordCredentials(proxy.getUserName(), proxy.getPassword()));
-                    httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
-                    httpClientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
-                }
+        return SharedHttpClients.createUnpooled(HipChatTransport.DEFAULT_REQUEST_CONFIG);
+    }
+
+    /**
+     * Returns the transport that sends the HTTP requests to HipChat. Unless explicitly overridden, this is the
+     * transport selected in the global configuration.
+     *
+     * @return The transport to use.
+     */
+    protected HipChatTransport getTransport() {
+        if (transport == null) {
+            transport = getConfiguredTransport();
+        }
+        return transport;
+    }
+
+    private static HipChatTransport getConfiguredTransport() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins != null) {
+            HipChatNotifier.DescriptorImpl descriptor =
+                    jenkins.getDescriptorByType(HipChatNotifier.DescriptorImpl.class);
+            ExtensionList<HipChatTransport> transports = ExtensionList.lookup(HipChatTransport.class);
+            HipChatTransport transport = descriptor == null ? null : transports.getDynamic(descriptor.getTransport());
+            if (transport == null) {
+                transport = transports.get(AsyncHipChatTransport.class);
+            }
+            if (transport != null) {
+                return transport;
             }
         }
+        return new AsyncHipChatTransport();
+    }
+
+    /**
+     * Returns the parts of a notification this service is able to deliver. Notification parts that are not supported
+     * are ignored when the notification is sent, hence they do not need to be computed in the first place.
+     *
+     * @return The supported capabilities.
+     */
+    public abstract Set<ServiceCapability> getCapabilities();
 
-        return httpClientBuilder.build();
+    /**
+     * Returns the maximum number of characters HipChat accepts in a single message. Longer messages are truncated
+     * before they are sent.
+     *
+     * @return The maximum message length.
+     */
+    public abstract int getMaxMessageLength();
+
+    /**
+     * Returns the number of requests HipChat allows to be sent with a single auth token in a five minute window. This
+     * value is only used until the actual limit is reported by the server.
+     *
+     * @return The default rate limit.
+     */
+    protected int getDefaultRateLimit() {
+        return 500;
+    }
+
+    /**
+     * Returns the policy that decides which failed deliveries are retried.
+     *
+     * @return The retry policy to use.
+     */
+    protected RetryPolicy getRetryPolicy() {
+        return RetryPolicy.DEFAULT;
     }
 
     /**
@@ -80,7 +243,318 @@ public abstract class HipChatService {
                 .withMessageFormat(textFormat ? MessageFormat.TEXT : MessageFormat.HTML));
     }
 
-    public abstract void publish(Notification notification) throws NotificationException;
+    /**
+     * Publishes a notification to HipChat and waits until the notification has been delivered to all the rooms.
+     *
+     * @param notification The notification to send.
+     * @throws NotificationException If there was an error while publishing the notification to any of the rooms.
+     */
+    public void publish(Notification notification) throws NotificationException {
+        PublishReport report;
+        try {
+            report = publishAsync(notification, null).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new NotificationException(Messages.IOException(ie.toString()), ie);
+        } catch (ExecutionException ee) {
+            throw new NotificationException(Messages.IOException(ee.getCause().toString()), ee.getCause());
+        }
+        NotificationException failure = report.toException();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Publishes a notification to HipChat without blocking the calling thread. The requests are sent by the configured
+     * {@link HipChatTransport}, to at most {@link #MAX_PARALLEL_ROOMS} rooms
+     * concurrently. Requests are paced by the {@link RateLimiter} of the auth token, so that the requests are delayed
+     * rather than rejected by HipChat when the rate limit is about to be reached. Transient failures are retried
+     * according to the {@link RetryPolicy}, within the limits of the process-wide {@link RetryBudget}. While the
+     * {@link CircuitBreaker} of the server is open, the delivery fails immediately without sending any requests. A
+     * failure to deliver the notification to one room does not prevent the delivery to the others.
+     *
+     * @param notification The notification to send.
+     * @param callback The callback to invoke once the delivery has been attempted to all the rooms. May be null.
+     * @return The future representing the pending delivery of the notification. The future always completes with a
+     * report containing the outcome for each room.
+     */
+    public Future<PublishReport> publishAsync(Notification notification, FutureCallback<PublishReport> callback) {
+        BasicFuture<PublishReport> future = new BasicFuture<>(callback);
+        String message = notification.getMessage();
+        if (message != null && message.length() > getMaxMessageLength()) {
+            LOGGER.log(Level.INFO, "HipChat notification message was too long, truncating to maximum message length");
+            notification.setMessage(BoundedMessage.truncate(message, getMaxMessageLength(),
+                    notification.getMessageFormat() == MessageFormat.HTML));
+        }
+        Span span = Tracer.startDetachedSpan("publish " + server);
+        if (roomIds.length == 0) {
+            span.close();
+            future.completed(new PublishReport(Collections.<RoomOutcome>emptyList()));
+        } else {
+            RequestFactory requestFactory;
+            try (Span serialize = span.child("serialize")) {
+                requestFactory = prepare(notification);
+            } catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "Unable to encode HipChat notification", ioe);
+                List<RoomOutcome> outcomes = new ArrayList<>(roomIds.length);
+                for (String roomId : roomIds) {
+                    outcomes.add(new RoomOutcome(roomId, 0,
+                            new NotificationException(Messages.IOException(ioe.toString()), ioe)));
+                }
+                span.close();
+                future.completed(new PublishReport(outcomes));
+                return future;
+            }
+            FanOut fanOut = new FanOut(notification, requestFactory, future, span);
+            for (int i = 0; i < Math.min(roomIds.length, MAX_PARALLEL_ROOMS); i++) {
+                fanOut.publishToNextRoom();
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Encodes the notification, so that the same payload can be reused when creating the HTTP requests for each of the
+     * rooms. This method is invoked only once per published notification.
+     *
+     * @param notification The notification to send.
+     * @return The factory that creates the HTTP requests delivering the already encoded notification to a given room.
+     * @throws IOException If the notification could not be encoded.
+     */
+    protected abstract RequestFactory prepare(Notification notification) throws IOException;
+
+    /**
+     * Tells whether the response code returned by HipChat signals a successful delivery.
+     *
+     * @param responseCode The HTTP response code.
+     * @return <code>true</code> if the notification was delivered successfully.
+     */
+    protected abstract boolean isSuccessful(int responseCode);
+
+    /**
+     * Creates the HTTP requests that deliver an already encoded notification to individual rooms. The returned requests
+     * may share the same (repeatable) entity, hence the requests can be executed concurrently.
+     */
+    protected interface RequestFactory {
+
+        /**
+         * Creates the HTTP request that will deliver the notification to a single HipChat room.
+         *
+         * @param roomId The name or ID of the room to notify.
+         * @return The HTTP request to execute.
+         */
+        HttpUriRequest createRequest(String roomId);
+    }
+
+    /**
+     * Tracks the delivery of a single notification to all the configured rooms. Each completed delivery starts the
+     * delivery to the next pending room, so that the number of concurrent requests stays bounded.
+     */
+    private class FanOut {
+
+        private final Notification notification;
+        private final RequestFactory requestFactory;
+        private final BasicFuture<PublishReport> future;
+        private final RoomOutcome[] outcomes = new RoomOutcome[roomIds.length];
+        private final long[] roomStartNanos = new long[roomIds.length];
+        private final AtomicLongArray bytesSent = new AtomicLongArray(roomIds.length);
+        private final String[] idempotencyKeys = new String[roomIds.length];
+        private final AtomicInteger nextIndex = new AtomicInteger();
+        private final AtomicInteger remaining = new AtomicInteger(roomIds.length);
+        private final RateLimiter rateLimiter = RateLimiter.forToken(server, token, getDefaultRateLimit());
+        private final RetryPolicy retryPolicy = getRetryPolicy();
+        private final CircuitBreaker circuitBreaker = CircuitBreaker.forServer(server);
+        private final long deadline = System.currentTimeMillis() + retryPolicy.getDeadlineMillis();
+        private final long startNanos = System.nanoTime();
+        private final HipChatMetrics metrics = HipChatMetrics.get();
+        private final Span span;
+
+        private FanOut(Notification notification, RequestFactory requestFactory,
+                BasicFuture<PublishReport> future, Span span) {
+            this.notification = notification;
+            this.requestFactory = requestFactory;
+            this.future = future;
+            this.span = span;
+        }
+
+        private void publishToNextRoom() {
+            int index = nextIndex.getAndIncrement();
+            if (index >= roomIds.length) {
+                return;
+            }
+            roomStartNanos[index] = System.nanoTime();
+            if (eventKey != null) {
+                String key = DeduplicationStore.getKey(eventKey, server, roomIds[index]);
+                if (!deduplicationStore.tryAcquire(key)) {
+                    LOGGER.log(Level.FINE, "Not posting to {0} room, the notification has already been delivered",
+                            roomIds[index]);
+                    complete(index, RoomOutcome.duplicate(roomIds[index]));
+                    return;
+                }
+                idempotencyKeys[index] = key;
+            }
+            RetryBudget.get().recordRequest();
+            send(index, 1, 0);
+        }
+
+        private void send(final int index, final int attempt, long backoff) {
+            if (backoff > 0) {
+                Timer.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(index, attempt, 0);
+                    }
+                }, backoff, TimeUnit.MILLISECONDS);
+                return;
+            }
+            // The circuit breaker is asked first, so that rejected requests do not use up the rate limit
+            final long permit = circuitBreaker.tryAcquire();
+            if (permit == CircuitBreaker.REJECTED) {
+                LOGGER.log(Level.FINE, "Circuit breaker for {0} is open, not posting to {1} room",
+                        new Object[]{server, roomIds[index]});
+                metrics.recordRejection(server);
+                attempted(index, attempt, new RoomOutcome(roomIds[index], 0,
+                        new NotificationException(Messages.CircuitOpen(server)), attempt));
+                return;
+            }
+            long throttle = rateLimiter.reserve();
+            if (throttle > 0) {
+                LOGGER.log(Level.FINE, "Delaying HipChat notification by {0}ms to stay within the rate limit",
+                        throttle);
+                Timer.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        publishToRoom(index, attempt, permit);
+                    }
+                }, throttle, TimeUnit.MILLISECONDS);
+            } else {
+                publishToRoom(index, attempt, permit);
+            }
+        }
+
+        private void publishToRoom(final int index, final int attempt, final long permit) {
+            final String roomId = roomIds[index];
+            LOGGER.log(Level.FINE, "Posting to {0} room (attempt {1}): {2}",
+                    new Object[]{roomId, attempt, notification});
+            final Span roundTrip = span.child("POST " + roomId + " #" + attempt);
+            final long start = System.nanoTime();
+            metrics.requestStarted();
+            try {
+                HttpUriRequest request = requestFactory.createRequest(roomId);
+                if (roundTrip.getTraceId() != null) {
+                    request.setHeader(Tracer.TRACE_ID_HEADER, roundTrip.getTraceId());
+                }
+                if (request instanceof HttpEntityEnclosingRequest) {
+                    HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                    if (entity != null && entity.getContentLength() > 0) {
+                        bytesSent.addAndGet(index, entity.getContentLength());
+                    }
+                }
+                getTransport().execute(server, request,
+                        new FutureCallback<HttpResponse>() {
+
+                            @Override
+                            public void completed(HttpResponse httpResponse) {
+                                roundTrip.close();
+                                int responseCode = httpResponse.getStatusLine().getStatusCode();
+                                metrics.requestCompleted(server, roomId, responseCode, System.nanoTime() - start);
+                                circuitBreaker.record(permit, elapsedMillis(start), responseCode >= 500);
+                                rateLimiter.update(httpResponse);
+                                try {
+                                    // Always read response to ensure the inputstream is closed
+                                    String response = readResponse(httpResponse.getEntity());
+                                    if (isSuccessful(responseCode)) {
+                                        attempted(index, attempt, new RoomOutcome(roomId, responseCode, null,
+                                                attempt));
+                                    } else {
+                                        LOGGER.log(Level.WARNING, "HipChat post may have failed. ResponseCode: {0}, "
+                                                + "Response: {1}", new Object[]{responseCode, response});
+                                        attempted(index, attempt, new RoomOutcome(roomId, responseCode,
+                                                new InvalidResponseCodeException(responseCode), attempt));
+                                    }
+                                } catch (IOException ioe) {
+                                    attempted(index, attempt, ioFailure(roomId, ioe, attempt));
+                                }
+                            }
+
+                            @Override
+                            public void failed(Exception ex) {
+                                roundTrip.close();
+                                metrics.requestCompleted(server, roomId, 0, System.nanoTime() - start);
+                                circuitBreaker.record(permit, elapsedMillis(start), true);
+                                attempted(index, attempt, ioFailure(roomId, ex, attempt));
+                            }
+
+                            @Override
+                            public void cancelled() {
+                                roundTrip.close();
+                                metrics.requestCompleted(server, roomId, 0, System.nanoTime() - start);
+                                circuitBreaker.record(permit, elapsedMillis(start), false);
+                                attempted(index, attempt, new RoomOutcome(roomId, 0,
+                                        new NotificationException(Messages.IOException("cancelled")), attempt));
+                            }
+                        });
+            } catch (RuntimeException ex) {
+                roundTrip.close();
+                metrics.requestCompleted(server, roomId, 0, System.nanoTime() - start);
+                circuitBreaker.record(permit, elapsedMillis(start), true);
+                attempted(index, attempt, ioFailure(roomId, ex, attempt));
+            }
+        }
+
+        private long elapsedMillis(long start) {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+
+        /**
+         * Schedules another attempt if the delivery has failed with a transient error, there is still time left before
+         * the deadline, and the process-wide retry budget has not been exhausted. Otherwise the outcome is final.
+         */
+        private void attempted(int index, int attempt, RoomOutcome outcome) {
+            // Deduplicated notifications are only retried if the failed attempt cannot have been delivered
+            if (attempt < retryPolicy.getMaxAttempts() && retryPolicy.isRetryable(outcome)
+                    && (idempotencyKeys[index] == null || retryPolicy.isSafeToRetry(outcome))) {
+                long backoff = retryPolicy.getDelay(attempt + 1);
+                if (System.currentTimeMillis() + backoff >= deadline) {
+                    LOGGER.log(Level.FINE, "Not retrying HipChat notification to {0}, deadline reached",
+                            outcome.getRoomId());
+                } else if (!RetryBudget.get().tryRetry()) {
+                    LOGGER.log(Level.FINE, "Not retrying HipChat notification to {0}, retry budget exhausted",
+                            outcome.getRoomId());
+                } else {
+                    LOGGER.log(Level.FINE, "Retrying HipChat notification to {0} in {1}ms",
+                            new Object[]{outcome.getRoomId(), backoff});
+                    metrics.recordRetry(server);
+                    send(index, attempt + 1, backoff);
+                    return;
+                }
+            }
+            complete(index, outcome);
+        }
+
+        private RoomOutcome ioFailure(String roomId, Exception ex, int attempt) {
+            LOGGER.log(Level.WARNING, "An IO error occurred while posting HipChat notification", ex);
+            return new RoomOutcome(roomId, 0, new NotificationException(Messages.IOException(ex.toString()), ex),
+                    attempt);
+        }
+
+        private void complete(int index, RoomOutcome outcome) {
+            if (idempotencyKeys[index] != null) {
+                deduplicationStore.release(idempotencyKeys[index], outcome.isSuccessful());
+            }
+            outcomes[index] = new RoomOutcome(outcome.getRoomId(), outcome.getResponseCode(), outcome.getFailure(),
+                    outcome.getAttempts(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roomStartNanos[index]),
+                    bytesSent.get(index));
+            if (remaining.decrementAndGet() == 0) {
+                metrics.publishCompleted(server, System.nanoTime() - startNanos);
+                span.close();
+                future.completed(new PublishReport(Arrays.asList(outcomes)));
+            } else {
+                publishToNextRoom();
+            }
+        }
+    }
 
     protected final String readResponse(HttpEntity entity) throws IOException {
         return entity != null ? EntityUtils.toString(entity) : null;
@@ -0,0 +1,42 @@
+package jenkins.plugins.hipchat;
+
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import java.util.concurrent.Future;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * An extension point that controls how the HTTP requests created by {@link HipChatService} are sent to HipChat. The
+ * transport is globally configured, which allows to switch between different HTTP client implementations (or to
+ * replace the network entirely with an in-memory implementation in tests) without changing the services.
+ */
+public abstract class HipChatTransport extends AbstractDescribableImpl<HipChatTransport> implements ExtensionPoint {
+
+    /**
+     * HTTP Connection timeout when making calls to HipChat.
+     */
+    protected static final int DEFAULT_TIMEOUT = 10000;
+    protected static final RequestConfig DEFAULT_REQUEST_CONFIG = RequestConfig.custom()
+            .setConnectTimeout(DEFAULT_TIMEOUT).setSocketTimeout(DEFAULT_TIMEOUT).build();
+
+    @Override
+    public HipChatTransportDescriptor getDescriptor() {
+        return (HipChatTransportDescriptor) super.getDescriptor();
+    }
+
+    /**
+     * Sends an HTTP request to HipChat. Implementations MUST NOT block the calling thread while waiting for the
+     * response, and MUST complete the returned future (and invoke the callback) in all cases. The caller is
+     * responsible for consuming the entity of the response.
+     *
+     * @param server The HipChat server the request is sent to.
+     * @param request The request to send.
+     * @param callback The callback to invoke with the response.
+     * @return The future representing the response.
+     */
+    public abstract Future<HttpResponse> execute(String server, HttpUriRequest request,
+            FutureCallback<HttpResponse> callback);
+}
@@ -0,0 +1,6 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Descriptor;
+
+public abstract class HipChatTransportDescriptor extends Descriptor<HipChatTransport> {
+}
@@ -0,0 +1,185 @@
+package jenkins.plugins.hipchat.delivery;
+
+import com.google.common.base.Ticker;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops sending requests to a HipChat server that appears to be down, so that the requests fail immediately instead of
+ * waiting for the connection timeouts.
+ * <p>
+ * The breaker keeps track of the outcome of the last {@link #WINDOW_SIZE} requests. Once enough requests have been
+ * recorded, and either the failure rate or the rate of slow requests exceeds its threshold, the circuit opens and all
+ * requests are rejected for {@link #OPEN_DURATION_MILLIS}. The circuit then becomes half-open, and lets a few probe
+ * requests through: if all of them succeed the circuit closes again, otherwise it reopens.
+ * <p>
+ * Every state change starts a new generation, and permits are tied to the generation they were issued in. Outcomes of
+ * requests permitted before the last state change are ignored, so that requests which were still in flight when the
+ * circuit opened cannot be mistaken for probes.
+ */
+public final class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+    static final int WINDOW_SIZE = 20;
+    static final int MIN_CALLS = 10;
+    static final int FAILURE_RATE_THRESHOLD = 50;
+    static final int SLOW_CALL_RATE_THRESHOLD = 80;
+    static final long SLOW_CALL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    static final long OPEN_DURATION_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final int HALF_OPEN_PROBES = 3;
+    /**
+     * Returned by {@link #tryAcquire()} when the request is not permitted.
+     */
+    public static final long REJECTED = -1;
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String server;
+    private final Ticker ticker;
+    private final boolean[] failures = new boolean[WINDOW_SIZE];
+    private final boolean[] slowCalls = new boolean[WINDOW_SIZE];
+    private int recorded;
+    private int position;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+    private long generation;
+
+    CircuitBreaker(String server, Ticker ticker) {
+        this.server = server;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Returns the circuit breaker guarding the given HipChat server.
+     *
+     * @param server The HipChat server.
+     * @return The shared circuit breaker.
+     */
+    public static CircuitBreaker forServer(String server) {
+        CircuitBreaker breaker = BREAKERS.get(server);
+        if (breaker == null) {
+            CircuitBreaker newBreaker = new CircuitBreaker(server, Ticker.systemTicker());
+            breaker = BREAKERS.putIfAbsent(server, newBreaker);
+            if (breaker == null) {
+                breaker = newBreaker;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Returns the current state of all the circuit breakers created so far.
+     *
+     * @return The circuit breaker states keyed by HipChat server.
+     */
+    public static Map<String, State> getStates() {
+        Map<String, State> states = new TreeMap<>();
+        for (CircuitBreaker breaker : BREAKERS.values()) {
+            states.put(breaker.server, breaker.getState());
+        }
+        return states;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Asks for permission to send a request to the server. Every permitted request MUST be followed by a call to
+     * {@link #record(long, long, boolean)} with the returned permit.
+     *
+     * @return The permit of the request if it can be sent, {@link #REJECTED} if it should fail immediately.
+     */
+    public synchronized long tryAcquire() {
+        if (state == State.OPEN) {
+            if (now() - openedAt < OPEN_DURATION_MILLIS) {
+                return REJECTED;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesStarted >= HALF_OPEN_PROBES) {
+                return REJECTED;
+            }
+            probesStarted++;
+        }
+        return generation;
+    }
+
+    /**
+     * Records the outcome of a request that was permitted by {@link #tryAcquire()}.
+     *
+     * @param permit The permit returned by {@link #tryAcquire()}.
+     * @param durationMillis The time it took to complete the request.
+     * @param failed Whether the request failed due to the server being unavailable (as opposed to the request being
+     * rejected).
+     */
+    public synchronized void record(long permit, long durationMillis, boolean failed) {
+        if (permit != generation) {
+            // A request that was already in flight when the state last changed
+            return;
+        }
+        switch (state) {
+            case HALF_OPEN:
+                if (failed) {
+                    transitionTo(State.OPEN);
+                } else if (++probesSucceeded >= HALF_OPEN_PROBES) {
+                    transitionTo(State.CLOSED);
+                }
+                break;
+            case CLOSED:
+                failures[position] = failed;
+                slowCalls[position] = durationMillis >= SLOW_CALL_MILLIS;
+                position = (position + 1) % WINDOW_SIZE;
+                recorded = Math.min(recorded + 1, WINDOW_SIZE);
+                if (recorded >= MIN_CALLS && (rate(failures) >= FAILURE_RATE_THRESHOLD
+                        || rate(slowCalls) >= SLOW_CALL_RATE_THRESHOLD)) {
+                    transitionTo(State.OPEN);
+                }
+                break;
+            default:
+                // No permits are issued while the circuit is open
+                break;
+        }
+    }
+
+    private int rate(boolean[] window) {
+        int count = 0;
+        for (int i = 0; i < recorded; i++) {
+            if (window[i]) {
+                count++;
+            }
+        }
+        return count * 100 / recorded;
+    }
+
+    private void transitionTo(State newState) {
+        LOGGER.log(newState == State.OPEN ? Level.WARNING : Level.INFO,
+                "Circuit breaker for HipChat server {0} changed from {1} to {2}",
+                new Object[]{server, state, newState});
+        state = newState;
+        generation++;
+        probesStarted = 0;
+        probesSucceeded = 0;
+        if (newState == State.OPEN) {
+            openedAt = now();
+        } else if (newState == State.CLOSED) {
+            recorded = 0;
+            position = 0;
+        }
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+}
@@ -0,0 +1,323 @@
+package jenkins.plugins.hipchat.delivery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Singleton;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Remembers which notifications have already been delivered, so that each logical event reaches each room at most
+ * once, even if it is sent multiple times due to retries, journal replays after a restart, or the build step being
+ * executed again. Notifications are identified by deterministic idempotency keys (see
+ * {@link #getKey(String, String, String)}).
+ * <p>
+ * Delivered keys are kept for at least half of the {@link #WINDOW_MILLIS}, and at most the whole window, in a rolling
+ * Bloom filter made of two generations: new keys are added to the current generation, and once it is older than half
+ * the window it replaces the previous generation and a new, empty generation is started. The most recently delivered
+ * keys are also kept in an exact set, which avoids false positives for the notifications that are most likely to be
+ * sent again. Keys of the notifications being sent are tracked in memory, so that concurrent duplicates are rejected
+ * as well.
+ * <p>
+ * The store is saved under <code>$JENKINS_HOME/hipchat-dedup.bin</code> shortly after each change, and when Jenkins
+ * stops.
+ */
+@Singleton
+public class DeduplicationStore {
+
+    private static final Logger LOGGER = Logger.getLogger(DeduplicationStore.class.getName());
+    private static final String FILE_NAME = "hipchat-dedup.bin";
+    private static final int MAGIC = 0x48434431;
+    static final long WINDOW_MILLIS = TimeUnit.DAYS.toMillis(1);
+    /**
+     * With 2^20 bits and 7 hash functions a generation of 50 000 keys has a false positive rate below 0.02%.
+     */
+    static final int BITS = 1 << 20;
+    static final int HASHES = 7;
+    static final int MAX_RECENT_KEYS = 10000;
+    private static final long SAVE_DELAY_MILLIS = 5000;
+
+    private final Set<String> inFlight = new HashSet<>();
+    private final LinkedHashMap<String, Long> recentKeys = new LinkedHashMap<>();
+    private File file;
+    private long[] current;
+    private long[] previous;
+    private long generationStart;
+    private boolean loaded;
+    private boolean saveScheduled;
+
+    public DeduplicationStore() {
+    }
+
+    DeduplicationStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Computes the idempotency key of delivering an event to a room.
+     *
+     * @param eventKey The deterministic identifier of the logical event, e.g. the build and the notification type.
+     * @param server The HipChat server.
+     * @param roomId The room to notify.
+     * @return The idempotency key.
+     */
+    public static String getKey(String eventKey, String server, String roomId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((eventKey + '\0' + server + '\0' + roomId).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 is not supported", nsae);
+        }
+    }
+
+    /**
+     * Claims the right to deliver the notification identified by the key. Every successful claim MUST be followed by a
+     * call to {@link #release(String, boolean)}.
+     *
+     * @param key The idempotency key.
+     * @return <code>true</code> if the notification should be sent, <code>false</code> if it has already been
+     * delivered or is being delivered right now.
+     */
+    public boolean tryAcquire(String key) {
+        return tryAcquire(key, System.currentTimeMillis());
+    }
+
+    synchronized boolean tryAcquire(String key, long now) {
+        ensureLoaded(now);
+        if (inFlight.contains(key) || contains(key, now)) {
+            return false;
+        }
+        inFlight.add(key);
+        return true;
+    }
+
+    /**
+     * Releases a claim obtained with {@link #tryAcquire(String)}.
+     *
+     * @param key The idempotency key.
+     * @param delivered Whether the notification has been delivered. Only delivered keys are remembered, so that failed
+     * deliveries can be attempted again.
+     */
+    public void release(String key, boolean delivered) {
+        release(key, delivered, System.currentTimeMillis());
+    }
+
+    synchronized void release(String key, boolean delivered, long now) {
+        inFlight.remove(key);
+        if (delivered) {
+            ensureLoaded(now);
+            rotate(now);
+            long[] hashes = hashes(key);
+            for (int i = 0; i < HASHES; i++) {
+                int bit = index(hashes, i);
+                current[bit >>> 6] |= 1L << bit;
+            }
+            recentKeys.remove(key);
+            recentKeys.put(key, now);
+            if (recentKeys.size() > MAX_RECENT_KEYS) {
+                Iterator<String> oldest = recentKeys.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Writes the store to disk.
+     */
+    public void save() {
+        byte[] data;
+        synchronized (this) {
+            saveScheduled = false;
+            if (!loaded) {
+                return;
+            }
+            try {
+                data = serialize();
+            } catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "Unable to serialize the HipChat deduplication store", ioe);
+                return;
+            }
+        }
+        File target = getFile();
+        File temp = new File(target.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(data);
+                out.getFD().sync();
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "Unable to save the HipChat deduplication store", ioe);
+        }
+    }
+
+    private boolean contains(String key, long now) {
+        Long delivered = recentKeys.get(key);
+        if (delivered != null) {
+            return now - delivered < WINDOW_MILLIS;
+        }
+        rotate(now);
+        long[] hashes = hashes(key);
+        return mightContain(current, hashes) || mightContain(previous, hashes);
+    }
+
+    private void rotate(long now) {
+        long age = now - generationStart;
+        if (age >= WINDOW_MILLIS) {
+            previous = new long[BITS / 64];
+            current = new long[BITS / 64];
+            generationStart = now;
+        } else if (age >= WINDOW_MILLIS / 2) {
+            previous = current;
+            current = new long[BITS / 64];
+            generationStart = now;
+        }
+        // Drop the recent keys that are no longer covered by the window
+        Iterator<Long> oldest = recentKeys.values().iterator();
+        while (oldest.hasNext() && now - oldest.next() >= WINDOW_MILLIS) {
+            oldest.remove();
+        }
+    }
+
+    private static boolean mightContain(long[] bits, long[] hashes) {
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(hashes, i);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits the 128 bit key (32 hex digits, see {@link #getKey(String, String, String)}) into the two hashes used for
+     * double hashing.
+     */
+    private static long[] hashes(String key) {
+        return new long[]{parseLong(key, 0), parseLong(key, 16)};
+    }
+
+    private static long parseLong(String hex, int offset) {
+        return Long.parseLong(hex.substring(offset, offset + 8), 16) << 32
+                | Long.parseLong(hex.substring(offset + 8, offset + 16), 16);
+    }
+
+    private static int index(long[] hashes, int i) {
+        long combined = hashes[0] + i * hashes[1];
+        return (int) ((combined & Long.MAX_VALUE) % BITS);
+    }
+
+    private void ensureLoaded(long now) {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        current = new long[BITS / 64];
+        previous = new long[BITS / 64];
+        generationStart = now;
+        File source = getFile();
+        if (!source.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unexpected file format");
+            }
+            long start = in.readLong();
+            long[] loadedCurrent = readBits(in);
+            long[] loadedPrevious = readBits(in);
+            int recent = in.readInt();
+            for (int i = 0; i < recent; i++) {
+                recentKeys.put(in.readUTF(), in.readLong());
+            }
+            current = loadedCurrent;
+            previous = loadedPrevious;
+            generationStart = start;
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "Unable to load the HipChat deduplication store, starting with an empty one",
+                    ioe);
+            recentKeys.clear();
+        }
+    }
+
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(BITS / 4 + recentKeys.size() * 50);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes))) {
+            out.writeInt(MAGIC);
+            out.writeLong(generationStart);
+            writeBits(out, current);
+            writeBits(out, previous);
+            out.writeInt(recentKeys.size());
+            for (Map.Entry<String, Long> entry : recentKeys.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static long[] readBits(DataInputStream in) throws IOException {
+        long[] bits = new long[BITS / 64];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        return bits;
+    }
+
+    private static void writeBits(DataOutputStream out, long[] bits) throws IOException {
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    private void scheduleSave() {
+        if (!saveScheduled) {
+            saveScheduled = true;
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private File getFile() {
+        if (file == null) {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null) {
+                throw new IllegalStateException("Jenkins instance is not available");
+            }
+            file = new File(jenkins.getRootDir(), FILE_NAME);
+        }
+        return file;
+    }
+}
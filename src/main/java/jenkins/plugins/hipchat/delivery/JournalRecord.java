@@ -0,0 +1,116 @@
+package jenkins.plugins.hipchat.delivery;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import hudson.util.Secret;
+import jenkins.plugins.hipchat.model.HipChatTarget;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+
+/**
+ * A single line in the notification journal. A record either registers a notification that needs to be delivered
+ * (see {@link #ENTRY}), or acknowledges the delivery of a previously registered notification to one of its rooms (see
+ * {@link #ACK}).
+ */
+class JournalRecord {
+
+    static final String ENTRY = "entry";
+    static final String ACK = "ack";
+
+    @JsonProperty("op")
+    private String operation;
+    @JsonProperty("id")
+    private long id;
+    @JsonProperty("created")
+    private long created;
+    @JsonProperty("server")
+    private String server;
+    @JsonProperty("token")
+    private String encryptedToken;
+    @JsonProperty("v2")
+    private boolean v2Enabled;
+    @JsonProperty("room")
+    private String room;
+    @JsonProperty("sendAs")
+    private String sendAs;
+    @JsonProperty("eventKey")
+    private String eventKey;
+    @JsonProperty("notification")
+    private Notification notification;
+
+    JournalRecord() {
+    }
+
+    static JournalRecord entry(long id, long created, HipChatTarget target, Notification notification) {
+        JournalRecord record = new JournalRecord();
+        record.operation = ENTRY;
+        record.id = id;
+        record.created = created;
+        record.server = target.getServer();
+        record.encryptedToken = Secret.fromString(target.getToken()).getEncryptedValue();
+        record.v2Enabled = target.isV2Enabled();
+        record.room = target.getRoom();
+        record.sendAs = target.getSendAs();
+        record.eventKey = target.getEventKey();
+        record.notification = notification;
+        return record;
+    }
+
+    static JournalRecord ack(long id, String room) {
+        JournalRecord record = new JournalRecord();
+        record.operation = ACK;
+        record.id = id;
+        record.room = room;
+        return record;
+    }
+
+    /**
+     * Returns a copy of this entry record that only lists the provided rooms.
+     *
+     * @param room The remaining rooms, separated by commas.
+     * @return The updated entry record.
+     */
+    JournalRecord withRoom(String room) {
+        JournalRecord record = new JournalRecord();
+        record.operation = operation;
+        record.id = id;
+        record.created = created;
+        record.server = server;
+        record.encryptedToken = encryptedToken;
+        record.v2Enabled = v2Enabled;
+        record.room = room;
+        record.sendAs = sendAs;
+        record.eventKey = eventKey;
+        record.notification = notification;
+        return record;
+    }
+
+    String getOperation() {
+        return operation;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    long getCreated() {
+        return created;
+    }
+
+    String getRoom() {
+        return room;
+    }
+
+    Notification getNotification() {
+        return notification;
+    }
+
+    /**
+     * Reconstructs the target of the journaled notification.
+     *
+     * @return The target, or null if the auth token can no longer be decrypted.
+     */
+    HipChatTarget toTarget() {
+        Secret token = Secret.decrypt(encryptedToken);
+        return token == null ? null : new HipChatTarget(server, Secret.toString(token), v2Enabled, room, sendAs,
+                eventKey);
+    }
+}
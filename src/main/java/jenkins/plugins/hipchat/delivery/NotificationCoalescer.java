@@ -0,0 +1,212 @@
+package jenkins.plugins.hipchat.delivery;
+
+import hudson.Util;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.plugins.hipchat.Messages;
+import jenkins.plugins.hipchat.model.HipChatTarget;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import jenkins.plugins.hipchat.model.notifications.Notification.Color;
+import jenkins.plugins.hipchat.model.notifications.Notification.MessageFormat;
+import jenkins.util.Timer;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * Holds back notifications sent to the same rooms for a short period of time, so that a burst of notifications (e.g.
+ * when a large number of jobs complete at the same time) can be delivered as a single summary message. A batch is
+ * flushed when its window elapses, or earlier when it reaches the maximum number of notifications or the maximum
+ * message length.
+ */
+class NotificationCoalescer {
+
+    private static final Logger LOGGER = Logger.getLogger(NotificationCoalescer.class.getName());
+    /**
+     * Leaves some room below the 10000 characters limit of HipChat for the summary header.
+     */
+    private static final int MAX_MESSAGE_LENGTH = 9000;
+    /**
+     * The order of the colors from the least to the most important. The merged notification uses the most important
+     * color of the batch, so that e.g. a single failure is not hidden among successful builds.
+     */
+    private static final List<Color> COLOR_PRIORITY = Arrays.asList(Color.GREEN, Color.GRAY, Color.RANDOM,
+            Color.PURPLE, Color.YELLOW, Color.RED);
+
+    private final Sender sender;
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    NotificationCoalescer(Sender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Adds a notification to the batch of its target.
+     *
+     * @param target The target of the notification.
+     * @param notification The notification to send.
+     * @param callback The callback to invoke once the batch containing the notification has been delivered. May be
+     * null.
+     * @param windowMillis The time to wait for further notifications, measured from the first notification of the
+     * batch.
+     * @param maxSize The maximum number of notifications in a single batch.
+     * @return The future representing the pending delivery of the batch.
+     */
+    Future<PublishReport> coalesce(HipChatTarget target, Notification notification,
+            FutureCallback<PublishReport> callback, long windowMillis, int maxSize) {
+        BasicFuture<PublishReport> future = new BasicFuture<>(callback);
+        String key = getKey(target, notification);
+        List<Batch> ready = new ArrayList<>(2);
+        synchronized (batches) {
+            Batch batch = batches.get(key);
+            int length = notification.getMessage() == null ? 0 : notification.getMessage().length();
+            if (batch != null && batch.length + length > MAX_MESSAGE_LENGTH) {
+                batches.remove(key);
+                ready.add(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(key, target);
+                batches.put(key, batch);
+                scheduleFlush(batch, windowMillis);
+            }
+            batch.add(notification, future, length);
+            if (batch.notifications.size() >= maxSize) {
+                batches.remove(key);
+                ready.add(batch);
+            }
+        }
+        for (Batch batch : ready) {
+            send(batch);
+        }
+        return future;
+    }
+
+    /**
+     * Sends all the pending batches immediately.
+     */
+    void flushAll() {
+        List<Batch> pending;
+        synchronized (batches) {
+            pending = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        for (Batch batch : pending) {
+            send(batch);
+        }
+    }
+
+    private void scheduleFlush(final Batch batch, long windowMillis) {
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (batches) {
+                    if (batches.get(batch.key) != batch) {
+                        // Already flushed because it became full
+                        return;
+                    }
+                    batches.remove(batch.key);
+                }
+                send(batch);
+            }
+        }, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(final Batch batch) {
+        boolean merged = batch.notifications.size() > 1;
+        Notification notification = merged ? merge(batch) : batch.notifications.get(0);
+        // A merged message does not correspond to any single event, hence it cannot be deduplicated
+        HipChatTarget target = merged ? batch.target.withEventKey(null) : batch.target;
+        LOGGER.log(Level.FINE, "Sending {0} coalesced notification(s) to {1}",
+                new Object[]{batch.notifications.size(), target});
+        sender.send(target, notification, new FutureCallback<PublishReport>() {
+            @Override
+            public void completed(PublishReport report) {
+                for (BasicFuture<PublishReport> future : batch.futures) {
+                    future.completed(report);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                for (BasicFuture<PublishReport> future : batch.futures) {
+                    future.failed(ex);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                for (BasicFuture<PublishReport> future : batch.futures) {
+                    future.cancel();
+                }
+            }
+        });
+    }
+
+    /**
+     * Merges the notifications of the batch into a single summary message, with one line per notification. Cards are
+     * not merged, as a card can only describe a single build.
+     */
+    static Notification merge(Batch batch) {
+        Notification first = batch.notifications.get(0);
+        boolean html = first.getMessageFormat() != MessageFormat.TEXT;
+        String separator = html ? "<br>" : "\n";
+        StringBuilder message = new StringBuilder(batch.length + batch.notifications.size() * separator.length()
+                + 64);
+        message.append(Messages.CoalescedNotifications(batch.notifications.size()));
+        Color color = first.getColor();
+        boolean notify = false;
+        for (Notification notification : batch.notifications) {
+            message.append(separator).append(Util.fixNull(notification.getMessage()));
+            if (COLOR_PRIORITY.indexOf(notification.getColor()) > COLOR_PRIORITY.indexOf(color)) {
+                color = notification.getColor();
+            }
+            notify |= notification.isNotify();
+        }
+        return new Notification()
+                .withMessage(message.toString())
+                .withMessageFormat(first.getMessageFormat())
+                .withColor(color)
+                .withNotify(notify);
+    }
+
+    private static String getKey(HipChatTarget target, Notification notification) {
+        return Util.getDigestOf(target.getServer() + ':' + target.getToken() + ':' + target.isV2Enabled() + ':'
+                + target.getRoom() + ':' + target.getSendAs() + ':' + notification.getMessageFormat());
+    }
+
+    /**
+     * Sends a (possibly merged) notification.
+     */
+    interface Sender {
+
+        void send(HipChatTarget target, Notification notification, FutureCallback<PublishReport> callback);
+    }
+
+    static class Batch {
+
+        private final String key;
+        private final HipChatTarget target;
+        private final List<Notification> notifications = new ArrayList<>();
+        private final List<BasicFuture<PublishReport>> futures = new ArrayList<>();
+        private int length;
+
+        Batch(String key, HipChatTarget target) {
+            this.key = key;
+            this.target = target;
+        }
+
+        void add(Notification notification, BasicFuture<PublishReport> future, int length) {
+            notifications.add(notification);
+            futures.add(future);
+            this.length += length;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package jenkins.plugins.hipchat.delivery;
+
+import static jenkins.plugins.hipchat.utils.GuiceUtils.get;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import jenkins.model.Jenkins;
+import jenkins.plugins.hipchat.HipChatNotifier;
+import jenkins.plugins.hipchat.HipChatService;
+import jenkins.plugins.hipchat.Messages;
+import jenkins.plugins.hipchat.delivery.NotificationJournal.RecoveredEntry;
+import jenkins.plugins.hipchat.exceptions.NotificationException;
+import jenkins.plugins.hipchat.model.HipChatTarget;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import jenkins.util.Timer;
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * Delivers notifications to HipChat, making sure that they survive a controller restart. Each notification is recorded
+ * in the {@link NotificationJournal} before it is sent, and every successful delivery to a room is acknowledged in the
+ * journal. Notifications that have not been delivered to all of their rooms are resent on startup, and periodically
+ * while Jenkins is running. Notifications whose
+ * target has an event key are checked against the {@link DeduplicationStore}, so that resending them does not result
+ * in duplicate messages.
+ */
+@Singleton
+public class NotificationDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(NotificationDispatcher.class.getName());
+    /**
+     * How often the notifications whose delivery has failed are resent, well above the deadline of the retries.
+     */
+    private static final long REPLAY_INTERVAL_MINUTES = 5;
+
+    @Inject
+    private NotificationJournal journal;
+    @Inject
+    private DeduplicationStore deduplicationStore;
+    private final NotificationCoalescer coalescer = new NotificationCoalescer(new NotificationCoalescer.Sender() {
+        @Override
+        public void send(HipChatTarget target, Notification notification, FutureCallback<PublishReport> callback) {
+            dispatchNow(target, notification, callback);
+        }
+    });
+
+    /**
+     * Sends a notification without blocking on the HTTP requests. The calling thread only waits until the notification
+     * has been recorded in the journal. When coalescing is enabled in the global configuration, the notification may be
+     * held back for the configured window and merged with other notifications sent to the same rooms.
+     *
+     * @param target The target of the notification.
+     * @param notification The notification to send.
+     * @param callback The callback to invoke once the delivery has been attempted to all the rooms. May be null.
+     * @return The future representing the pending delivery of the notification.
+     */
+    public Future<PublishReport> dispatch(HipChatTarget target, Notification notification,
+            FutureCallback<PublishReport> callback) {
+        Jenkins jenkins = Jenkins.getInstance();
+        HipChatNotifier.DescriptorImpl descriptor = jenkins == null ? null
+                : jenkins.getDescriptorByType(HipChatNotifier.DescriptorImpl.class);
+        if (descriptor != null && descriptor.getCoalescingWindow() > 0) {
+            return coalescer.coalesce(target, notification, callback,
+                    TimeUnit.SECONDS.toMillis(descriptor.getCoalescingWindow()), descriptor.getCoalescingMaxSize());
+        }
+        return dispatchNow(target, notification, callback);
+    }
+
+    private Future<PublishReport> dispatchNow(HipChatTarget target, Notification notification,
+            FutureCallback<PublishReport> callback) {
+        Long id = null;
+        try {
+            id = journal.append(target, notification);
+        } catch (IOException ioe) {
+            // Journaling is a best effort, the notification can still be sent
+            LOGGER.log(Level.WARNING, "Unable to journal HipChat notification, it will not be resent after a restart",
+                    ioe);
+        }
+        return send(id, target, notification, callback);
+    }
+
+    /**
+     * Sends a notification and waits until it has been delivered to all the rooms. Notifications sent this way are
+     * never coalesced, since the caller is waiting for the outcome.
+     *
+     * @param target The target of the notification.
+     * @param notification The notification to send.
+     * @throws NotificationException If there was an error while publishing the notification to any of the rooms.
+     */
+    public void publish(HipChatTarget target, Notification notification) throws NotificationException {
+        publish(target, notification, null);
+    }
+
+    /**
+     * Sends a notification and waits until it has been delivered to all the rooms.
+     *
+     * @param target The target of the notification.
+     * @param notification The notification to send.
+     * @param callback The callback to invoke once the delivery has been attempted to all the rooms. May be null.
+     * @throws NotificationException If there was an error while publishing the notification to any of the rooms.
+     */
+    public void publish(HipChatTarget target, Notification notification, FutureCallback<PublishReport> callback)
+            throws NotificationException {
+        PublishReport report;
+        try {
+            report = dispatchNow(target, notification, callback).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new NotificationException(Messages.IOException(ie.toString()), ie);
+        } catch (ExecutionException ee) {
+            throw new NotificationException(Messages.IOException(ee.getCause().toString()), ee.getCause());
+        }
+        NotificationException failure = report.toException();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Future<PublishReport> send(Long id, HipChatTarget target, Notification notification,
+            FutureCallback<PublishReport> callback) {
+        HipChatService service = target.createService();
+        if (target.getEventKey() != null) {
+            service.setDeduplication(deduplicationStore, target.getEventKey());
+        }
+        return service.publishAsync(notification, id == null ? callback : new JournalCallback(journal, id, callback));
+    }
+
+    /**
+     * Resends the notifications that were still pending when Jenkins was stopped, and schedules resending the
+     * notifications whose delivery fails from now on.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replayJournal() {
+        get(NotificationDispatcher.class).replay();
+        Timer.get().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                get(NotificationDispatcher.class).replay();
+            }
+        }, REPLAY_INTERVAL_MINUTES, REPLAY_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @Terminator
+    public static void closeJournal() {
+        NotificationDispatcher dispatcher = get(NotificationDispatcher.class);
+        dispatcher.coalescer.flushAll();
+        dispatcher.journal.close();
+        dispatcher.deduplicationStore.save();
+    }
+
+    private void replay() {
+        try {
+            for (final RecoveredEntry entry : journal.drainRecoveredEntries()) {
+                LOGGER.log(Level.FINE, "Resending journaled HipChat notification {0} to {1}",
+                        new Object[]{entry.getId(), entry.getTarget()});
+                send(entry.getId(), entry.getTarget(), entry.getNotification(), new FutureCallback<PublishReport>() {
+                    @Override
+                    public void completed(PublishReport report) {
+                        for (RoomOutcome failure : report.getFailures()) {
+                            LOGGER.log(Level.WARNING, "Unable to resend journaled HipChat notification {0} to room "
+                                    + "{1}: {2}", new Object[]{entry.getId(), failure.getRoomId(),
+                                        failure.getFailure().getMessage()});
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception ex) {
+                        LOGGER.log(Level.WARNING, "Unable to resend journaled HipChat notification " + entry.getId(),
+                                ex);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                    }
+                });
+            }
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "Unable to read the HipChat notification journal", ioe);
+        }
+    }
+
+    /**
+     * Acknowledges the completed deliveries in the journal before handing the report over to the caller's callback.
+     * Rooms that have rejected the notification with an error that is not {@link RetryPolicy#isRetryable retryable}
+     * are acknowledged as well, since resending the notification would not change the outcome. Entries with rooms
+     * left to deliver to are released for the next replay.
+     */
+    static class JournalCallback implements FutureCallback<PublishReport> {
+
+        private final NotificationJournal journal;
+        private final long id;
+        private final FutureCallback<PublishReport> delegate;
+
+        JournalCallback(NotificationJournal journal, long id, FutureCallback<PublishReport> delegate) {
+            this.journal = journal;
+            this.id = id;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void completed(PublishReport report) {
+            boolean undelivered = false;
+            for (RoomOutcome outcome : report.getOutcomes()) {
+                if (outcome.isSuccessful()
+                        || (outcome.getResponseCode() != 0 && !RetryPolicy.DEFAULT.isRetryable(outcome))) {
+                    journal.acknowledge(id, outcome.getRoomId());
+                } else {
+                    undelivered = true;
+                }
+            }
+            if (undelivered) {
+                journal.release(id);
+            }
+            if (delegate != null) {
+                delegate.completed(report);
+            }
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            journal.release(id);
+            if (delegate != null) {
+                delegate.failed(ex);
+            }
+        }
+
+        @Override
+        public void cancelled() {
+            journal.release(id);
+            if (delegate != null) {
+                delegate.cancelled();
+            }
+        }
+    }
+}
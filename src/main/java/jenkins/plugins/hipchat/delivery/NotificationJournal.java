@@ -0,0 +1,625 @@
+package jenkins.plugins.hipchat.delivery;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Singleton;
+import jenkins.model.Jenkins;
+import jenkins.plugins.hipchat.model.HipChatTarget;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * An append-only, segmented journal of the notifications that have not yet been delivered to all of their rooms. The
+ * journal is stored under <code>$JENKINS_HOME/hipchat-outbox/</code>, and it allows undelivered notifications to be
+ * replayed after a controller restart.
+ * <p>
+ * Entries are only handed back to the caller once they have been written to disk and fsynced. Concurrent appends are
+ * batched together (group commit), so a single fsync call covers all the entries that arrived while the previous batch
+ * was being written. Acknowledgements are not fsynced individually: losing one only results in a duplicate delivery
+ * after a crash.
+ * <p>
+ * Once a segment reaches its maximum size a new one is started. Segments are deleted in order once none of their
+ * entries are pending, and when too many segments pile up, the pending entries of the old segments are rewritten into
+ * the active segment (compaction).
+ * <p>
+ * Entries whose delivery has failed are {@link #release(long) released}, so that they are handed out again by
+ * {@link #drainRecoveredEntries()}. Entries that are still pending after a day are given up.
+ */
+@Singleton
+public class NotificationJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(NotificationJournal.class.getName());
+    private static final String DIRECTORY_NAME = "hipchat-outbox";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 4;
+    static final long MAX_ENTRY_AGE = TimeUnit.DAYS.toMillis(1);
+    private static final long ACK_FLUSH_DELAY_MILLIS = 1000;
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final Object lock = new Object();
+    private final TreeMap<Long, Integer> liveEntriesBySegment = new TreeMap<>();
+    private final Map<Long, PendingEntry> pendingEntries = new HashMap<>();
+    private File directory;
+    private FileChannel activeChannel;
+    private long activeSegment;
+    private long activeSize;
+    private long nextId = 1;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private List<PendingEntry> bufferedEntries = new ArrayList<>();
+    private long currentBatch = 1;
+    private long flushedBatch;
+    private long failedBatch;
+    private IOException failure;
+    private boolean flushing;
+    private boolean flushScheduled;
+    private boolean compactionScheduled;
+
+    public NotificationJournal() {
+    }
+
+    NotificationJournal(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Records a notification in the journal. This method only returns once the entry has been durably written to
+     * disk.
+     *
+     * @param target The target of the notification.
+     * @param notification The notification to deliver.
+     * @return The ID of the journal entry, to be used when acknowledging the delivery.
+     * @throws IOException If the entry could not be written to the journal.
+     */
+    public long append(HipChatTarget target, Notification notification) throws IOException {
+        long id;
+        synchronized (lock) {
+            ensureOpen();
+            id = nextId++;
+        }
+        JournalRecord record = JournalRecord.entry(id, System.currentTimeMillis(), target, notification);
+        byte[] line = toLine(record);
+        long batch;
+        synchronized (lock) {
+            PendingEntry entry = new PendingEntry(record);
+            pendingEntries.put(id, entry);
+            entry.buffered = true;
+            bufferedEntries.add(entry);
+            buffer.write(line, 0, line.length);
+            batch = currentBatch;
+        }
+        awaitFlush(batch);
+        return id;
+    }
+
+    /**
+     * Acknowledges that the notification has been delivered to one of its rooms. This method never blocks on disk
+     * I/O, the acknowledgement is written to the journal in the background.
+     *
+     * @param id The ID of the journal entry.
+     * @param room The room that has received the notification.
+     */
+    public void acknowledge(long id, String room) {
+        synchronized (lock) {
+            PendingEntry entry = pendingEntries.get(id);
+            if (entry == null || !entry.remainingRooms.remove(room)) {
+                return;
+            }
+            try {
+                byte[] line = toLine(JournalRecord.ack(id, room));
+                buffer.write(line, 0, line.length);
+            } catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "Unable to serialize journal acknowledgement", ioe);
+            }
+            if (entry.remainingRooms.isEmpty()) {
+                pendingEntries.remove(id);
+                entry.completed = true;
+                if (entry.segment != null) {
+                    decrementLiveEntries(entry.segment);
+                }
+                deleteObsoleteSegments();
+            }
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Signals that the delivery of a notification has finished without reaching all of its rooms, so that the entry
+     * is returned by the next call to {@link #drainRecoveredEntries()}.
+     *
+     * @param id The ID of the journal entry.
+     */
+    public void release(long id) {
+        synchronized (lock) {
+            PendingEntry entry = pendingEntries.get(id);
+            if (entry != null) {
+                entry.released = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the undelivered entries that are not being delivered at the moment: the entries found in the journal when
+     * it was opened, and the entries that have been {@link #release(long) released} since. Each entry is only
+     * returned once per release. Entries older than a day are discarded instead.
+     *
+     * @return The journal entries to deliver again.
+     * @throws IOException If the journal could not be opened.
+     */
+    public List<RecoveredEntry> drainRecoveredEntries() throws IOException {
+        return drainRecoveredEntries(System.currentTimeMillis());
+    }
+
+    List<RecoveredEntry> drainRecoveredEntries(long now) throws IOException {
+        List<RecoveredEntry> ret = new ArrayList<>();
+        synchronized (lock) {
+            ensureOpen();
+            List<PendingEntry> discarded = new ArrayList<>();
+            for (PendingEntry entry : pendingEntries.values()) {
+                if (entry.record.getCreated() < now - MAX_ENTRY_AGE) {
+                    LOGGER.log(Level.WARNING, "Discarding expired journaled notification {0} for rooms {1}",
+                            new Object[]{entry.id, entry.remainingRooms});
+                    discarded.add(entry);
+                } else if (entry.released) {
+                    entry.released = false;
+                    JournalRecord record = entry.record.withRoom(StringUtils.join(entry.remainingRooms, ","));
+                    HipChatTarget target = record.toTarget();
+                    if (target == null) {
+                        LOGGER.log(Level.WARNING, "Unable to decrypt the token of journaled notification {0}, "
+                                + "discarding", entry.id);
+                        discarded.add(entry);
+                    } else {
+                        ret.add(new RecoveredEntry(entry.id, target, record.getNotification()));
+                    }
+                }
+            }
+            for (PendingEntry entry : discarded) {
+                for (String room : new ArrayList<>(entry.remainingRooms)) {
+                    acknowledge(entry.id, room);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Flushes the pending acknowledgements and closes the active segment.
+     */
+    public void close() {
+        try {
+            flush();
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "Unable to flush the notification journal", ioe);
+        }
+        synchronized (lock) {
+            if (activeChannel != null) {
+                try {
+                    activeChannel.close();
+                } catch (IOException ioe) {
+                    LOGGER.log(Level.FINE, "Unable to close journal segment", ioe);
+                }
+                activeChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the pending entries of all the inactive segments into the active segment, so that the inactive segments
+     * can be deleted.
+     *
+     * @throws IOException If the pending entries could not be rewritten.
+     */
+    void compact() throws IOException {
+        long batch;
+        synchronized (lock) {
+            compactionScheduled = false;
+            if (activeChannel == null) {
+                return;
+            }
+            for (PendingEntry entry : pendingEntries.values()) {
+                if (entry.segment != null && entry.segment != activeSegment && !entry.buffered) {
+                    byte[] line = toLine(entry.record.withRoom(StringUtils.join(entry.remainingRooms, ",")));
+                    buffer.write(line, 0, line.length);
+                    entry.buffered = true;
+                    bufferedEntries.add(entry);
+                }
+            }
+            batch = currentBatch;
+        }
+        awaitFlush(batch);
+    }
+
+    void flush() throws IOException {
+        long batch;
+        synchronized (lock) {
+            flushScheduled = false;
+            if (activeChannel == null) {
+                return;
+            }
+            batch = currentBatch;
+        }
+        awaitFlush(batch);
+    }
+
+    /**
+     * Waits until the provided batch has been written to disk. If no other thread is writing to the journal at the
+     * moment, the calling thread writes all the buffered records (including the records of other threads) and fsyncs
+     * the segment.
+     */
+    private void awaitFlush(long batch) throws IOException {
+        byte[] data;
+        List<PendingEntry> entries;
+        FileChannel channel;
+        long segment;
+        long leaderBatch;
+        synchronized (lock) {
+            while (true) {
+                if (flushedBatch >= batch) {
+                    if (failedBatch == batch) {
+                        throw new IOException("Unable to write to the notification journal", failure);
+                    }
+                    return;
+                }
+                if (!flushing) {
+                    break;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the notification journal");
+                }
+            }
+            flushing = true;
+            leaderBatch = currentBatch++;
+            data = buffer.toByteArray();
+            buffer = new ByteArrayOutputStream();
+            entries = bufferedEntries;
+            bufferedEntries = new ArrayList<>();
+            for (PendingEntry entry : entries) {
+                entry.buffered = false;
+            }
+            try {
+                rollIfNeeded();
+            } catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "Unable to start a new journal segment", ioe);
+            }
+            channel = activeChannel;
+            segment = activeSegment;
+        }
+
+        IOException error = null;
+        try {
+            if (data.length > 0) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer);
+                }
+                channel.force(false);
+            }
+        } catch (IOException ioe) {
+            error = ioe;
+        }
+
+        synchronized (lock) {
+            flushing = false;
+            flushedBatch = leaderBatch;
+            if (error == null) {
+                activeSize += data.length;
+                for (PendingEntry entry : entries) {
+                    if (entry.completed) {
+                        continue;
+                    }
+                    if (entry.segment != null) {
+                        decrementLiveEntries(entry.segment);
+                    }
+                    entry.segment = segment;
+                    liveEntriesBySegment.put(segment, liveEntriesBySegment.get(segment) + 1);
+                }
+                deleteObsoleteSegments();
+            } else {
+                failedBatch = leaderBatch;
+                failure = error;
+                for (PendingEntry entry : entries) {
+                    if (entry.segment == null) {
+                        pendingEntries.remove(entry.id);
+                    }
+                }
+            }
+            lock.notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (activeChannel != null) {
+            return;
+        }
+        if (directory == null) {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null) {
+                throw new IOException("Jenkins instance is not available");
+            }
+            directory = new File(jenkins.getRootDir(), DIRECTORY_NAME);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create notification journal directory: " + directory);
+        }
+
+        long lastSegment = 0;
+        Map<Long, PendingEntry> recovered = new LinkedHashMap<>();
+        for (long segment : listSegments()) {
+            lastSegment = segment;
+            liveEntriesBySegment.put(segment, 0);
+            readSegment(segment, recovered);
+        }
+        long expiry = System.currentTimeMillis() - MAX_ENTRY_AGE;
+        for (PendingEntry entry : recovered.values()) {
+            nextId = Math.max(nextId, entry.id + 1);
+            if (entry.record.getCreated() < expiry) {
+                LOGGER.log(Level.WARNING, "Discarding expired journaled notification {0} for rooms {1}",
+                        new Object[]{entry.id, entry.remainingRooms});
+                continue;
+            }
+            // Recovered entries are not being delivered yet
+            entry.released = true;
+            pendingEntries.put(entry.id, entry);
+            liveEntriesBySegment.put(entry.segment, liveEntriesBySegment.get(entry.segment) + 1);
+        }
+        openSegment(lastSegment + 1);
+        deleteObsoleteSegments();
+        if (liveEntriesBySegment.size() > 1) {
+            scheduleCompaction();
+        }
+        if (!pendingEntries.isEmpty()) {
+            LOGGER.log(Level.INFO, "Recovered {0} undelivered HipChat notification(s) from the journal",
+                    pendingEntries.size());
+        }
+    }
+
+    private void readSegment(long segment, Map<Long, PendingEntry> recovered) {
+        File file = getSegmentFile(segment);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                JournalRecord record;
+                try {
+                    record = MAPPER.readValue(line, JournalRecord.class);
+                } catch (IOException ioe) {
+                    // Most likely a partially written record due to a crash
+                    LOGGER.log(Level.FINE, "Skipping unreadable journal record in " + file, ioe);
+                    continue;
+                }
+                nextId = Math.max(nextId, record.getId() + 1);
+                if (JournalRecord.ENTRY.equals(record.getOperation())) {
+                    PendingEntry entry = new PendingEntry(record);
+                    entry.segment = segment;
+                    recovered.remove(record.getId());
+                    if (!entry.remainingRooms.isEmpty()) {
+                        recovered.put(record.getId(), entry);
+                    }
+                } else if (JournalRecord.ACK.equals(record.getOperation())) {
+                    PendingEntry entry = recovered.get(record.getId());
+                    if (entry != null) {
+                        entry.remainingRooms.remove(record.getRoom());
+                        if (entry.remainingRooms.isEmpty()) {
+                            recovered.remove(record.getId());
+                        }
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "Unable to read journal segment " + file, ioe);
+        }
+    }
+
+    private long[] listSegments() {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<Long> segments = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException nfe) {
+                    LOGGER.log(Level.FINE, "Ignoring unexpected file in the journal directory: {0}", name);
+                }
+            }
+        }
+        long[] ret = new long[segments.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = segments.get(i);
+        }
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    private void rollIfNeeded() throws IOException {
+        if (activeSize < MAX_SEGMENT_SIZE) {
+            return;
+        }
+        activeChannel.close();
+        openSegment(activeSegment + 1);
+        if (liveEntriesBySegment.size() > MAX_SEGMENTS) {
+            scheduleCompaction();
+        }
+    }
+
+    private void openSegment(long segment) throws IOException {
+        activeChannel = FileChannel.open(getSegmentFile(segment).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeSegment = segment;
+        activeSize = activeChannel.size();
+        if (!liveEntriesBySegment.containsKey(segment)) {
+            liveEntriesBySegment.put(segment, 0);
+        }
+    }
+
+    private void decrementLiveEntries(long segment) {
+        Integer live = liveEntriesBySegment.get(segment);
+        if (live != null) {
+            liveEntriesBySegment.put(segment, live - 1);
+        }
+    }
+
+    /**
+     * Deletes the oldest segments that no longer contain pending entries. Segments are only ever deleted in order,
+     * since a newer segment may contain acknowledgements for the entries of an older segment.
+     */
+    private void deleteObsoleteSegments() {
+        while (!liveEntriesBySegment.isEmpty()) {
+            Map.Entry<Long, Integer> oldest = liveEntriesBySegment.firstEntry();
+            if (oldest.getKey() == activeSegment || oldest.getValue() > 0) {
+                return;
+            }
+            File file = getSegmentFile(oldest.getKey());
+            if (file.exists() && !file.delete()) {
+                LOGGER.log(Level.WARNING, "Unable to delete journal segment {0}", file);
+                return;
+            }
+            liveEntriesBySegment.remove(oldest.getKey());
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (IOException ioe) {
+                        LOGGER.log(Level.WARNING, "Unable to flush the notification journal", ioe);
+                    }
+                }
+            }, ACK_FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (!compactionScheduled) {
+            compactionScheduled = true;
+            Timer.get().submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException ioe) {
+                        LOGGER.log(Level.WARNING, "Unable to compact the notification journal", ioe);
+                    }
+                }
+            });
+        }
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static byte[] toLine(JournalRecord record) throws IOException {
+        byte[] json = MAPPER.writeValueAsBytes(record);
+        byte[] line = Arrays.copyOf(json, json.length + 1);
+        line[json.length] = '\n';
+        return line;
+    }
+
+    private static class PendingEntry {
+
+        private final long id;
+        private final JournalRecord record;
+        private final Set<String> remainingRooms;
+        private Long segment;
+        private boolean completed;
+        /**
+         * Whether the entry is waiting in the buffer to be written, so that compaction does not buffer it twice.
+         */
+        private boolean buffered;
+        /**
+         * Whether the entry is waiting to be delivered again.
+         */
+        private boolean released;
+
+        private PendingEntry(JournalRecord record) {
+            this.id = record.getId();
+            this.record = record;
+            this.remainingRooms = new LinkedHashSet<>();
+            if (record.getRoom() != null) {
+                remainingRooms.addAll(Arrays.asList(record.getRoom().split("\\s*,\\s*")));
+            }
+        }
+    }
+
+    /**
+     * An undelivered notification that has been found in the journal on startup.
+     */
+    public static class RecoveredEntry {
+
+        private final long id;
+        private final HipChatTarget target;
+        private final Notification notification;
+
+        private RecoveredEntry(long id, HipChatTarget target, Notification notification) {
+            this.id = id;
+            this.target = target;
+            this.notification = notification;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Returns the target of the notification, listing only the rooms that have not yet received the notification.
+         *
+         * @return The target of the notification.
+         */
+        public HipChatTarget getTarget() {
+            return target;
+        }
+
+        public Notification getNotification() {
+            return notification;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package jenkins.plugins.hipchat.delivery;
+
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import hudson.Util;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+/**
+ * A token bucket that paces the requests sent with a given auth token, so that the HipChat rate limits are not
+ * exceeded. The bucket starts out from the documented limits, and is resynchronized with the actual state of the
+ * server side limit whenever a response carries the <code>X-Ratelimit-*</code> headers.
+ */
+public final class RateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(RateLimiter.class.getName());
+    private static final String LIMIT_HEADER = "X-Ratelimit-Limit";
+    private static final String REMAINING_HEADER = "X-Ratelimit-Remaining";
+    private static final String RESET_HEADER = "X-Ratelimit-Reset";
+    private static final int TOO_MANY_REQUESTS = 429;
+    /**
+     * The length of the rate limiting window, as documented by HipChat.
+     */
+    private static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    /**
+     * Limiters that have not been used for this long have been fully replenished, so they can be recreated on demand.
+     */
+    private static final long IDLE_MILLIS = 3 * WINDOW_MILLIS;
+    private static final Cache<String, RateLimiter> LIMITERS = CacheBuilder.newBuilder()
+            .expireAfterAccess(IDLE_MILLIS, TimeUnit.MILLISECONDS)
+            .build();
+
+    private final Ticker ticker;
+    /**
+     * The difference between the wall clock and the ticker, so that the reset times reported by HipChat can be
+     * converted to ticker time.
+     */
+    private final long clockOffset;
+    private double capacity;
+    private double available;
+    private double refillPerMilli;
+    private long lastRefill;
+
+    RateLimiter(int limit, Ticker ticker) {
+        this.ticker = ticker;
+        this.clockOffset = System.currentTimeMillis() - now();
+        this.capacity = limit;
+        this.available = limit;
+        this.refillPerMilli = limit / (double) WINDOW_MILLIS;
+        this.lastRefill = now();
+    }
+
+    /**
+     * Returns the rate limiter shared by all the requests sent to the given server with the given auth token.
+     *
+     * @param server The HipChat server.
+     * @param token The auth token used to send the requests.
+     * @param defaultLimit The number of requests allowed in a five minute window, used until the server reports the
+     * actual limit.
+     * @return The shared rate limiter.
+     */
+    public static RateLimiter forToken(String server, String token, final int defaultLimit) {
+        try {
+            return LIMITERS.get(Util.getDigestOf(server + ':' + token), new Callable<RateLimiter>() {
+
+                @Override
+                public RateLimiter call() {
+                    return new RateLimiter(defaultLimit, Ticker.systemTicker());
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    /**
+     * Reserves a permit for a single request.
+     *
+     * @return The number of milliseconds the caller has to wait before sending the request, or 0 if the request can be
+     * sent immediately.
+     */
+    public synchronized long reserve() {
+        refill();
+        available -= 1;
+        if (available >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-available / refillPerMilli);
+    }
+
+    /**
+     * Resynchronizes the bucket with the rate limit information returned by HipChat.
+     *
+     * @param response The response received from HipChat.
+     */
+    public synchronized void update(HttpResponse response) {
+        Long limit = getLongHeader(response, LIMIT_HEADER);
+        Long remaining = getLongHeader(response, REMAINING_HEADER);
+        Long reset = getLongHeader(response, RESET_HEADER);
+        boolean throttled = response.getStatusLine().getStatusCode() == TOO_MANY_REQUESTS;
+        if (limit == null && remaining == null && !throttled) {
+            return;
+        }
+        refill();
+        if (limit != null && limit > 0) {
+            capacity = limit;
+        }
+        if (throttled) {
+            remaining = 0L;
+        }
+        if (remaining != null) {
+            // Requests that have been reserved but not yet answered are not yet reflected in the reported value
+            double reserved = available < 0 ? -available : 0;
+            available = Math.min(available, remaining - reserved);
+            long untilReset = reset == null ? WINDOW_MILLIS : reset * 1000 - clockOffset - now();
+            if (untilReset > 0) {
+                refillPerMilli = Math.max(capacity - available, 1) / untilReset;
+            }
+            LOGGER.log(Level.FINE, "HipChat rate limit resynchronized: {0} of {1} requests remaining, reset in {2}ms",
+                    new Object[]{remaining, capacity, untilReset});
+        }
+    }
+
+    private void refill() {
+        long now = now();
+        available = Math.min(capacity, available + (now - lastRefill) * refillPerMilli);
+        if (available >= capacity) {
+            // The window has been fully replenished, return to the steady rate
+            refillPerMilli = capacity / WINDOW_MILLIS;
+        }
+        lastRefill = now;
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+
+    private static Long getLongHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        if (header != null) {
+            try {
+                return Long.valueOf(header.getValue().trim());
+            } catch (NumberFormatException nfe) {
+                LOGGER.log(Level.FINE, "Ignoring invalid {0} header: {1}", new Object[]{name, header.getValue()});
+            }
+        }
+        return null;
+    }
+}
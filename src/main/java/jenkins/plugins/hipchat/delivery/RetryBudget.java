@@ -0,0 +1,78 @@
+package jenkins.plugins.hipchat.delivery;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of retries across all the notifications sent by this Jenkins instance to a fraction of the
+ * initial requests. During a HipChat outage every request fails, and without a budget each of them would be retried
+ * multiple times, amplifying the load on a service that is already struggling.
+ * <p>
+ * Every initial request deposits {@link #RETRY_RATIO} into the budget, every retry withdraws one. A small number of
+ * retries per second is always allowed, so that low traffic instances can still recover from occasional failures.
+ */
+public final class RetryBudget {
+
+    private static final RetryBudget INSTANCE = new RetryBudget(Ticker.systemTicker());
+    /**
+     * The fraction of the initial requests that may be retried.
+     */
+    static final double RETRY_RATIO = 0.2;
+    private static final double MIN_RETRIES_PER_SECOND = 1;
+    private static final double MAX_BALANCE = 100;
+    /**
+     * Allows a freshly started instance to retry a few requests before any traffic has been recorded.
+     */
+    private static final double INITIAL_BALANCE = 10;
+
+    private final Ticker ticker;
+    private double balance;
+    private long lastRefill;
+
+    RetryBudget(Ticker ticker) {
+        this.ticker = ticker;
+        this.balance = INITIAL_BALANCE;
+        this.lastRefill = ticker.read();
+    }
+
+    /**
+     * Returns the process-wide retry budget.
+     *
+     * @return The retry budget.
+     */
+    public static RetryBudget get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records an initial (non-retry) request.
+     */
+    public synchronized void recordRequest() {
+        refill();
+        balance = Math.min(MAX_BALANCE, balance + RETRY_RATIO);
+    }
+
+    /**
+     * Attempts to withdraw a single retry from the budget.
+     *
+     * @return <code>true</code> if the retry is allowed.
+     */
+    public synchronized boolean tryRetry() {
+        refill();
+        if (balance >= 1) {
+            balance -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private void refill() {
+        long now = ticker.read();
+        double elapsedSeconds = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastRefill = now;
+        // The minimum rate only tops the balance up to a single retry, it does not accumulate
+        if (balance < 1) {
+            balance = Math.min(1, balance + elapsedSeconds * MIN_RETRIES_PER_SECOND);
+        }
+    }
+}
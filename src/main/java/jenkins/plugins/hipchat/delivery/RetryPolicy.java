@@ -0,0 +1,103 @@
+package jenkins.plugins.hipchat.delivery;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLException;
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Decides whether a failed delivery to a room should be attempted again, and how long to wait before doing so. Only
+ * transient failures are retried: connection failures, throttled requests (429) and server errors (5xx). Requests that
+ * HipChat has rejected as invalid (e.g. 400, 401 or 404) would fail the same way on every attempt.
+ * <p>
+ * The delay between the attempts grows exponentially, and is randomized (full jitter) so that the retries of
+ * notifications that failed at the same time do not hit HipChat at the same time again.
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(4, 500, TimeUnit.SECONDS.toMillis(30),
+            TimeUnit.MINUTES.toMillis(2));
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long deadlineMillis;
+
+    /**
+     * Creates a new retry policy.
+     *
+     * @param maxAttempts The maximum number of attempts per room, including the initial one.
+     * @param baseDelayMillis The upper bound of the delay before the first retry.
+     * @param maxDelayMillis The upper bound of the delay between any two attempts.
+     * @param deadlineMillis The time after which a notification is no longer retried, measured from the moment the
+     * notification was published.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long deadlineMillis) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Tells whether the failure is transient, and as such the delivery may succeed if attempted again.
+     *
+     * @param outcome The outcome of the failed delivery.
+     * @return <code>true</code> if the delivery can be retried.
+     */
+    public boolean isRetryable(RoomOutcome outcome) {
+        if (outcome.isSuccessful()) {
+            return false;
+        }
+        int responseCode = outcome.getResponseCode();
+        if (responseCode != 0) {
+            return responseCode == 408 || responseCode == 429 || (responseCode >= 500 && responseCode != 501);
+        }
+        Throwable cause = outcome.getFailure().getCause();
+        return cause instanceof IOException && !(cause instanceof UnknownHostException)
+                && !(cause instanceof SSLException);
+    }
+
+    /**
+     * Tells whether the failed request has certainly not been processed by HipChat, so that retrying it cannot result
+     * in a duplicate message. This is the case when the connection could not be established, when no request was sent
+     * at all, or when HipChat has explicitly refused to process the request (429 and 503).
+     *
+     * @param outcome The outcome of the failed delivery.
+     * @return <code>true</code> if the notification has not been delivered.
+     */
+    public boolean isSafeToRetry(RoomOutcome outcome) {
+        if (outcome.isSuccessful()) {
+            return false;
+        }
+        int responseCode = outcome.getResponseCode();
+        if (responseCode != 0) {
+            return responseCode == 429 || responseCode == 503;
+        }
+        Throwable cause = outcome.getFailure().getCause();
+        return cause == null || cause instanceof ConnectException || cause instanceof ConnectTimeoutException;
+    }
+
+    /**
+     * Returns the randomized delay to wait before the given attempt.
+     *
+     * @param attempt The number of the upcoming attempt, the first retry being attempt number 2.
+     * @return The delay in milliseconds.
+     */
+    public long getDelay(int attempt) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 2, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
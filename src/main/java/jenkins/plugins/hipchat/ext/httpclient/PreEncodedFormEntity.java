@@ -0,0 +1,88 @@
+package jenkins.plugins.hipchat.ext.httpclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Collections;
+import org.apache.http.Consts;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicNameValuePair;
+
+/**
+ * A repeatable URL encoded form entity that consists of a shared, already encoded body, and a small set of request
+ * specific parameters. This allows the bulk of the form to be encoded only once, even if it is sent in multiple
+ * requests (possibly concurrently).
+ */
+public class PreEncodedFormEntity extends AbstractHttpEntity {
+
+    private static final String CONTENT_TYPE = ContentType.create(URLEncodedUtils.CONTENT_TYPE, Consts.UTF_8)
+            .toString();
+    private final byte[] sharedContent;
+    private final byte[] specificContent;
+
+    private PreEncodedFormEntity(byte[] sharedContent, byte[] specificContent) {
+        this.sharedContent = sharedContent;
+        this.specificContent = specificContent;
+        setContentType(CONTENT_TYPE);
+    }
+
+    /**
+     * URL encodes the provided form parameters.
+     *
+     * @param parameters The form parameters to encode.
+     * @return The UTF-8 encoded form body.
+     */
+    public static byte[] encode(Iterable<? extends NameValuePair> parameters) {
+        return URLEncodedUtils.format(parameters, Consts.UTF_8).getBytes(Consts.UTF_8);
+    }
+
+    /**
+     * Creates a new form entity by appending a single parameter to the already encoded form body.
+     *
+     * @param sharedContent The already encoded form body as returned by {@link #encode(java.lang.Iterable)}. The array
+     * is not copied and MUST NOT be modified afterwards.
+     * @param name The name of the request specific parameter.
+     * @param value The value of the request specific parameter.
+     * @return The form entity.
+     */
+    public static PreEncodedFormEntity withParameter(byte[] sharedContent, String name, String value) {
+        byte[] parameter = encode(Collections.singletonList(new BasicNameValuePair(name, value)));
+        byte[] specificContent = new byte[parameter.length + 1];
+        specificContent[0] = '&';
+        System.arraycopy(parameter, 0, specificContent, 1, parameter.length);
+        return new PreEncodedFormEntity(sharedContent, specificContent);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return sharedContent.length + specificContent.length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new SequenceInputStream(new ByteArrayInputStream(sharedContent),
+                new ByteArrayInputStream(specificContent));
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        outstream.write(sharedContent);
+        outstream.write(specificContent);
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
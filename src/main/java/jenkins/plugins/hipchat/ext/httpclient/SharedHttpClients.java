@@ -0,0 +1,369 @@
+package jenkins.plugins.hipchat.ext.httpclient;
+
+import hudson.ProxyConfiguration;
+import hudson.Util;
+import hudson.init.Terminator;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.ProxyAuthenticationStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Keeps track of the process-wide pooled HTTP clients used to talk to HipChat. There is one blocking and one
+ * non-blocking client for each HipChat server, and the clients are only rebuilt when the Jenkins proxy configuration
+ * changes, or when they are explicitly invalidated (i.e. when the global configuration is saved with a different
+ * server). Since the clients are shared, callers MUST NOT close the returned clients, only the responses obtained from
+ * them. All the clients use the shared {@link TLSContext}, so TLS sessions are resumed across clients as well.
+ * <p>
+ * Replaced clients are retired rather than closed right away: they are only closed a minute later, so that the
+ * requests that are still in flight can complete.
+ */
+public final class SharedHttpClients {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedHttpClients.class.getName());
+    private static final int MAX_CONNECTIONS = 50;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 10;
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+    private static final int IO_THREAD_COUNT = 2;
+    private static final long MAX_IDLE_SECONDS = 30;
+    /**
+     * Well above the request timeouts, so that retired clients are idle by the time they are closed.
+     */
+    private static final long RETIRE_DELAY_SECONDS = 60;
+    private static final ConcurrentMap<String, SharedClient> CLIENTS = new ConcurrentHashMap<>();
+
+    private SharedHttpClients() {
+    }
+
+    /**
+     * Returns the pooled blocking HTTP client that should be used to send requests to the given HipChat server.
+     *
+     * @param server The HipChat server the client will talk to.
+     * @param requestConfig The default request configuration to use when a new client needs to be created.
+     * @return The shared HTTP client corresponding to the server and the current proxy settings.
+     */
+    public static CloseableHttpClient get(String server, RequestConfig requestConfig) {
+        SharedClient sharedClient = getSharedClient(server);
+        CloseableHttpClient httpClient = sharedClient.httpClient;
+        if (httpClient == null) {
+            synchronized (sharedClient) {
+                httpClient = sharedClient.httpClient;
+                if (httpClient == null) {
+                    sharedClient.connectionManager = createConnectionManager();
+                    httpClient = createHttpClient(sharedClient.proxy, requestConfig, sharedClient.connectionManager);
+                    sharedClient.httpClient = httpClient;
+                }
+            }
+        }
+        return httpClient;
+    }
+
+    /**
+     * Returns the pooled non-blocking HTTP client that should be used to send requests to the given HipChat server.
+     * The I/O reactor of the returned client is already started and is shared by all the in-flight requests to the
+     * server.
+     *
+     * @param server The HipChat server the client will talk to.
+     * @param requestConfig The default request configuration to use when a new client needs to be created.
+     * @return The shared asynchronous HTTP client corresponding to the server and the current proxy settings.
+     * @throws IOException If the I/O reactor of the client could not be created.
+     */
+    public static CloseableHttpAsyncClient getAsync(String server, RequestConfig requestConfig) throws IOException {
+        SharedClient sharedClient = getSharedClient(server);
+        CloseableHttpAsyncClient asyncHttpClient = sharedClient.asyncHttpClient;
+        if (asyncHttpClient == null) {
+            synchronized (sharedClient) {
+                asyncHttpClient = sharedClient.asyncHttpClient;
+                if (asyncHttpClient == null) {
+                    final PoolingNHttpClientConnectionManager connectionManager =
+                            createAsyncConnectionManager(requestConfig);
+                    sharedClient.asyncConnectionManager = connectionManager;
+                    asyncHttpClient = createAsyncHttpClient(sharedClient.proxy, requestConfig, connectionManager);
+                    asyncHttpClient.start();
+                    sharedClient.evictor = Timer.get().scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectionManager.closeExpiredConnections();
+                            connectionManager.closeIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS);
+                        }
+                    }, MAX_IDLE_SECONDS, MAX_IDLE_SECONDS, TimeUnit.SECONDS);
+                    sharedClient.asyncHttpClient = asyncHttpClient;
+                }
+            }
+        }
+        return asyncHttpClient;
+    }
+
+    /**
+     * Creates a new blocking HTTP client that is not pooled, but is otherwise configured the same way as the shared
+     * clients. The caller is responsible for closing the returned client.
+     *
+     * @param requestConfig The default request configuration of the client.
+     * @return The new HTTP client, using the current proxy settings.
+     */
+    public static CloseableHttpClient createUnpooled(RequestConfig requestConfig) {
+        HttpClientBuilder httpClientBuilder = HttpClients.custom()
+                .setDefaultRequestConfig(requestConfig)
+                .setSSLSocketFactory(new TLSSocketFactory());
+        configureProxy(httpClientBuilder, getProxyConfiguration());
+        return httpClientBuilder.build();
+    }
+
+    /**
+     * Returns the connection pool statistics summed up over all the currently pooled HTTP clients.
+     *
+     * @param async Whether to return the statistics of the non-blocking or the blocking clients.
+     * @return The total pool statistics.
+     */
+    public static PoolStats getTotalStats(boolean async) {
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        int max = 0;
+        for (SharedClient sharedClient : CLIENTS.values()) {
+            PoolStats stats = null;
+            if (async && sharedClient.asyncConnectionManager != null) {
+                stats = sharedClient.asyncConnectionManager.getTotalStats();
+            } else if (!async && sharedClient.connectionManager != null) {
+                stats = sharedClient.connectionManager.getTotalStats();
+            }
+            if (stats != null) {
+                leased += stats.getLeased();
+                pending += stats.getPending();
+                available += stats.getAvailable();
+                max += stats.getMax();
+            }
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
+    /**
+     * Retires all the currently pooled HTTP clients. New clients will be lazily created on next use, while the
+     * requests that are still in flight can complete on the retired clients.
+     */
+    public static void invalidate() {
+        for (String server : CLIENTS.keySet()) {
+            SharedClient sharedClient = CLIENTS.remove(server);
+            if (sharedClient != null) {
+                retire(sharedClient);
+            }
+        }
+    }
+
+    /**
+     * Closes all the currently pooled HTTP clients right away.
+     */
+    @Terminator
+    public static void closeAll() {
+        for (String server : CLIENTS.keySet()) {
+            SharedClient sharedClient = CLIENTS.remove(server);
+            if (sharedClient != null) {
+                sharedClient.close();
+            }
+        }
+    }
+
+    private static SharedClient getSharedClient(String server) {
+        ProxyConfiguration proxy = getProxyConfiguration();
+        while (true) {
+            SharedClient sharedClient = CLIENTS.get(server);
+            if (sharedClient != null && sharedClient.usesProxy(proxy)) {
+                return sharedClient;
+            }
+            SharedClient created = new SharedClient(proxy);
+            if (sharedClient == null) {
+                if (CLIENTS.putIfAbsent(server, created) == null) {
+                    return created;
+                }
+            } else if (CLIENTS.replace(server, sharedClient, created)) {
+                LOGGER.log(Level.FINE, "Proxy configuration has changed, recreating HTTP clients for {0}", server);
+                retire(sharedClient);
+                return created;
+            }
+            // Lost the race against another thread, use its client
+        }
+    }
+
+    private static void retire(final SharedClient sharedClient) {
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                sharedClient.close();
+            }
+        }, RETIRE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static PoolingHttpClientConnectionManager createConnectionManager() {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new TLSSocketFactory())
+                .build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+        return connectionManager;
+    }
+
+    private static CloseableHttpClient createHttpClient(ProxyConfiguration proxy, RequestConfig requestConfig,
+            PoolingHttpClientConnectionManager connectionManager) {
+        HttpClientBuilder httpClientBuilder = HttpClients.custom()
+                .setDefaultRequestConfig(requestConfig)
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .evictExpiredConnections()
+                .evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS);
+        configureProxy(httpClientBuilder, proxy);
+        return httpClientBuilder.build();
+    }
+
+    private static void configureProxy(HttpClientBuilder httpClientBuilder, ProxyConfiguration proxy) {
+        if (proxy != null) {
+            httpClientBuilder.setRoutePlanner(new ProxyRoutePlanner(proxy));
+            if (Util.fixEmpty(proxy.getUserName()) != null) {
+                httpClientBuilder.setDefaultCredentialsProvider(createProxyCredentialsProvider(proxy));
+                httpClientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
+            }
+        }
+    }
+
+    private static PoolingNHttpClientConnectionManager createAsyncConnectionManager(RequestConfig requestConfig)
+            throws IOReactorException {
+        Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", new TLSIOSessionStrategy())
+                .build();
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(IO_THREAD_COUNT)
+                .setConnectTimeout(requestConfig.getConnectTimeout())
+                .setSoTimeout(requestConfig.getSocketTimeout())
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(ioReactorConfig), registry);
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        return connectionManager;
+    }
+
+    private static CloseableHttpAsyncClient createAsyncHttpClient(ProxyConfiguration proxy,
+            RequestConfig requestConfig, PoolingNHttpClientConnectionManager connectionManager) {
+        HttpAsyncClientBuilder httpClientBuilder = HttpAsyncClients.custom()
+                .setDefaultRequestConfig(requestConfig)
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE);
+
+        if (proxy != null) {
+            httpClientBuilder.setRoutePlanner(new ProxyRoutePlanner(proxy));
+            if (Util.fixEmpty(proxy.getUserName()) != null) {
+                httpClientBuilder.setDefaultCredentialsProvider(createProxyCredentialsProvider(proxy));
+                httpClientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
+            }
+        }
+
+        return httpClientBuilder.build();
+    }
+
+    private static BasicCredentialsProvider createProxyCredentialsProvider(ProxyConfiguration proxy) {
+        BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        credentialsProvider.setCredentials(new AuthScope(proxy.name, proxy.port),
+                new UsernamePasswordCredentials(proxy.getUserName(), proxy.getPassword()));
+        return credentialsProvider;
+    }
+
+    private static ProxyConfiguration getProxyConfiguration() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins == null ? null : jenkins.proxy;
+    }
+
+    private static boolean isSameProxy(ProxyConfiguration proxy, ProxyConfiguration other) {
+        if (proxy == other) {
+            return true;
+        }
+        if (proxy == null || other == null) {
+            return false;
+        }
+        return proxy.port == other.port && Util.fixNull(proxy.name).equals(Util.fixNull(other.name))
+                && Util.fixNull(proxy.noProxyHost).equals(Util.fixNull(other.noProxyHost))
+                && Util.fixNull(proxy.getUserName()).equals(Util.fixNull(other.getUserName()))
+                && Util.fixNull(proxy.getPassword()).equals(Util.fixNull(other.getPassword()));
+    }
+
+    private static class SharedClient {
+
+        private final ProxyConfiguration proxy;
+        /**
+         * The last proxy configuration instance found to be equivalent to {@link #proxy}, so that the settings are
+         * only compared again once Jenkins has replaced its proxy configuration.
+         */
+        private volatile ProxyConfiguration checkedProxy;
+        private volatile CloseableHttpClient httpClient;
+        private volatile CloseableHttpAsyncClient asyncHttpClient;
+        private volatile PoolingHttpClientConnectionManager connectionManager;
+        private volatile PoolingNHttpClientConnectionManager asyncConnectionManager;
+        private ScheduledFuture<?> evictor;
+
+        private SharedClient(ProxyConfiguration proxy) {
+            this.proxy = proxy;
+            this.checkedProxy = proxy;
+        }
+
+        private boolean usesProxy(ProxyConfiguration current) {
+            if (current == checkedProxy) {
+                return true;
+            }
+            if (isSameProxy(proxy, current)) {
+                checkedProxy = current;
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized void close() {
+            if (evictor != null) {
+                evictor.cancel(false);
+            }
+            closeQuietly(httpClient);
+            closeQuietly(asyncHttpClient);
+        }
+
+        private void closeQuietly(Closeable closeable) {
+            if (closeable != null) {
+                try {
+                    closeable.close();
+                } catch (IOException ioe) {
+                    LOGGER.log(Level.FINE, "Unable to close HTTP client", ioe);
+                }
+            }
+        }
+    }
+}
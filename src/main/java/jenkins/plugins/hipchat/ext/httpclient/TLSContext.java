@@ -0,0 +1,117 @@
+package jenkins.plugins.hipchat.ext.httpclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import org.apache.http.ssl.SSLContexts;
+
+/**
+ * Holds the process-wide {@link SSLContext} used by all the HTTP clients talking to HipChat. Sharing the context also
+ * shares its client session cache, so that connections opened after the first one can resume the existing TLS session
+ * (abbreviated handshake) instead of performing a full handshake. The enabled protocols and cipher suites are computed
+ * only once.
+ * <p>
+ * This class also keeps track of the number of handshakes performed and the time spent on them, so that the effect of
+ * session resumption can be observed.
+ */
+public final class TLSContext {
+
+    private static final Logger LOGGER = Logger.getLogger(TLSContext.class.getName());
+    private static final AtomicLong FULL_HANDSHAKES = new AtomicLong();
+    private static final AtomicLong RESUMED_HANDSHAKES = new AtomicLong();
+    private static final AtomicLong HANDSHAKE_NANOS = new AtomicLong();
+
+    private TLSContext() {
+    }
+
+    public static SSLContext getSSLContext() {
+        return Holder.SSL_CONTEXT;
+    }
+
+    /**
+     * Returns the enabled protocols, i.e. all the supported protocols except the SSL ones.
+     *
+     * @return The enabled protocols.
+     */
+    public static String[] getProtocols() {
+        return Holder.PROTOCOLS.clone();
+    }
+
+    /**
+     * Returns the enabled cipher suites, i.e. the default cipher suites of the JVM without the anonymous, export grade
+     * and otherwise broken ones.
+     *
+     * @return The enabled cipher suites.
+     */
+    public static String[] getCipherSuites() {
+        return Holder.CIPHER_SUITES.clone();
+    }
+
+    /**
+     * Records a completed handshake.
+     *
+     * @param session The negotiated session.
+     * @param startMillis The wall clock time when the handshake has started.
+     * @param durationNanos The time it took to complete the handshake.
+     */
+    static void recordHandshake(SSLSession session, long startMillis, long durationNanos) {
+        // A resumed session was created by an earlier handshake
+        boolean resumed = session.getCreationTime() < startMillis;
+        (resumed ? RESUMED_HANDSHAKES : FULL_HANDSHAKES).incrementAndGet();
+        HANDSHAKE_NANOS.addAndGet(durationNanos);
+        LOGGER.log(Level.FINE, "{0} TLS handshake with {1}:{2} completed in {3}ms using {4}", new Object[]{
+            resumed ? "Abbreviated" : "Full", session.getPeerHost(), session.getPeerPort(),
+            TimeUnit.NANOSECONDS.toMillis(durationNanos), session.getProtocol()});
+    }
+
+    public static long getFullHandshakeCount() {
+        return FULL_HANDSHAKES.get();
+    }
+
+    public static long getResumedHandshakeCount() {
+        return RESUMED_HANDSHAKES.get();
+    }
+
+    /**
+     * Returns the total time spent on TLS handshakes.
+     *
+     * @return The total handshake time in nanoseconds.
+     */
+    public static long getHandshakeTimeNanos() {
+        return HANDSHAKE_NANOS.get();
+    }
+
+    private static class Holder {
+
+        private static final SSLContext SSL_CONTEXT = SSLContexts.createDefault();
+        private static final String[] PROTOCOLS;
+        private static final String[] CIPHER_SUITES;
+
+        static {
+            SSLParameters supported = SSL_CONTEXT.getSupportedSSLParameters();
+            List<String> protocols = new ArrayList<>(5);
+            for (String protocol : supported.getProtocols()) {
+                if (!protocol.startsWith("SSL")) {
+                    protocols.add(protocol);
+                }
+            }
+            PROTOCOLS = protocols.toArray(new String[protocols.size()]);
+
+            List<String> cipherSuites = new ArrayList<>();
+            for (String cipherSuite : SSL_CONTEXT.getDefaultSSLParameters().getCipherSuites()) {
+                if (!cipherSuite.contains("_anon_") && !cipherSuite.contains("_NULL_")
+                        && !cipherSuite.contains("_EXPORT_") && !cipherSuite.contains("_RC4_")
+                        && !cipherSuite.contains("_DES_") && !cipherSuite.contains("_DES40_")) {
+                    cipherSuites.add(cipherSuite);
+                }
+            }
+            CIPHER_SUITES = cipherSuites.toArray(new String[cipherSuites.size()]);
+        }
+    }
+}
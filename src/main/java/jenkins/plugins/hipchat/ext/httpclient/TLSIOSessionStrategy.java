@@ -0,0 +1,41 @@
+package jenkins.plugins.hipchat.ext.httpclient;
+
+import java.io.IOException;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import org.apache.http.HttpHost;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.ssl.SSLIOSession;
+
+/**
+ * The non-blocking counterpart of {@link TLSSocketFactory}: upgrades connections to TLS using the shared
+ * {@link TLSContext}.
+ */
+public class TLSIOSessionStrategy extends SSLIOSessionStrategy {
+
+    private static final String HANDSHAKE_START_MILLIS = "hipchat.handshake.startMillis";
+    private static final String HANDSHAKE_START_NANOS = "hipchat.handshake.startNanos";
+
+    public TLSIOSessionStrategy() {
+        super(TLSContext.getSSLContext(), TLSContext.getProtocols(), TLSContext.getCipherSuites(),
+                getDefaultHostnameVerifier());
+    }
+
+    @Override
+    public SSLIOSession upgrade(HttpHost host, IOSession iosession) throws IOException {
+        iosession.setAttribute(HANDSHAKE_START_MILLIS, System.currentTimeMillis());
+        iosession.setAttribute(HANDSHAKE_START_NANOS, System.nanoTime());
+        return super.upgrade(host, iosession);
+    }
+
+    @Override
+    protected void verifySession(HttpHost host, IOSession iosession, SSLSession sslsession) throws SSLException {
+        super.verifySession(host, iosession, sslsession);
+        Object startMillis = iosession.removeAttribute(HANDSHAKE_START_MILLIS);
+        Object startNanos = iosession.removeAttribute(HANDSHAKE_START_NANOS);
+        if (startMillis instanceof Long && startNanos instanceof Long) {
+            TLSContext.recordHandshake(sslsession, (Long) startMillis, System.nanoTime() - (Long) startNanos);
+        }
+    }
+}
@@ -1,27 +1,31 @@
 package jenkins.plugins.hipchat.ext.httpclient;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.SSLSocket;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.ssl.SSLContexts;
 
+/**
+ * Creates TLS sockets using the shared {@link TLSContext}, so that TLS sessions can be resumed across connections.
+ */
 public class TLSSocketFactory extends SSLConnectionSocketFactory {
 
     public TLSSocketFactory() {
-        super(SSLContexts.createDefault(), getDefaultHostnameVerifier());
+        super(TLSContext.getSSLContext(), TLSContext.getProtocols(), TLSContext.getCipherSuites(),
+                getDefaultHostnameVerifier());
     }
 
     @Override
     protected void prepareSocket(SSLSocket socket) throws IOException {
-        String[] supportedProtocols = socket.getSupportedProtocols();
-        List<String> protocols = new ArrayList<String>(5);
-        for (String supportedProtocol : supportedProtocols) {
-            if (!supportedProtocol.startsWith("SSL")) {
-                protocols.add(supportedProtocol);
+        final long startMillis = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                TLSContext.recordHandshake(event.getSession(), startMillis, System.nanoTime() - startNanos);
+                event.getSocket().removeHandshakeCompletedListener(this);
             }
-        }
-        socket.setEnabledProtocols(protocols.toArray(new String[protocols.size()]));
+        });
     }
 }
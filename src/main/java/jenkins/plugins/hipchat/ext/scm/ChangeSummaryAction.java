@@ -0,0 +1,135 @@
+package jenkins.plugins.hipchat.ext.scm;
+
+import static java.util.logging.Level.*;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.ChangeLogSet.Entry;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+import jenkins.plugins.hipchat.Messages;
+import jenkins.plugins.hipchat.utils.TokenMacroUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A summary of the changes included in a build, computed once when the changelog of each checkout is parsed, so that
+ * the change related macros do not need to walk the changelog again for every notification. Builds with multiple
+ * checkouts aggregate the changes of all of them, counting each commit only once when the same repository is checked
+ * out more than once.
+ */
+public class ChangeSummaryAction extends InvisibleAction {
+
+    private static final Logger LOGGER = Logger.getLogger(ChangeSummaryAction.class.getName());
+
+    private final Set<String> authors = new LinkedHashSet<>();
+    /**
+     * The IDs of the commits added so far, <code>null</code> in summaries recorded before commits were tracked.
+     */
+    private Set<String> commitIds;
+    private int changedFiles;
+    private String lastMessage;
+    private String lastMessageEscaped;
+
+    /**
+     * Returns the summary of the changes of a build. Builds that do not have a recorded summary, such as the ones
+     * started before this action was introduced, are summarized from their (first) changelog.
+     *
+     * @param run The build.
+     * @return The summary.
+     */
+    public static ChangeSummaryAction get(Run<?, ?> run) {
+        ChangeSummaryAction summary = run.getAction(ChangeSummaryAction.class);
+        if (summary == null) {
+            summary = new ChangeSummaryAction();
+            ChangeLogSet<? extends Entry> changeSet;
+            if (run instanceof AbstractBuild) {
+                AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) run;
+                if (!build.hasChangeSetComputed()) {
+                    LOGGER.log(FINE, "No changeset computed for job {0}", build.getProject().getFullDisplayName());
+                    return summary;
+                }
+                changeSet = build.getChangeSet();
+            } else {
+                changeSet = TokenMacroUtils.getFirstChangeSet(run);
+            }
+            if (changeSet != null) {
+                summary.add(changeSet);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Adds the changes of a changelog to the summary.
+     *
+     * @param changeSet The changelog of a checkout.
+     */
+    public synchronized void add(ChangeLogSet<? extends Entry> changeSet) {
+        Object[] items = changeSet.getItems();
+        if (items == null) {
+            return;
+        }
+        if (commitIds == null) {
+            commitIds = new HashSet<>();
+        }
+        for (Object o : items) {
+            Entry entry = (Entry) o;
+            LOGGER.log(FINEST, "Entry {0}", entry);
+            String commitId = entry.getCommitId();
+            if (commitId != null && !commitIds.add(commitId)) {
+                LOGGER.log(FINEST, "Skipping commit {0}, it has already been added", commitId);
+                continue;
+            }
+
+            User author = entry.getAuthor();
+            if (author == null) {
+                //author may be null in certain cases with git
+                author = User.getUnknown();
+            }
+            authors.add(author.getDisplayName());
+            try {
+                changedFiles += entry.getAffectedFiles().size();
+            } catch (UnsupportedOperationException uoe) {
+                LOGGER.log(FINE, "Unable to collect the affected files", uoe);
+            }
+        }
+        if (items.length > 0) {
+            Entry last = (Entry) items[items.length - 1];
+            lastMessage = firstLine(last.getMsg());
+            lastMessageEscaped = firstLine(last.getMsgEscaped());
+        }
+    }
+
+    /**
+     * Returns the description of the changes, naming the authors and the number of changed files.
+     *
+     * @return The description, or <code>null</code> if the build has no changes.
+     */
+    public synchronized String getDescription() {
+        if (changedFiles == 0 && authors.isEmpty()) {
+            LOGGER.log(FINE, "No changes detected");
+            return null;
+        }
+        return Messages.StartWithChanges(StringUtils.join(authors, ", "), changedFiles);
+    }
+
+    /**
+     * Returns the first line of the message of the last change.
+     *
+     * @param escaped Whether the message should be HTML escaped.
+     * @return The message, or an empty string if the build has no changes.
+     */
+    public synchronized String getLastMessage(boolean escaped) {
+        return Util.fixNull(escaped ? lastMessageEscaped : lastMessage);
+    }
+
+    private static String firstLine(String message) {
+        return Util.fixNull(message).split("\r?\n")[0];
+    }
+}
@@ -0,0 +1,35 @@
+package jenkins.plugins.hipchat.ext.scm;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.SCM;
+
+/**
+ * Records the {@link ChangeSummaryAction} of a build as the changelog of each of its checkouts is parsed.
+ */
+@Extension
+public class ChangeSummaryListener extends SCMListener {
+
+    /**
+     * Guards attaching the summary to a build. Builds are locked by Jenkins itself while being saved, hence a private
+     * lock is used to avoid contending with those.
+     */
+    private static final Object ATTACH_LOCK = new Object();
+
+    @Override
+    public void onChangeLogParsed(Run<?, ?> build, SCM scm, TaskListener listener, ChangeLogSet<?> changelog) {
+        ChangeSummaryAction summary;
+        // Parallel branches of a pipeline may check out concurrently
+        synchronized (ATTACH_LOCK) {
+            summary = build.getAction(ChangeSummaryAction.class);
+            if (summary == null) {
+                summary = new ChangeSummaryAction();
+                build.addAction(summary);
+            }
+        }
+        summary.add(changelog);
+    }
+}
@@ -1,34 +1,31 @@
 package jenkins.plugins.hipchat.ext.tokens;
 
-import static java.util.logging.Level.*;
 import static jenkins.plugins.hipchat.model.Constants.*;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Sets;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.CauseAction;
 import hudson.model.Run;
 import hudson.model.TaskListener;
-import hudson.model.User;
-import hudson.scm.ChangeLogSet;
-import hudson.scm.ChangeLogSet.Entry;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.logging.Logger;
 import jenkins.plugins.hipchat.Messages;
-import jenkins.plugins.hipchat.utils.TokenMacroUtils;
-import org.apache.commons.lang.StringUtils;
+import jenkins.plugins.hipchat.ext.scm.ChangeSummaryAction;
+import jenkins.plugins.hipchat.template.MacroMemo;
 import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 
 @Extension
 public class HipchatChangesMacro extends TokenMacro {
 
-    private static final Logger LOGGER = Logger.getLogger(HipchatChangesMacro.class.getName());
     private static final List<String> SUPPORTED_TOKENS = ImmutableList.of(HIPCHAT_CHANGES, HIPCHAT_CHANGES_OR_CAUSE);
+    /**
+     * The summary of the changes is shared by both macros, an empty value stands for a build without changes.
+     */
+    private static final String CHANGES_MEMO_KEY = HIPCHAT_CHANGES + "#summary";
 
     @Override
     public boolean acceptsMacroName(String macroName) {
@@ -38,22 +35,25 @@ public class HipchatChangesMacro extends TokenMacro {
     @Override
     public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName,
             Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
-        ChangeLogSet<? extends Entry> changeLogSet = null;
-        if (!context.hasChangeSetComputed()) {
-            LOGGER.log(FINE, "No changeset computed for job {0}", context.getProject().getFullDisplayName());
-        } else {
-            changeLogSet = context.getChangeSet();
-        }
-        return getChangesOrCause(context, changeLogSet, macroName);
+        return evaluate(context, null, listener, macroName, arguments, argumentMultimap);
     }
 
     @Override
     public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName,
             Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
-        if (run instanceof AbstractBuild) {
-            return evaluate((AbstractBuild<?, ?>) run, listener, macroName, arguments, argumentMultimap);
+        MacroMemo memo = MacroMemo.current(run);
+        String changes = memo != null ? memo.get(CHANGES_MEMO_KEY) : null;
+        if (changes == null) {
+            changes = Util.fixNull(ChangeSummaryAction.get(run).getDescription());
+            if (memo != null) {
+                memo.put(CHANGES_MEMO_KEY, changes);
+            }
+        }
+
+        if (HIPCHAT_CHANGES.equals(macroName)) {
+            return !changes.isEmpty() ? changes : Messages.NoChanges();
         } else {
-            return getChangesOrCause(run, TokenMacroUtils.getFirstChangeSet(run), macroName);
+            return !changes.isEmpty() ? changes : getCause(run);
         }
     }
 
@@ -62,41 +62,6 @@ public class HipchatChangesMacro extends TokenMacro {
         return SUPPORTED_TOKENS;
     }
 
-    private String getChangesOrCause(Run<?, ?> run, ChangeLogSet<? extends Entry> changeSet, String macroName) {
-        String changes = null;
-        if (changeSet != null) {
-            Set<String> authors = Sets.newHashSet();
-            int changedFiles = 0;
-            for (Object o : changeSet.getItems()) {
-                ChangeLogSet.Entry entry = (Entry) o;
-                LOGGER.log(FINEST, "Entry {0}", entry);
-
-                User author = entry.getAuthor();
-                if (author == null) {
-                    //author may be null in certain cases with git
-                    author = User.getUnknown();
-                }
-                authors.add(author.getDisplayName());
-                try {
-                    changedFiles += entry.getAffectedFiles().size();
-                } catch (UnsupportedOperationException uoe) {
-                    LOGGER.log(FINE, "Unable to collect the affected files", uoe);
-                }
-            }
-            if (changedFiles == 0 && authors.isEmpty()) {
-                LOGGER.log(FINE, "No changes detected");
-            } else {
-                changes = Messages.StartWithChanges(StringUtils.join(authors, ", "), changedFiles);
-            }
-        }
-
-        if (HIPCHAT_CHANGES.equals(macroName)) {
-            return changes != null ? changes : Messages.NoChanges();
-        } else {
-            return changes != null ? changes : getCause(run);
-        }
-    }
-
     private String getCause(Run<?, ?> context) {
         CauseAction cause = context.getAction(CauseAction.class);
         if (cause != null) {
@@ -0,0 +1,81 @@
+package jenkins.plugins.hipchat.impl;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.hipchat.HipChatTransport;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Base class for the transports built on top of a blocking HTTP client. The requests are executed on a small dedicated
+ * thread pool, so that the callers are not blocked.
+ */
+abstract class AbstractBlockingTransport extends HipChatTransport {
+
+    private static final int MAX_THREADS = 10;
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "HipChat blocking transport"));
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the HTTP client that should execute a request.
+     *
+     * @param server The HipChat server the request is sent to.
+     * @return The HTTP client.
+     */
+    protected abstract CloseableHttpClient getHttpClient(String server);
+
+    /**
+     * Invoked once the response has been fully read.
+     *
+     * @param httpClient The HTTP client returned by {@link #getHttpClient(java.lang.String)}.
+     * @throws IOException If the HTTP client could not be released.
+     */
+    protected abstract void release(CloseableHttpClient httpClient) throws IOException;
+
+    @Override
+    public Future<HttpResponse> execute(final String server, final HttpUriRequest request,
+            FutureCallback<HttpResponse> callback) {
+        final BasicFuture<HttpResponse> future = new BasicFuture<>(callback);
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CloseableHttpClient httpClient = getHttpClient(server);
+                    try (CloseableHttpResponse response = httpClient.execute(request)) {
+                        // Buffer the response, so that the connection can be released right away
+                        HttpEntity entity = response.getEntity();
+                        if (entity != null) {
+                            response.setEntity(new ByteArrayEntity(EntityUtils.toByteArray(entity),
+                                    ContentType.get(entity)));
+                        }
+                        future.completed(response);
+                    } finally {
+                        release(httpClient);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    future.failed(ex);
+                }
+            }
+        });
+        return future;
+    }
+}
@@ -0,0 +1,41 @@
+package jenkins.plugins.hipchat.impl;
+
+import hudson.Extension;
+import java.io.IOException;
+import java.util.concurrent.Future;
+import jenkins.plugins.hipchat.HipChatTransport;
+import jenkins.plugins.hipchat.HipChatTransportDescriptor;
+import jenkins.plugins.hipchat.Messages;
+import jenkins.plugins.hipchat.ext.httpclient.SharedHttpClients;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * Sends the requests using the shared non-blocking HTTP client of the server. The requests are carried out by the I/O
+ * reactor threads of the client, so no thread is blocked while waiting for HipChat. This is the default transport.
+ */
+@Extension
+public class AsyncHipChatTransport extends HipChatTransport {
+
+    @Override
+    public Future<HttpResponse> execute(String server, HttpUriRequest request, FutureCallback<HttpResponse> callback) {
+        try {
+            return SharedHttpClients.getAsync(server, DEFAULT_REQUEST_CONFIG).execute(request, callback);
+        } catch (IOException ioe) {
+            BasicFuture<HttpResponse> future = new BasicFuture<>(callback);
+            future.failed(ioe);
+            return future;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends HipChatTransportDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.AsyncHipChatTransport();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package jenkins.plugins.hipchat.impl;
+
+import hudson.Extension;
+import java.io.IOException;
+import jenkins.plugins.hipchat.HipChatTransportDescriptor;
+import jenkins.plugins.hipchat.Messages;
+import jenkins.plugins.hipchat.ext.httpclient.SharedHttpClients;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Creates a new HTTP client (and hence a new connection) for every request. This is how notifications used to be sent
+ * before connection pooling was introduced.
+ */
+@Extension
+public class BlockingHipChatTransport extends AbstractBlockingTransport {
+
+    @Override
+    protected CloseableHttpClient getHttpClient(String server) {
+        return SharedHttpClients.createUnpooled(DEFAULT_REQUEST_CONFIG);
+    }
+
+    @Override
+    protected void release(CloseableHttpClient httpClient) throws IOException {
+        httpClient.close();
+    }
+
+    @Extension
+    public static class DescriptorImpl extends HipChatTransportDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.BlockingHipChatTransport();
+        }
+    }
+}
@@ -2,13 +2,16 @@ package jenkins.plugins.hipchat.impl;
 
 import static jenkins.plugins.hipchat.model.Constants.*;
 import static jenkins.plugins.hipchat.model.notifications.Value.Style.*;
+import static jenkins.plugins.hipchat.utils.GuiceUtils.*;
 
 import hudson.Extension;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.tasks.test.AbstractTestResultAction;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -22,9 +25,10 @@ import jenkins.plugins.hipchat.model.notifications.Attribute;
 import jenkins.plugins.hipchat.model.notifications.Card;
 import jenkins.plugins.hipchat.model.notifications.Card.Style;
 import jenkins.plugins.hipchat.model.notifications.Icon;
+import jenkins.plugins.hipchat.template.MacroMemo;
+import jenkins.plugins.hipchat.template.TemplateCache;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
-import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 
 @Extension
 public class DefaultCardProvider extends CardProvider {
@@ -40,10 +44,10 @@ public class DefaultCardProvider extends CardProvider {
         try {
             return new Card()
                     .withStyle(Style.APPLICATION)
-                    .withUrl(TokenMacro.expandAll(run, null, taskListener, Constants.BUILD_URL_MACRO))
+                    .withUrl(expand(run, taskListener, Constants.BUILD_URL_MACRO, true))
                     .withFormat(Card.Format.MEDIUM)
-                    .withId(UUID.randomUUID().toString())
-                    .withTitle(TokenMacro.expandAll(run, null, taskListener, Messages.CardTitle(), false, null))
+                    .withId(getCardId(run, message))
+                    .withTitle(expand(run, taskListener, Messages.CardTitle(), false))
                     .withIcon(icon)
                     .withAttributes(getAttributes(run, taskListener))
                     .withActivity(new Activity()
@@ -58,29 +62,48 @@ public class DefaultCardProvider extends CardProvider {
         return null;
     }
 
+    /**
+     * Derives the card ID from the build and the message, so that sending the same notification again results in the
+     * same card.
+     */
+    private String getCardId(Run<?, ?> run, String message) {
+        return UUID.nameUUIDFromBytes((run.getExternalizableId() + '/' + message).getBytes(StandardCharsets.UTF_8))
+                .toString();
+    }
+
+    /**
+     * Expands the given template through the shared template cache, so that macros that were already evaluated for
+     * the message are taken from the {@link MacroMemo} of the notification.
+     */
+    private String expand(Run<?, ?> run, TaskListener taskListener, String template, boolean throwException)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        return get(TemplateCache.class).get(template)
+                .expand(run, null, taskListener, Collections.<String, String>emptyMap(), throwException);
+    }
+
     private List<Attribute> getAttributes(Run<?, ?> run, TaskListener taskListener)
             throws IOException, InterruptedException {
         List<Attribute> ret = new ArrayList<>();
         if (run.getAction(AbstractTestResultAction.class) != null) {
             try {
-                String count = TokenMacro.expand(run, null, taskListener, SUCCESS_TEST_COUNT_MACRO);
+                String count = expand(run, taskListener, SUCCESS_TEST_COUNT_MACRO, true);
                 if (StringUtils.isNotEmpty(count)) {
                     ret.add(attribute(Messages.TestsSuccessful(), count,
                             "0".equals(count) ? LOZENGE_ERROR : LOZENGE_SUCCESS, null));
                 }
-                count = TokenMacro.expand(run, null, taskListener, FAILED_TEST_COUNT_MACRO);
+                count = expand(run, taskListener, FAILED_TEST_COUNT_MACRO, true);
                 if (StringUtils.isNotEmpty(count)) {
                     ret.add(attribute(Messages.TestsFailed(), count,
                             "0".equals(count) ? LOZENGE_SUCCESS : LOZENGE_ERROR, null));
                 }
-                count = TokenMacro.expand(run, null, taskListener, SKIPPED_TEST_COUNT_MACRO);
+                count = expand(run, taskListener, SKIPPED_TEST_COUNT_MACRO, true);
                 if (StringUtils.isNotEmpty(count)) {
                     ret.add(attribute(Messages.TestsSkipped(), count,
                             "0".equals(count) ? LOZENGE_SUCCESS : LOZENGE_CURRENT, null));
                 }
                 if (!ret.isEmpty()) {
                     ret.add(attribute(Messages.TestReport(), Messages.Here(), null,
-                            TokenMacro.expand(run, null, taskListener, TEST_REPORT_URL_MACRO)));
+                            expand(run, taskListener, TEST_REPORT_URL_MACRO, true)));
                 }
             } catch (MacroEvaluationException mee) {
                 taskListener.getLogger().println(Messages.UnresolvedMacro(mee.getMessage()));
@@ -12,6 +12,11 @@ import jenkins.plugins.hipchat.model.notifications.Icon;
 @Extension
 public class NoopCardProvider extends CardProvider {
 
+    /**
+     * Shared instance used whenever the configured card provider is not available.
+     */
+    public static final NoopCardProvider INSTANCE = new NoopCardProvider();
+
     @Override
     public Card getCard(Run<?, ?> run, TaskListener taskListener, Icon icon, String message) {
         return null;
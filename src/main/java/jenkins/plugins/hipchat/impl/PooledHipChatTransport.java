@@ -0,0 +1,34 @@
+package jenkins.plugins.hipchat.impl;
+
+import hudson.Extension;
+import jenkins.plugins.hipchat.HipChatTransportDescriptor;
+import jenkins.plugins.hipchat.Messages;
+import jenkins.plugins.hipchat.ext.httpclient.SharedHttpClients;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Sends the requests using the shared, pooled blocking HTTP client of the server, so that connections are kept alive
+ * between requests.
+ */
+@Extension
+public class PooledHipChatTransport extends AbstractBlockingTransport {
+
+    @Override
+    protected CloseableHttpClient getHttpClient(String server) {
+        return SharedHttpClients.get(server, DEFAULT_REQUEST_CONFIG);
+    }
+
+    @Override
+    protected void release(CloseableHttpClient httpClient) {
+        // The client is shared, the connection has already been returned to the pool
+    }
+
+    @Extension
+    public static class DescriptorImpl extends HipChatTransportDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.PooledHipChatTransport();
+        }
+    }
+}
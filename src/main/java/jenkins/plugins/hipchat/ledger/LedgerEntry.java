@@ -0,0 +1,181 @@
+package jenkins.plugins.hipchat.ledger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import org.apache.http.concurrent.FutureCallback;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * A single notification recorded in the {@link NotificationLedgerAction}.
+ */
+@ExportedBean(defaultVisibility = 2)
+public class LedgerEntry {
+
+    public enum Status {
+        PENDING, DELIVERED, PARTIAL, FAILED
+    }
+
+    private transient NotificationLedgerAction ledger;
+    private transient long startNanos;
+    private final String type;
+    private final String rooms;
+    private final long timestamp;
+    private volatile long blockingMillis;
+    private volatile long durationMillis;
+    private volatile Status status = Status.PENDING;
+    private volatile String error;
+    private volatile List<RoomDelivery> deliveries = Collections.emptyList();
+
+    LedgerEntry(NotificationLedgerAction ledger, String type, String rooms) {
+        this.ledger = ledger;
+        this.type = type;
+        this.rooms = rooms;
+        this.timestamp = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    void setLedger(NotificationLedgerAction ledger) {
+        this.ledger = ledger;
+    }
+
+    /**
+     * Returns the type of the notification, i.e. the name of the build notification type, or
+     * <code>hipchatSend</code> for notifications sent by the pipeline step.
+     *
+     * @return The notification type.
+     */
+    @Exported
+    public String getType() {
+        return type;
+    }
+
+    @Exported
+    public String getRooms() {
+        return rooms;
+    }
+
+    @Exported
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the time the build itself spent on sending the notification, i.e. the delay the notification added to
+     * the build.
+     *
+     * @return The time spent by the build thread in milliseconds.
+     */
+    @Exported
+    public long getBlockingMillis() {
+        return blockingMillis;
+    }
+
+    /**
+     * Returns the time it took to deliver the notification to all the rooms.
+     *
+     * @return The delivery time in milliseconds, or 0 if the notification is still pending.
+     */
+    @Exported
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Exported
+    public Status getStatus() {
+        return status;
+    }
+
+    @Exported
+    public String getError() {
+        return error;
+    }
+
+    @Exported(inline = true)
+    public List<RoomDelivery> getDeliveries() {
+        return deliveries;
+    }
+
+    /**
+     * Records the time the build has spent on the notification so far.
+     */
+    public void dispatched() {
+        blockingMillis = elapsedMillis();
+    }
+
+    /**
+     * Wraps the callback of the notification, so that the outcome of the delivery is recorded in the ledger.
+     *
+     * @param delegate The callback to invoke after the outcome has been recorded. May be null.
+     * @return The callback to pass to the dispatcher.
+     */
+    public FutureCallback<PublishReport> track(final FutureCallback<PublishReport> delegate) {
+        return new FutureCallback<PublishReport>() {
+            @Override
+            public void completed(PublishReport report) {
+                LedgerEntry.this.completed(report);
+                if (delegate != null) {
+                    delegate.completed(report);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                LedgerEntry.this.failed(ex.getMessage());
+                if (delegate != null) {
+                    delegate.failed(ex);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                LedgerEntry.this.failed("cancelled");
+                if (delegate != null) {
+                    delegate.cancelled();
+                }
+            }
+        };
+    }
+
+    /**
+     * Records the outcome of the delivery.
+     *
+     * @param report The per-room outcomes.
+     */
+    public void completed(PublishReport report) {
+        List<RoomDelivery> newDeliveries = new ArrayList<>(report.getOutcomes().size());
+        for (RoomOutcome outcome : report.getOutcomes()) {
+            newDeliveries.add(new RoomDelivery(outcome));
+        }
+        int failures = report.getFailures().size();
+        deliveries = Collections.unmodifiableList(newDeliveries);
+        status = failures == 0 ? Status.DELIVERED : failures < newDeliveries.size() ? Status.PARTIAL : Status.FAILED;
+        finish();
+    }
+
+    /**
+     * Records that the notification could not be sent at all.
+     *
+     * @param message The reason of the failure.
+     */
+    public void failed(String message) {
+        error = message;
+        status = Status.FAILED;
+        finish();
+    }
+
+    private void finish() {
+        durationMillis = elapsedMillis();
+        if (ledger != null) {
+            ledger.save();
+        }
+    }
+
+    private long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
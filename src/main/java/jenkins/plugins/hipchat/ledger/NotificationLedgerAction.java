@@ -0,0 +1,149 @@
+package jenkins.plugins.hipchat.ledger;
+
+import hudson.model.Run;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.RunAction2;
+import jenkins.plugins.hipchat.Messages;
+import jenkins.util.Timer;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Records every HipChat notification sent for a build, together with the per-room delivery details. The ledger is
+ * displayed on the build page and exposed through the remote API, e.g.
+ * <code>/job/example/1/api/json?tree=actions[entries[type,status,blockingMillis,deliveries[*]]]</code>.
+ */
+@ExportedBean
+public class NotificationLedgerAction implements RunAction2 {
+
+    private static final Logger LOGGER = Logger.getLogger(NotificationLedgerAction.class.getName());
+    /**
+     * How long to wait before saving the build, so that the outcomes of the rooms completing around the same time are
+     * persisted together.
+     */
+    private static final long SAVE_DELAY_MILLIS = 1000;
+    /**
+     * Guards attaching the ledger to a build. Builds are locked by Jenkins itself while being saved and loaded, hence
+     * a private lock is used to avoid contending with those.
+     */
+    private static final Object ATTACH_LOCK = new Object();
+
+    private final List<LedgerEntry> entries = new CopyOnWriteArrayList<>();
+    private transient Run<?, ?> run;
+    private transient Future<?> pendingSave;
+
+    /**
+     * Adds a new entry to the ledger of the build, attaching the ledger to the build if necessary.
+     *
+     * @param run The build the notification is sent for.
+     * @param type The type of the notification.
+     * @param rooms The rooms the notification is sent to.
+     * @return The new ledger entry, which should be updated once the outcome of the notification is known.
+     */
+    public static LedgerEntry record(Run<?, ?> run, String type, String rooms) {
+        NotificationLedgerAction ledger;
+        synchronized (ATTACH_LOCK) {
+            ledger = run.getAction(NotificationLedgerAction.class);
+            if (ledger == null) {
+                ledger = new NotificationLedgerAction();
+                run.addAction(ledger);
+            }
+        }
+        LedgerEntry entry = new LedgerEntry(ledger, type, rooms);
+        ledger.entries.add(entry);
+        return entry;
+    }
+
+    @Exported(inline = true)
+    public List<LedgerEntry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
+        for (LedgerEntry entry : entries) {
+            entry.setLedger(this);
+        }
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.NotificationLedger();
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * Schedules persisting the build, so that the outcome of notifications completing after the build has finished is
+     * retained. The build is saved on a timer thread rather than the thread reporting the outcome, which may be an I/O
+     * thread of the HTTP client, and several outcomes reported in short succession are saved at once.
+     */
+    void save() {
+        synchronized (this) {
+            if (pendingSave != null) {
+                return;
+            }
+            pendingSave = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (NotificationLedgerAction.this) {
+                        pendingSave = null;
+                    }
+                    saveNow();
+                }
+            }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Waits for the scheduled save, if any, to complete.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws ExecutionException If the save has failed unexpectedly.
+     */
+    void awaitSave() throws InterruptedException, ExecutionException {
+        Future<?> save;
+        synchronized (this) {
+            save = pendingSave;
+        }
+        if (save != null) {
+            save.get();
+        }
+    }
+
+    private void saveNow() {
+        if (run != null) {
+            try {
+                run.save();
+            } catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "Unable to save the HipChat notification ledger of " + run, ioe);
+            }
+        }
+    }
+}
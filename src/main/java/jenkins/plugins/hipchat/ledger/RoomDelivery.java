@@ -0,0 +1,67 @@
+package jenkins.plugins.hipchat.ledger;
+
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The persisted outcome of delivering a notification to a single room.
+ */
+@ExportedBean(defaultVisibility = 3)
+public class RoomDelivery {
+
+    private final String room;
+    private final int responseCode;
+    private final long latencyMillis;
+    private final int retries;
+    private final long bytesSent;
+    private final String error;
+
+    RoomDelivery(RoomOutcome outcome) {
+        this.room = outcome.getRoomId();
+        this.responseCode = outcome.getResponseCode();
+        this.latencyMillis = outcome.getDurationMillis();
+        this.retries = Math.max(0, outcome.getAttempts() - 1);
+        this.bytesSent = outcome.getBytesSent();
+        this.error = outcome.getFailure() == null ? null : outcome.getFailure().getMessage();
+    }
+
+    @Exported
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns the HTTP response code received from HipChat.
+     *
+     * @return The HTTP response code, or 0 if no response was received.
+     */
+    @Exported
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Exported
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    @Exported
+    public int getRetries() {
+        return retries;
+    }
+
+    @Exported
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Exported
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccessful() {
+        return error == null;
+    }
+}
@@ -0,0 +1,296 @@
+package jenkins.plugins.hipchat.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.plugins.hipchat.delivery.CircuitBreaker;
+import jenkins.plugins.hipchat.ext.httpclient.SharedHttpClients;
+import jenkins.plugins.hipchat.ext.httpclient.TLSContext;
+import jenkins.plugins.hipchat.model.NotificationType;
+import jenkins.plugins.hipchat.model.PublishReport;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Collects the process-wide metrics of the HipChat notifications, and renders them in the Prometheus text exposition
+ * format. Recording a metric only updates {@link StripedCounter}s, so that the metrics do not introduce contention on
+ * the publish path. The per room metrics are limited to {@link #MAX_ROOM_SERIES} distinct rooms, any further rooms are
+ * reported under the <code>other</code> room label.
+ */
+public final class HipChatMetrics {
+
+    private static final HipChatMetrics INSTANCE = new HipChatMetrics();
+    static final int MAX_ROOM_SERIES = 200;
+    static final String OTHER_ROOM = "other";
+    static final String NO_RESPONSE = "none";
+
+    private final ConcurrentMap<List<String>, Histogram> publishDurations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<String>, Histogram> requestDurations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<String>, StripedCounter> responses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<String>, StripedCounter> notifications = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<String>, StripedCounter> retries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<String>, StripedCounter> rejections = new ConcurrentHashMap<>();
+    private final StripedCounter inFlight = new StripedCounter();
+    private final AtomicInteger roomSeries = new AtomicInteger();
+
+    HipChatMetrics() {
+    }
+
+    /**
+     * Returns the process-wide metrics registry.
+     *
+     * @return The metrics registry.
+     */
+    public static HipChatMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records that a request is about to be sent to HipChat. Every started request MUST be followed by a call to
+     * {@link #requestCompleted(String, String, int, long)}.
+     */
+    public void requestStarted() {
+        inFlight.increment();
+    }
+
+    /**
+     * Records the outcome of a single request sent to HipChat.
+     *
+     * @param server The HipChat server.
+     * @param roomId The notified room.
+     * @param responseCode The HTTP response code, or 0 if no response was received.
+     * @param durationNanos The time it took to complete the request.
+     */
+    public void requestCompleted(String server, String roomId, int responseCode, long durationNanos) {
+        inFlight.decrement();
+        roomHistogram(server, roomId).observe(durationNanos);
+        counter(responses, labels(server, responseCode == 0 ? NO_RESPONSE : String.valueOf(responseCode)))
+                .increment();
+    }
+
+    /**
+     * Records the end-to-end delivery of a notification to all of its rooms, including any retries and delays.
+     *
+     * @param server The HipChat server.
+     * @param durationNanos The time it took to deliver the notification.
+     */
+    public void publishCompleted(String server, long durationNanos) {
+        histogram(publishDurations, labels(server)).observe(durationNanos);
+    }
+
+    public void recordRetry(String server) {
+        counter(retries, labels(server)).increment();
+    }
+
+    /**
+     * Records a request that was not sent because the circuit breaker of the server was open.
+     *
+     * @param server The HipChat server.
+     */
+    public void recordRejection(String server) {
+        counter(rejections, labels(server)).increment();
+    }
+
+    /**
+     * Records the outcome of a build notification.
+     *
+     * @param notificationType The type of the notification.
+     * @param report The delivery report, or <code>null</code> if the delivery could not be attempted.
+     */
+    public void recordNotification(NotificationType notificationType, PublishReport report) {
+        String outcome = report != null && report.isSuccessful() ? "delivered" : "failed";
+        counter(notifications, labels(notificationType.name(), outcome)).increment();
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text exposition format (version 0.0.4).
+     *
+     * @param writer The writer to write the metrics to.
+     * @throws IOException If the metrics could not be written.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        MetricWriter out = new MetricWriter(writer);
+        out.histograms("hipchat_publish_duration_seconds",
+                "Time taken to deliver a notification to all of its rooms, including retries.",
+                publishDurations, "server");
+        out.histograms("hipchat_request_duration_seconds", "Time taken by a single request to HipChat.",
+                requestDurations, "server", "room");
+        out.counters("hipchat_responses_total", "Requests sent to HipChat by response code.", responses,
+                "server", "code");
+        out.counters("hipchat_notifications_total", "Build notifications by type and outcome.", notifications,
+                "type", "outcome");
+        out.counters("hipchat_retries_total", "Requests retried after a transient failure.", retries, "server");
+        out.counters("hipchat_circuit_rejections_total", "Requests rejected because the circuit breaker was open.",
+                rejections, "server");
+
+        out.header("hipchat_requests_in_flight", "gauge", "Requests currently being sent to HipChat.");
+        out.sample("hipchat_requests_in_flight", inFlight.sum());
+
+        out.header("hipchat_circuit_breaker_state", "gauge", "The current state of the circuit breakers.");
+        for (Map.Entry<String, CircuitBreaker.State> breaker : CircuitBreaker.getStates().entrySet()) {
+            for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+                out.sample("hipchat_circuit_breaker_state", breaker.getValue() == state ? 1 : 0,
+                        labels("server", "state"), labels(breaker.getKey(), state.name().toLowerCase()));
+            }
+        }
+
+        PoolStats[] poolStats = {SharedHttpClients.getTotalStats(false), SharedHttpClients.getTotalStats(true)};
+        String[] clients = {"blocking", "async"};
+        List<String> poolLabels = labels("client", "state");
+        out.header("hipchat_connection_pool_connections", "gauge", "Connections of the shared HTTP client pools.");
+        for (int i = 0; i < clients.length; i++) {
+            out.sample("hipchat_connection_pool_connections", poolStats[i].getLeased(), poolLabels,
+                    labels(clients[i], "leased"));
+            out.sample("hipchat_connection_pool_connections", poolStats[i].getAvailable(), poolLabels,
+                    labels(clients[i], "available"));
+            out.sample("hipchat_connection_pool_connections", poolStats[i].getPending(), poolLabels,
+                    labels(clients[i], "pending"));
+        }
+        out.header("hipchat_connection_pool_max", "gauge", "Maximum number of connections of the shared pools.");
+        for (int i = 0; i < clients.length; i++) {
+            out.sample("hipchat_connection_pool_max", poolStats[i].getMax(), labels("client"), labels(clients[i]));
+        }
+
+        out.header("hipchat_tls_handshakes_total", "counter", "TLS handshakes performed by the shared TLS context.");
+        out.sample("hipchat_tls_handshakes_total", TLSContext.getFullHandshakeCount(), labels("type"),
+                labels("full"));
+        out.sample("hipchat_tls_handshakes_total", TLSContext.getResumedHandshakeCount(), labels("type"),
+                labels("resumed"));
+        out.header("hipchat_tls_handshake_seconds_total", "counter", "Time spent on TLS handshakes.");
+        out.sample("hipchat_tls_handshake_seconds_total",
+                TLSContext.getHandshakeTimeNanos() / (double) TimeUnit.SECONDS.toNanos(1));
+        writer.flush();
+    }
+
+    private static List<String> labels(String... values) {
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Returns the request duration histogram of the room, or of the <code>other</code> room once all the
+     * {@link #MAX_ROOM_SERIES} have been taken. A series is reserved before it is added, so that concurrent requests
+     * to new rooms cannot exceed the limit.
+     */
+    private Histogram roomHistogram(String server, String roomId) {
+        List<String> roomLabels = labels(server, roomId);
+        Histogram histogram = requestDurations.get(roomLabels);
+        if (histogram == null) {
+            if (roomSeries.incrementAndGet() > MAX_ROOM_SERIES) {
+                roomSeries.decrementAndGet();
+                return histogram(requestDurations, labels(server, OTHER_ROOM));
+            }
+            Histogram newHistogram = new Histogram();
+            histogram = requestDurations.putIfAbsent(roomLabels, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            } else {
+                roomSeries.decrementAndGet();
+            }
+        }
+        return histogram;
+    }
+
+    private static Histogram histogram(ConcurrentMap<List<String>, Histogram> histograms, List<String> labels) {
+        Histogram histogram = histograms.get(labels);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = histograms.putIfAbsent(labels, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    private static StripedCounter counter(ConcurrentMap<List<String>, StripedCounter> counters, List<String> labels) {
+        StripedCounter counter = counters.get(labels);
+        if (counter == null) {
+            StripedCounter newCounter = new StripedCounter();
+            counter = counters.putIfAbsent(labels, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Formats the samples according to the Prometheus text exposition format.
+     */
+    private static class MetricWriter {
+
+        private static final List<String> NO_LABELS = labels();
+        private final Writer writer;
+
+        private MetricWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        private void header(String name, String type, String help) throws IOException {
+            writer.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            writer.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        private void histograms(String name, String help, Map<List<String>, Histogram> histograms,
+                String... labelNames) throws IOException {
+            header(name, "histogram", help);
+            List<String> names = labels(labelNames);
+            List<String> bucketNames = labels(Arrays.copyOf(labelNames, labelNames.length + 1));
+            bucketNames.set(labelNames.length, "le");
+            for (Map.Entry<List<String>, Histogram> entry : histograms.entrySet()) {
+                long[] counts = entry.getValue().getCumulativeCounts();
+                String[] bucketValues = entry.getKey().toArray(new String[labelNames.length + 1]);
+                for (int i = 0; i < counts.length; i++) {
+                    bucketValues[labelNames.length] = i < Histogram.BUCKETS.length
+                            ? String.valueOf(Histogram.BUCKETS[i]) : "+Inf";
+                    sample(name + "_bucket", counts[i], bucketNames, labels(bucketValues));
+                }
+                sample(name + "_sum", entry.getValue().getSum(), names, entry.getKey());
+                sample(name + "_count", counts[counts.length - 1], names, entry.getKey());
+            }
+        }
+
+        private void counters(String name, String help, Map<List<String>, StripedCounter> counters,
+                String... labelNames) throws IOException {
+            header(name, "counter", help);
+            List<String> names = labels(labelNames);
+            for (Map.Entry<List<String>, StripedCounter> entry : counters.entrySet()) {
+                sample(name, entry.getValue().sum(), names, entry.getKey());
+            }
+        }
+
+        private void sample(String name, double value) throws IOException {
+            sample(name, value, NO_LABELS, NO_LABELS);
+        }
+
+        private void sample(String name, double value, List<String> names, List<String> values) throws IOException {
+            writer.append(name);
+            if (!names.isEmpty()) {
+                writer.append('{');
+                for (int i = 0; i < names.size(); i++) {
+                    if (i > 0) {
+                        writer.append(',');
+                    }
+                    writer.append(names.get(i)).append("=\"").append(escape(values.get(i))).append('"');
+                }
+                writer.append('}');
+            }
+            writer.append(' ');
+            if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                writer.append(String.valueOf((long) value));
+            } else {
+                writer.append(String.valueOf(value));
+            }
+            writer.append('\n');
+        }
+
+        private String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package jenkins.plugins.hipchat.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A histogram of durations with fixed bucket boundaries, backed by {@link StripedCounter}s so that recording an
+ * observation never blocks.
+ */
+public final class Histogram {
+
+    /**
+     * The upper bounds of the buckets in seconds, covering the range from a fast local server to the request timeouts.
+     */
+    static final double[] BUCKETS = {0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private final StripedCounter[] counts = new StripedCounter[BUCKETS.length + 1];
+    private final StripedCounter sumNanos = new StripedCounter();
+
+    public Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new StripedCounter();
+        }
+    }
+
+    /**
+     * Records a single observation.
+     *
+     * @param durationNanos The observed duration in nanoseconds.
+     */
+    public void observe(long durationNanos) {
+        double seconds = durationNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        int bucket = 0;
+        while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+            bucket++;
+        }
+        counts[bucket].increment();
+        sumNanos.add(durationNanos);
+    }
+
+    /**
+     * Returns the cumulative number of observations for each bucket, the last element being the total number of
+     * observations.
+     *
+     * @return The cumulative bucket counts, one more than the number of {@link #BUCKETS}.
+     */
+    public long[] getCumulativeCounts() {
+        long[] cumulative = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i].sum();
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Returns the sum of all the observed durations.
+     *
+     * @return The sum of the observations in seconds.
+     */
+    public double getSum() {
+        return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
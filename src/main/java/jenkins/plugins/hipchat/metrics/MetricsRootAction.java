@@ -0,0 +1,43 @@
+package jenkins.plugins.hipchat.metrics;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import java.io.IOException;
+import java.io.Writer;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Exposes the {@link HipChatMetrics} at <code>/hipchat/metrics</code> in the Prometheus text format. The metrics are
+ * only available to administrators.
+ */
+@Extension
+public class MetricsRootAction implements RootAction {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "hipchat";
+    }
+
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType(CONTENT_TYPE);
+        rsp.setHeader("Cache-Control", "no-cache");
+        try (Writer writer = rsp.getCompressedWriter(req)) {
+            HipChatMetrics.get().writeTo(writer);
+        }
+    }
+}
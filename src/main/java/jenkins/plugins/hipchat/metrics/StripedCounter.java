@@ -0,0 +1,81 @@
+package jenkins.plugins.hipchat.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter that spreads concurrent updates over multiple cells, so that threads publishing notifications at
+ * the same time do not contend on a single atomic variable. Each thread always updates the same cell, and the cells are
+ * padded to sit on separate cache lines. Reading the counter sums up all the cells, hence reads are slower than
+ * updates, which is the right trade-off for metrics that are updated on every request but only read when scraped.
+ * <p>
+ * The counter starts out as a single atomic variable, and only allocates the cells once an update has failed due to
+ * contention, so that the many counters which are rarely updated concurrently stay small.
+ */
+public final class StripedCounter {
+
+    /**
+     * The number of longs between two cells, so that each cell occupies its own 64 byte cache line.
+     */
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripeCount();
+
+    private final AtomicLong base = new AtomicLong();
+    private volatile AtomicLongArray cells;
+
+    public void increment() {
+        add(1);
+    }
+
+    public void decrement() {
+        add(-1);
+    }
+
+    public void add(long delta) {
+        AtomicLongArray current = cells;
+        if (current == null) {
+            long value = base.get();
+            if (base.compareAndSet(value, value + delta)) {
+                return;
+            }
+            current = inflate();
+        }
+        current.getAndAdd(cellIndex(), delta);
+    }
+
+    /**
+     * Returns the current value of the counter. The returned value is not an atomic snapshot if the counter is updated
+     * concurrently.
+     *
+     * @return The sum of all the cells.
+     */
+    public long sum() {
+        long sum = base.get();
+        AtomicLongArray current = cells;
+        if (current != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                sum += current.get(i * PADDING);
+            }
+        }
+        return sum;
+    }
+
+    private synchronized AtomicLongArray inflate() {
+        if (cells == null) {
+            cells = new AtomicLongArray(STRIPES * PADDING);
+        }
+        return cells;
+    }
+
+    private static int cellIndex() {
+        long id = Thread.currentThread().getId();
+        // Mix the bits of the thread ID, as consecutive IDs are common
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & (STRIPES - 1)) * PADDING;
+    }
+
+    private static int stripeCount() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        return Integer.highestOneBit(Math.max(processors, 1) * 2 - 1);
+    }
+}
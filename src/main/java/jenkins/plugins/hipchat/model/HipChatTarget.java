@@ -0,0 +1,135 @@
+package jenkins.plugins.hipchat.model;
+
+import java.util.Set;
+import jenkins.plugins.hipchat.HipChatNotifier;
+import jenkins.plugins.hipchat.HipChatService;
+import jenkins.plugins.hipchat.impl.HipChatV1Service;
+import jenkins.plugins.hipchat.impl.HipChatV2Service;
+
+/**
+ * Describes where a notification should be delivered to, i.e. all the settings that are required to construct the
+ * corresponding {@link HipChatService}.
+ */
+public class HipChatTarget {
+
+    private final String server;
+    private final String token;
+    private final boolean v2Enabled;
+    private final String room;
+    private final String sendAs;
+    private final String eventKey;
+
+    /**
+     * Creates a new target.
+     *
+     * @param server The URL for the HipChat server.
+     * @param token The auth token to use when sending the notification.
+     * @param v2Enabled Whether v1 or v2 API should be used.
+     * @param room The room(s) to notify. Multiple rooms can be separated by commas.
+     * @param sendAs The username to use as the sender when using the v1 API.
+     */
+    public HipChatTarget(String server, String token, boolean v2Enabled, String room, String sendAs) {
+        this(server, token, v2Enabled, room, sendAs, null);
+    }
+
+    /**
+     * Creates a new target for a logical event that should be delivered to each room at most once.
+     *
+     * @param server The URL for the HipChat server.
+     * @param token The auth token to use when sending the notification.
+     * @param v2Enabled Whether v1 or v2 API should be used.
+     * @param room The room(s) to notify. Multiple rooms can be separated by commas.
+     * @param sendAs The username to use as the sender when using the v1 API.
+     * @param eventKey The deterministic identifier of the event, or null if the notification should not be
+     * deduplicated.
+     */
+    public HipChatTarget(String server, String token, boolean v2Enabled, String room, String sendAs,
+            String eventKey) {
+        this.server = server;
+        this.token = token;
+        this.v2Enabled = v2Enabled;
+        this.room = room;
+        this.sendAs = sendAs;
+        this.eventKey = eventKey;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public boolean isV2Enabled() {
+        return v2Enabled;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getSendAs() {
+        return sendAs;
+    }
+
+    /**
+     * Returns the deterministic identifier of the event the notification is sent for, e.g. the build and the
+     * notification type. Together with the room it forms the idempotency key of the delivery.
+     *
+     * @return The event key, or null if the notification should not be deduplicated.
+     */
+    public String getEventKey() {
+        return eventKey;
+    }
+
+    /**
+     * Returns a copy of this target that will deliver notifications to a different set of rooms.
+     *
+     * @param room The room(s) to notify. Multiple rooms can be separated by commas.
+     * @return A new {@link HipChatTarget} instance with the rooms updated.
+     */
+    public HipChatTarget withRoom(String room) {
+        return new HipChatTarget(server, token, v2Enabled, room, sendAs, eventKey);
+    }
+
+    /**
+     * Returns a copy of this target identified by a different event key.
+     *
+     * @param eventKey The deterministic identifier of the event, or null if the notification should not be
+     * deduplicated.
+     * @return A new {@link HipChatTarget} instance with the event key updated.
+     */
+    public HipChatTarget withEventKey(String eventKey) {
+        return new HipChatTarget(server, token, v2Enabled, room, sendAs, eventKey);
+    }
+
+    /**
+     * Returns the parts of a notification the service of this target is able to deliver, without creating the
+     * service itself.
+     *
+     * @return The supported capabilities.
+     */
+    public Set<ServiceCapability> getCapabilities() {
+        return v2Enabled ? HipChatV2Service.CAPABILITIES : HipChatV1Service.CAPABILITIES;
+    }
+
+    /**
+     * Returns the maximum message length accepted by the service of this target.
+     *
+     * @return The maximum number of characters in a message.
+     */
+    public int getMaxMessageLength() {
+        return v2Enabled ? HipChatV2Service.MAX_MESSAGE_LENGTH : HipChatV1Service.MAX_MESSAGE_LENGTH;
+    }
+
+    public HipChatService createService() {
+        return HipChatNotifier.getHipChatService(server, token, v2Enabled, room, sendAs);
+    }
+
+    @Override
+    public String toString() {
+        return "HipChatTarget{" + "server=" + server + ", v2Enabled=" + v2Enabled + ", room=" + room + ", sendAs="
+                + sendAs + ", eventKey=" + eventKey + '}';
+    }
+}
@@ -5,23 +5,24 @@ import static jenkins.plugins.hipchat.utils.GuiceUtils.*;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
-import hudson.ExtensionList;
-import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Result;
 import java.io.IOException;
-import jenkins.model.Jenkins;
+import java.util.EnumSet;
+import java.util.Set;
 import jenkins.plugins.hipchat.CardProvider;
-import jenkins.plugins.hipchat.HipChatNotifier.DescriptorImpl;
 import jenkins.plugins.hipchat.Messages;
 import jenkins.plugins.hipchat.exceptions.NotificationException;
-import jenkins.plugins.hipchat.impl.NoopCardProvider;
+import jenkins.plugins.hipchat.impl.HipChatV2Service;
+import jenkins.plugins.hipchat.model.notifications.Card;
 import jenkins.plugins.hipchat.model.notifications.Notification;
 import jenkins.plugins.hipchat.model.notifications.Notification.MessageFormat;
-import jenkins.plugins.hipchat.utils.BuildUtils;
+import jenkins.plugins.hipchat.template.CompiledTemplate;
+import jenkins.plugins.hipchat.template.TemplateCache;
+import jenkins.plugins.hipchat.tracing.Span;
+import jenkins.plugins.hipchat.tracing.Tracer;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
-import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 
 public enum NotificationType {
 
@@ -93,27 +94,53 @@ public enum NotificationType {
 
     public final Notification getNotification(NotificationConfig config, AbstractBuild<?, ?> build,
             BuildListener buildListener) throws NotificationException {
-        return getNotification(config, build, buildListener, get(BuildUtils.class), Jenkins.getInstance());
+        return getNotification(config, build, buildListener, EnumSet.allOf(ServiceCapability.class),
+                HipChatV2Service.MAX_MESSAGE_LENGTH, get(TemplateCache.class), CardProvider.getConfigured());
+    }
+
+    /**
+     * Creates the notification for a build, computing only the parts that the target service is able to deliver. The
+     * message is rendered up to the maximum length accepted by the service.
+     *
+     * @param config The notification settings.
+     * @param build The build the notification is sent for.
+     * @param buildListener The listener of the build.
+     * @param target The target the notification will be sent to.
+     * @return The notification.
+     * @throws NotificationException If the notification could not be rendered.
+     */
+    public final Notification getNotification(NotificationConfig config, AbstractBuild<?, ?> build,
+            BuildListener buildListener, HipChatTarget target) throws NotificationException {
+        return getNotification(config, build, buildListener, target.getCapabilities(), target.getMaxMessageLength(),
+                get(TemplateCache.class), CardProvider.getConfigured());
     }
 
     @VisibleForTesting
     Notification getNotification(NotificationConfig config, AbstractBuild<?, ?> build, BuildListener buildListener,
-            BuildUtils buildUtils, Jenkins jenkins) throws NotificationException {
-        String messageTemplate = Util.replaceMacro(config.getMessageTemplate(), ImmutableMap.of(STATUS, getStatus()));
-        CardProvider cardProvider = ExtensionList.lookup(CardProvider.class)
-                .getDynamic(jenkins.getDescriptorByType(DescriptorImpl.class).getCardProvider());
-        if (cardProvider == null) {
-            cardProvider = new NoopCardProvider();
-        }
+            Set<ServiceCapability> capabilities, int maxMessageLength, TemplateCache templateCache,
+            CardProvider cardProvider) throws NotificationException {
+        CompiledTemplate messageTemplate = templateCache.get(config.getMessageTemplate());
 
         try {
-            String message = TokenMacro.expandAll(build, buildListener, messageTemplate, false, null);
+            boolean html = !config.isTextFormat() && capabilities.contains(ServiceCapability.HTML);
+            String message;
+            try (Span span = Tracer.startSpan("expandAll")) {
+                message = messageTemplate.expand(build, null, buildListener, ImmutableMap.of(STATUS, getStatus()),
+                        false, maxMessageLength, html);
+            }
+            Card card = null;
+            if (capabilities.contains(ServiceCapability.CARD)) {
+                try (Span span = Tracer.startSpan("getCard")) {
+                    card = cardProvider.getCard(build, buildListener,
+                            capabilities.contains(ServiceCapability.ICON) ? config.getIconObject() : null, message);
+                }
+            }
             return new Notification()
                     .withColor(config.getColor())
-                    .withMessageFormat(config.isTextFormat() ? MessageFormat.TEXT : MessageFormat.HTML)
+                    .withMessageFormat(html ? MessageFormat.HTML : MessageFormat.TEXT)
                     .withNotify(config.isNotifyEnabled())
                     .withMessage(message)
-                    .withCard(cardProvider.getCard(build, buildListener, config.getIconObject(), message));
+                    .withCard(card);
         } catch (MacroEvaluationException | IOException ex) {
             buildListener.getLogger().println(Messages.MacroEvaluationFailed(ex.toString()));
             throw new NotificationException(Messages.MacroEvaluationFailed(ex.getMessage()), ex);
@@ -0,0 +1,66 @@
+package jenkins.plugins.hipchat.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jenkins.plugins.hipchat.Messages;
+import jenkins.plugins.hipchat.exceptions.NotificationException;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Collects the per-room outcomes of publishing a single notification, so that a failure in one of the rooms does not
+ * prevent the delivery to the others.
+ */
+public class PublishReport {
+
+    private final List<RoomOutcome> outcomes;
+
+    public PublishReport(List<RoomOutcome> outcomes) {
+        this.outcomes = Collections.unmodifiableList(outcomes);
+    }
+
+    public List<RoomOutcome> getOutcomes() {
+        return outcomes;
+    }
+
+    public List<RoomOutcome> getFailures() {
+        List<RoomOutcome> failures = new ArrayList<>(outcomes.size());
+        for (RoomOutcome outcome : outcomes) {
+            if (!outcome.isSuccessful()) {
+                failures.add(outcome);
+            }
+        }
+        return failures;
+    }
+
+    public boolean isSuccessful() {
+        return getFailures().isEmpty();
+    }
+
+    /**
+     * Converts the failed room deliveries into a single exception.
+     *
+     * @return The original exception if only a single room has failed, an exception listing all the failed rooms if
+     * there were multiple failures, or null if the notification was delivered to all the rooms.
+     */
+    public NotificationException toException() {
+        List<RoomOutcome> failures = getFailures();
+        if (failures.isEmpty()) {
+            return null;
+        } else if (failures.size() == 1) {
+            return failures.get(0).getFailure();
+        }
+        List<String> rooms = new ArrayList<>(failures.size());
+        for (RoomOutcome failure : failures) {
+            rooms.add(failure.getRoomId());
+        }
+        NotificationException firstFailure = failures.get(0).getFailure();
+        return new NotificationException(Messages.PartialFailure(StringUtils.join(rooms, ", "),
+                firstFailure.getMessage()), firstFailure);
+    }
+
+    @Override
+    public String toString() {
+        return "PublishReport{" + "outcomes=" + outcomes + '}';
+    }
+}
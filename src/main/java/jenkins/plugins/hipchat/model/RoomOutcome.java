@@ -0,0 +1,115 @@
+package jenkins.plugins.hipchat.model;
+
+import jenkins.plugins.hipchat.exceptions.NotificationException;
+
+/**
+ * Describes the outcome of delivering a notification to a single HipChat room.
+ */
+public class RoomOutcome {
+
+    private final String roomId;
+    private final int responseCode;
+    private final NotificationException failure;
+    private final int attempts;
+    private final long durationMillis;
+    private final long bytesSent;
+
+    public RoomOutcome(String roomId, int responseCode, NotificationException failure) {
+        this(roomId, responseCode, failure, 1);
+    }
+
+    public RoomOutcome(String roomId, int responseCode, NotificationException failure, int attempts) {
+        this(roomId, responseCode, failure, attempts, 0, 0);
+    }
+
+    public RoomOutcome(String roomId, int responseCode, NotificationException failure, int attempts,
+            long durationMillis, long bytesSent) {
+        this.roomId = roomId;
+        this.responseCode = responseCode;
+        this.failure = failure;
+        this.attempts = attempts;
+        this.durationMillis = durationMillis;
+        this.bytesSent = bytesSent;
+    }
+
+    /**
+     * Creates the outcome of a delivery that was skipped, because the notification has already been delivered to the
+     * room.
+     *
+     * @param roomId The room that has already received the notification.
+     * @return The outcome of the skipped delivery.
+     */
+    public static RoomOutcome duplicate(String roomId) {
+        return new RoomOutcome(roomId, 0, null, 0);
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    /**
+     * Returns the HTTP response code received from HipChat.
+     *
+     * @return The HTTP response code, or 0 if no response was received.
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * Returns the reason why the notification could not be delivered to the room.
+     *
+     * @return The exception describing the failure, or null if the delivery was successful.
+     */
+    public NotificationException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the number of requests that were sent to the room, including the retries.
+     *
+     * @return The number of attempts.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns the time it took to deliver the notification to the room, including the retries and any delay imposed by
+     * the rate limiter.
+     *
+     * @return The delivery time in milliseconds.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Returns the size of the request bodies sent to the room, summed up over all the attempts.
+     *
+     * @return The number of bytes sent.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public boolean isSuccessful() {
+        return failure == null;
+    }
+
+    /**
+     * Tells whether the delivery was skipped because the room has already received the notification.
+     *
+     * @return <code>true</code> if no request was sent to the room.
+     */
+    public boolean isDuplicate() {
+        return failure == null && attempts == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RoomOutcome{" + "roomId=" + roomId + ", responseCode=" + responseCode + ", attempts=" + attempts
+                + ", durationMillis=" + durationMillis + ", bytesSent=" + bytesSent
+                + ", failure=" + (failure == null ? null : failure.getMessage()) + '}';
+    }
+}
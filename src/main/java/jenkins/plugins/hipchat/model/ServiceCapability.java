@@ -0,0 +1,27 @@
+package jenkins.plugins.hipchat.model;
+
+import jenkins.plugins.hipchat.HipChatService;
+
+/**
+ * The parts of a notification that a {@link HipChatService} is able to deliver. Parts that the target service does not
+ * support are not computed at all.
+ */
+public enum ServiceCapability {
+
+    /**
+     * The notification card, as built by the configured {@link jenkins.plugins.hipchat.CardProvider}.
+     */
+    CARD,
+    /**
+     * HTML formatted messages, without this capability messages are sent as plain text.
+     */
+    HTML,
+    /**
+     * The icon displayed on the notification card.
+     */
+    ICON,
+    /**
+     * Attaching the notification to an existing message.
+     */
+    ATTACH_TO
+}
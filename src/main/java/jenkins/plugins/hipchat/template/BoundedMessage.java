@@ -0,0 +1,98 @@
+package jenkins.plugins.hipchat.template;
+
+/**
+ * A message buffer that holds at most a fixed number of characters. Once the buffer is full, the rest of the content
+ * is discarded and the message is cut at a position that does not split an HTML tag, an HTML entity or a surrogate
+ * pair, followed by an ellipsis.
+ */
+public final class BoundedMessage {
+
+    static final String ELLIPSIS = "...";
+    /**
+     * The longest named or numeric character reference that is kept together, e.g. <code>&amp;#x1F600;</code>.
+     */
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private final StringBuilder sb;
+    private final int maxLength;
+    private final boolean html;
+    private boolean truncated;
+
+    BoundedMessage(int maxLength, boolean html, int expectedLength) {
+        if (maxLength <= ELLIPSIS.length()) {
+            throw new IllegalArgumentException("Maximum message length is too short: " + maxLength);
+        }
+        this.sb = new StringBuilder(Math.min(maxLength, expectedLength));
+        this.maxLength = maxLength;
+        this.html = html;
+    }
+
+    /**
+     * Truncates a message that has already been rendered.
+     *
+     * @param message The message.
+     * @param maxLength The maximum number of characters of the result, including the ellipsis.
+     * @param html Whether the message is HTML formatted.
+     * @return The message itself if it fits, otherwise the truncated message.
+     */
+    public static String truncate(String message, int maxLength, boolean html) {
+        if (message.length() <= maxLength) {
+            return message;
+        }
+        BoundedMessage bounded = new BoundedMessage(maxLength, html, maxLength);
+        bounded.append(message);
+        return bounded.toString();
+    }
+
+    void append(String text) {
+        String value = String.valueOf(text);
+        int remaining = maxLength - sb.length();
+        if (value.length() <= remaining) {
+            sb.append(value);
+        } else {
+            sb.append(value, 0, remaining);
+            truncated = true;
+        }
+    }
+
+    /**
+     * Tells whether content had to be discarded, in which case there is no point in rendering the rest of the message.
+     *
+     * @return <code>true</code> if the message has been truncated.
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public String toString() {
+        if (!truncated) {
+            return sb.toString();
+        }
+        int end = maxLength - ELLIPSIS.length();
+        if (Character.isHighSurrogate(sb.charAt(end - 1))) {
+            end--;
+        }
+        if (html) {
+            int tag = sb.lastIndexOf("<", end - 1);
+            if (tag >= 0 && sb.lastIndexOf(">", end - 1) < tag) {
+                end = tag;
+            }
+            int entity = sb.lastIndexOf("&", end - 1);
+            if (entity >= 0 && end - entity < MAX_ENTITY_LENGTH && isPartialEntity(entity + 1, end)) {
+                end = entity;
+            }
+        }
+        return sb.substring(0, end) + ELLIPSIS;
+    }
+
+    private boolean isPartialEntity(int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = sb.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '#') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
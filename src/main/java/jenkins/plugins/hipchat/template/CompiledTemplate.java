@@ -0,0 +1,343 @@
+package jenkins.plugins.hipchat.template;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+
+/**
+ * A message template that has been parsed into literal text and macro references, so that sending a notification
+ * only needs to evaluate the macros and concatenate the results. The syntax matches the one understood by
+ * {@link TokenMacro#expandAll}: <code>$NAME</code>, <code>${NAME}</code> and
+ * <code>${NAME, arg=value, ...}</code>, where <code>$$</code> stands for a literal dollar sign.
+ * <p>
+ * A reference without arguments is resolved in the following order: the parameters passed to
+ * {@link #expand(Run, FilePath, TaskListener, Map, boolean)}, the build variables and the environment of the build,
+ * and finally the token macro that was registered for the name at compile time. As with {@link TokenMacro#expandAll},
+ * a build variable or environment variable takes precedence over a token macro of the same name. References that
+ * cannot be resolved are left untouched.
+ * <p>
+ * When a {@link MacroMemo} is open for the build, macro results and the build environment are taken from it.
+ * <p>
+ * The message can be bounded to a maximum length, in which case the remaining references are no longer evaluated once
+ * the limit has been reached, see {@link BoundedMessage}.
+ */
+public final class CompiledTemplate {
+
+    private static final String NAME = "[a-zA-Z0-9_]+";
+    private static final String SPACE = "[ \\t]*";
+    private static final String VALUE = "-?[0-9]+(?:\\.[0-9]*)?|true|false|\"(?:[^\\\\\"]|\\\\.)*\"";
+    private static final String ARG = "(" + NAME + ")" + SPACE + "=" + SPACE + "(" + VALUE + ")";
+    private static final Pattern TOKEN = Pattern.compile("\\$\\$|\\$(" + NAME + ")|\\$\\{" + SPACE + "(" + NAME + ")"
+            + "((?:" + SPACE + "," + SPACE + ARG + ")*)" + SPACE + "\\}");
+    private static final Pattern ARGUMENT = Pattern.compile(ARG);
+
+    private final String source;
+    private final List<Segment> segments;
+
+    private CompiledTemplate(String source, List<Segment> segments) {
+        this.source = source;
+        this.segments = segments;
+    }
+
+    /**
+     * Parses the template.
+     *
+     * @param template The message template.
+     * @param macros The token macros that may be referenced by the template.
+     * @return The compiled template.
+     */
+    public static CompiledTemplate compile(String template, Iterable<? extends TokenMacro> macros) {
+        ImmutableList.Builder<Segment> segments = ImmutableList.builder();
+        StringBuilder literal = new StringBuilder();
+        Matcher matcher = TOKEN.matcher(template);
+        int start = 0;
+        while (matcher.find()) {
+            literal.append(template, start, matcher.start());
+            start = matcher.end();
+            if (matcher.group(1) == null && matcher.group(2) == null) {
+                literal.append('$');
+                continue;
+            }
+            if (literal.length() > 0) {
+                segments.add(new Literal(literal.toString()));
+                literal.setLength(0);
+            }
+            String name = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            segments.add(new Reference(matcher.group(), name, findMacro(name, macros), matcher.group(3), macros));
+        }
+        literal.append(template, start, template.length());
+        if (literal.length() > 0) {
+            segments.add(new Literal(literal.toString()));
+        }
+        return new CompiledTemplate(template, segments.build());
+    }
+
+    private static TokenMacro findMacro(String name, Iterable<? extends TokenMacro> macros) {
+        for (TokenMacro macro : macros) {
+            if (macro.acceptsMacroName(name)) {
+                return macro;
+            }
+        }
+        return null;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Evaluates the macros referenced by this template for the given build.
+     *
+     * @param run The build the notification is sent for.
+     * @param workspace The workspace of the build, may be null.
+     * @param listener The listener of the build.
+     * @param parameters Values for references that are not backed by a token macro, such as <code>STATUS</code>.
+     * @param throwException Whether failing and unresolved references should raise an exception, rather than being
+     * rendered inline.
+     * @return The message.
+     * @throws MacroEvaluationException If a reference could not be resolved and throwException is set.
+     * @throws IOException If a macro or the build environment could not be read.
+     * @throws InterruptedException If the thread was interrupted while evaluating a macro.
+     */
+    public String expand(Run<?, ?> run, FilePath workspace, TaskListener listener, Map<String, String> parameters,
+            boolean throwException) throws MacroEvaluationException, IOException, InterruptedException {
+        return expand(new Context(run, workspace, listener, parameters, throwException), Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * Evaluates the macros referenced by this template for the given build, rendering at most the given number of
+     * characters. The references following the one that exceeded the limit are not evaluated.
+     *
+     * @param run The build the notification is sent for.
+     * @param workspace The workspace of the build, may be null.
+     * @param listener The listener of the build.
+     * @param parameters Values for references that are not backed by a token macro, such as <code>STATUS</code>.
+     * @param throwException Whether failing and unresolved references should raise an exception, rather than being
+     * rendered inline.
+     * @param maxLength The maximum length of the message, including the ellipsis appended to a truncated message.
+     * @param html Whether the message is HTML formatted, so that a truncated message does not end within a tag.
+     * @return The message.
+     * @throws MacroEvaluationException If a reference could not be resolved and throwException is set.
+     * @throws IOException If a macro or the build environment could not be read.
+     * @throws InterruptedException If the thread was interrupted while evaluating a macro.
+     */
+    public String expand(Run<?, ?> run, FilePath workspace, TaskListener listener, Map<String, String> parameters,
+            boolean throwException, int maxLength, boolean html)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        return expand(new Context(run, workspace, listener, parameters, throwException), maxLength, html);
+    }
+
+    private String expand(Context context, int maxLength, boolean html)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        BoundedMessage message = new BoundedMessage(maxLength, html, source.length() * 2);
+        for (Segment segment : segments) {
+            segment.appendTo(message, context);
+            if (message.isTruncated()) {
+                break;
+            }
+        }
+        return message.toString();
+    }
+
+    List<Segment> getSegments() {
+        return segments;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledTemplate{" + "source=" + source + ", segments=" + segments.size() + '}';
+    }
+
+    private static String unquote(String value) {
+        if (!value.startsWith("\"")) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 1; i < value.length() - 1; i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i < value.length() - 2) {
+                c = value.charAt(++i);
+                switch (c) {
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    default:
+                        break;
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static final class Context {
+
+        private final Run<?, ?> run;
+        private final FilePath workspace;
+        private final TaskListener listener;
+        private final Map<String, String> parameters;
+        private final boolean throwException;
+        private final MacroMemo memo;
+        private EnvVars environment;
+
+        private Context(Run<?, ?> run, FilePath workspace, TaskListener listener, Map<String, String> parameters,
+                boolean throwException) {
+            this.run = run;
+            this.workspace = workspace;
+            this.listener = listener;
+            this.parameters = parameters;
+            this.throwException = throwException;
+            this.memo = MacroMemo.current(run);
+            this.environment = memo != null ? memo.getEnvironment() : null;
+        }
+
+        /**
+         * The environment is only computed for templates with a reference without arguments, and at most once per
+         * message.
+         */
+        private EnvVars getEnvironment() throws IOException, InterruptedException {
+            if (environment == null) {
+                environment = run.getEnvironment(listener);
+                if (run instanceof AbstractBuild) {
+                    environment.putAll(((AbstractBuild<?, ?>) run).getBuildVariables());
+                }
+                if (memo != null) {
+                    memo.setEnvironment(environment);
+                }
+            }
+            return environment;
+        }
+    }
+
+    abstract static class Segment {
+
+        abstract void appendTo(BoundedMessage message, Context context)
+                throws MacroEvaluationException, IOException, InterruptedException;
+    }
+
+    static final class Literal extends Segment {
+
+        private final String text;
+
+        private Literal(String text) {
+            this.text = text;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        @Override
+        void appendTo(BoundedMessage message, Context context) {
+            message.append(text);
+        }
+    }
+
+    static final class Reference extends Segment {
+
+        private final String original;
+        private final String name;
+        private final TokenMacro macro;
+        private final Map<String, String> arguments;
+        private final ListMultimap<String, String> argumentMultimap;
+        private final String key;
+        private final Iterable<? extends TokenMacro> macros;
+
+        private Reference(String original, String name, TokenMacro macro, String args,
+                Iterable<? extends TokenMacro> macros) {
+            this.original = original;
+            this.name = name;
+            this.macro = macro;
+            this.macros = macros;
+            Map<String, String> arguments = new TreeMap<>();
+            ListMultimap<String, String> argumentMultimap = ArrayListMultimap.create();
+            if (args != null) {
+                Matcher matcher = ARGUMENT.matcher(args);
+                while (matcher.find()) {
+                    String value = unquote(matcher.group(2));
+                    arguments.put(matcher.group(1), value);
+                    argumentMultimap.put(matcher.group(1), value);
+                }
+            }
+            // Shared by every message rendered from this template
+            this.arguments = Collections.unmodifiableMap(arguments);
+            this.argumentMultimap = Multimaps.unmodifiableListMultimap(argumentMultimap);
+            this.key = arguments.isEmpty() ? name : name + arguments;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Map<String, String> getArguments() {
+            return arguments;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        @Override
+        void appendTo(BoundedMessage message, Context context)
+                throws MacroEvaluationException, IOException, InterruptedException {
+            boolean simple = arguments.isEmpty();
+            if (simple && context.parameters.containsKey(name)) {
+                message.append(context.parameters.get(name));
+            } else if (simple && context.getEnvironment().containsKey(name)) {
+                message.append(context.getEnvironment().get(name));
+            } else if (macro != null) {
+                String value = context.memo != null ? context.memo.get(key) : null;
+                if (value == null) {
+                    try {
+                        value = evaluate(context);
+                    } catch (MacroEvaluationException mee) {
+                        if (context.throwException) {
+                            throw mee;
+                        }
+                        message.append("[Error replacing '" + name + "' - " + mee.getMessage() + ']');
+                        return;
+                    }
+                    if (context.memo != null) {
+                        context.memo.put(key, value);
+                    }
+                }
+                message.append(value);
+            } else if (context.throwException) {
+                throw new MacroEvaluationException(String.format("Unrecognized macro '%s'", name));
+            } else {
+                message.append(original);
+            }
+        }
+
+        private String evaluate(Context context) throws MacroEvaluationException, IOException, InterruptedException {
+            String value = macro.evaluate(context.run, context.workspace, context.listener, name, arguments,
+                    argumentMultimap);
+            if (macro.hasNestedContent()) {
+                // Nested content is remembered in full, it may be rendered into messages with different limits
+                value = compile(value, macros).expand(context, Integer.MAX_VALUE, false);
+            }
+            return value;
+        }
+    }
+}
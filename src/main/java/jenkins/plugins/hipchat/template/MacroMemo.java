@@ -0,0 +1,93 @@
+package jenkins.plugins.hipchat.template;
+
+import hudson.EnvVars;
+import hudson.model.Run;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+
+/**
+ * Remembers the results of the macros evaluated while rendering a single notification, so that the message and the
+ * card do not walk the same build data again. The memo is bound to the current thread and to a single build:
+ * <pre>
+ * try (MacroMemo memo = MacroMemo.open(build)) {
+ *     // render the message and the card
+ * }
+ * </pre>
+ * Opening a memo for a build that already has one open on the current thread shares the existing memo, which is only
+ * discarded once the outermost scope is closed.
+ */
+public final class MacroMemo implements AutoCloseable {
+
+    private static final ThreadLocal<MacroMemo> CURRENT = new ThreadLocal<>();
+
+    private final Run<?, ?> run;
+    private final MacroMemo previous;
+    private final MacroMemo owner;
+    private final Map<String, String> values;
+    private EnvVars environment;
+
+    private MacroMemo(Run<?, ?> run, MacroMemo previous, MacroMemo owner) {
+        this.run = run;
+        this.previous = previous;
+        this.owner = owner == null ? this : owner;
+        this.values = owner == null ? new HashMap<String, String>() : owner.values;
+    }
+
+    /**
+     * Opens a memo for the given build on the current thread.
+     *
+     * @param run The build the notification is rendered for.
+     * @return The memo, which must be closed once the notification has been rendered.
+     */
+    public static MacroMemo open(Run<?, ?> run) {
+        MacroMemo current = CURRENT.get();
+        MacroMemo memo = new MacroMemo(run, current, current != null && current.run == run ? current.owner : null);
+        CURRENT.set(memo);
+        return memo;
+    }
+
+    /**
+     * Returns the memo open for the given build on the current thread.
+     *
+     * @param run The build that is being rendered.
+     * @return The memo, or <code>null</code> if no memo is open for the build.
+     */
+    @CheckForNull
+    public static MacroMemo current(Run<?, ?> run) {
+        MacroMemo current = CURRENT.get();
+        return current != null && current.run == run ? current.owner : null;
+    }
+
+    /**
+     * Returns a previously remembered value.
+     *
+     * @param key Identifies the macro and its arguments.
+     * @return The remembered value, or <code>null</code> if the value has not been computed yet.
+     */
+    @CheckForNull
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    public void put(String key, String value) {
+        values.put(key, value);
+    }
+
+    EnvVars getEnvironment() {
+        return owner.environment;
+    }
+
+    void setEnvironment(EnvVars environment) {
+        owner.environment = environment;
+    }
+
+    @Override
+    public void close() {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+}
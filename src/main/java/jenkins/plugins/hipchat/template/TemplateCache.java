@@ -0,0 +1,48 @@
+package jenkins.plugins.hipchat.template;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import javax.inject.Singleton;
+import jenkins.plugins.hipchat.HipChatNotifier;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+
+/**
+ * Keeps the compiled form of the message templates, keyed by the template text. Templates only change when a job or
+ * the global configuration is saved, so the vast majority of the notifications can skip parsing altogether.
+ * <p>
+ * Legacy macro names are migrated while compiling, see {@link HipChatNotifier#migrateMessageTemplate(String)}.
+ */
+@Singleton
+public class TemplateCache {
+
+    private static final int MAX_TEMPLATES = 500;
+
+    private final LoadingCache<String, CompiledTemplate> templates = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TEMPLATES)
+            .build(new CacheLoader<String, CompiledTemplate>() {
+
+                @Override
+                public CompiledTemplate load(String template) {
+                    return CompiledTemplate.compile(HipChatNotifier.migrateMessageTemplate(template),
+                            TokenMacro.all());
+                }
+            });
+
+    /**
+     * Returns the compiled form of the template, compiling it if necessary.
+     *
+     * @param template The message template as configured.
+     * @return The compiled template.
+     */
+    public CompiledTemplate get(String template) {
+        return templates.getUnchecked(template);
+    }
+
+    /**
+     * Discards every compiled template, should be called whenever the configuration changes.
+     */
+    public void invalidate() {
+        templates.invalidateAll();
+    }
+}
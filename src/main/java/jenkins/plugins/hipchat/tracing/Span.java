@@ -0,0 +1,108 @@
+package jenkins.plugins.hipchat.tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A timed stage of a HipChat notification. Spans form a tree within a {@link Trace}: spans started with
+ * {@link Tracer#startSpan(String)} become the current span of the calling thread until they are closed, whereas
+ * {@link #child(String)} creates detached spans that can be closed on any thread (e.g. by an HTTP callback).
+ */
+public class Span implements AutoCloseable {
+
+    /**
+     * The span returned when no trace is active, it records nothing.
+     */
+    static final Span NOOP = new Span(null, null, "noop");
+
+    private final Trace trace;
+    private final Span parent;
+    private final String name;
+    private final long startNanos;
+    private final List<Span> children = new ArrayList<>(4);
+    /**
+     * The span that was current on the calling thread when this root span was started, restored once it is closed.
+     */
+    Span previous;
+    private long endNanos;
+    private boolean closed;
+
+    Span(Trace trace, Span parent, String name) {
+        this.trace = trace;
+        this.parent = parent;
+        this.name = name;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts a detached child span, which does not become the current span of the calling thread.
+     *
+     * @param name The name of the stage.
+     * @return The started span, which MUST be closed once the stage is complete.
+     */
+    public Span child(String name) {
+        if (trace == null) {
+            return NOOP;
+        }
+        Span child = new Span(trace, this, name);
+        trace.spanStarted();
+        synchronized (this) {
+            children.add(child);
+        }
+        return child;
+    }
+
+    /**
+     * Returns the ID of the trace this span belongs to, which is propagated to HipChat in the
+     * {@link Tracer#TRACE_ID_HEADER} header.
+     *
+     * @return The trace ID, or <code>null</code> if the span is not traced.
+     */
+    public String getTraceId() {
+        return trace == null ? null : trace.getTraceId();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Span getParent() {
+        return parent;
+    }
+
+    public synchronized List<Span> getChildren() {
+        return new ArrayList<>(children);
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Returns the time spent in this stage.
+     *
+     * @return The duration in nanoseconds, or -1 if the span has not been closed yet.
+     */
+    public synchronized long getDurationNanos() {
+        return closed ? endNanos - startNanos : -1;
+    }
+
+    /**
+     * Ends the span. Closing a span more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (trace == null) {
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            endNanos = System.nanoTime();
+        }
+        Tracer.restore(this);
+        trace.spanEnded();
+    }
+}
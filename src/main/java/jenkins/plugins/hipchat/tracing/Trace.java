@@ -0,0 +1,82 @@
+package jenkins.plugins.hipchat.tracing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The span tree recorded for a single notification. The trace is complete once all of its spans have been closed, at
+ * which point it is written to the {@link #LOGGER} if it was sampled or took longer than {@link #SLOW_TRACE_NANOS}.
+ */
+final class Trace {
+
+    /**
+     * Sampled traces are logged at {@link Level#FINE}, slow traces at {@link Level#INFO}. Add a Jenkins log recorder
+     * for this logger to collect the traces.
+     */
+    static final Logger LOGGER = Logger.getLogger(Trace.class.getPackage().getName());
+    static final long SLOW_TRACE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final String traceId;
+    private final boolean sampled;
+    private final AtomicInteger openSpans = new AtomicInteger();
+    private Span root;
+
+    Trace(String traceId, boolean sampled) {
+        this.traceId = traceId;
+        this.sampled = sampled;
+    }
+
+    Span start(String name) {
+        root = new Span(this, null, name);
+        spanStarted();
+        return root;
+    }
+
+    String getTraceId() {
+        return traceId;
+    }
+
+    void spanStarted() {
+        openSpans.incrementAndGet();
+    }
+
+    void spanEnded() {
+        if (openSpans.decrementAndGet() == 0) {
+            long duration = root.getDurationNanos();
+            if (duration >= SLOW_TRACE_NANOS) {
+                LOGGER.log(Level.INFO, "Slow HipChat notification\n{0}", format());
+            } else if (sampled && LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "{0}", format());
+            }
+        }
+    }
+
+    /**
+     * Renders the span tree, one span per line with its offset from the start of the trace and its duration.
+     *
+     * @return The formatted trace.
+     */
+    String format() {
+        StringBuilder sb = new StringBuilder("HipChat trace ").append(traceId).append('\n');
+        format(sb, root, 1);
+        return sb.toString();
+    }
+
+    private void format(StringBuilder sb, Span span, int depth) {
+        for (int i = 0; i < depth; i++) {
+            sb.append("  ");
+        }
+        sb.append(span.getName())
+                .append(' ').append(millis(span.getDurationNanos())).append("ms")
+                .append(" (+").append(millis(span.getStartNanos() - root.getStartNanos())).append("ms)\n");
+        for (Span child : span.getChildren()) {
+            format(sb, child, depth + 1);
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
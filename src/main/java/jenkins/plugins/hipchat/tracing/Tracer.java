@@ -0,0 +1,114 @@
+package jenkins.plugins.hipchat.tracing;
+
+import java.util.concurrent.ThreadLocalRandom;
+import jenkins.model.Jenkins;
+import jenkins.plugins.hipchat.HipChatNotifier;
+
+/**
+ * Records lightweight traces of the HipChat notifications, so that the time spent in each stage of a slow notification
+ * (template migration, macro expansion, card creation, credential lookup, serialization and the HTTP round trips) can be
+ * identified. Every notification is traced, but only the sampled and the slow traces are written to the log.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * try (Span span = Tracer.startSpan("expandAll")) {
+ *     ...
+ * }
+ * </pre>
+ */
+public final class Tracer {
+
+    /**
+     * The HTTP header carrying the trace ID, so that the requests can be correlated with proxy logs.
+     */
+    public static final String TRACE_ID_HEADER = "X-Trace-Id";
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+
+    private Tracer() {
+    }
+
+    /**
+     * Starts a new trace, whose root span becomes the current span of the calling thread until it is closed. The span
+     * that was current before, if any, becomes the current span again once the root span is closed.
+     *
+     * @param name The name of the root span.
+     * @return The root span, which MUST be closed on the calling thread.
+     */
+    public static Span startTrace(String name) {
+        return startTrace(name, isSampled());
+    }
+
+    static Span startTrace(String name, boolean sampled) {
+        Span root = new Trace(newTraceId(), sampled).start(name);
+        root.previous = CURRENT.get();
+        CURRENT.set(root);
+        return root;
+    }
+
+    /**
+     * Starts a child of the current span, which becomes the current span of the calling thread until it is closed.
+     *
+     * @param name The name of the stage.
+     * @return The started span, or a no-op span if there is no active trace on the calling thread.
+     */
+    public static Span startSpan(String name) {
+        Span current = CURRENT.get();
+        if (current == null) {
+            return Span.NOOP;
+        }
+        Span span = current.child(name);
+        CURRENT.set(span);
+        return span;
+    }
+
+    /**
+     * Starts a detached span: a child of the current span if there is one, otherwise the root span of a new trace.
+     * Detached spans do not become the current span, hence they can be closed on any thread.
+     *
+     * @param name The name of the stage.
+     * @return The started span, which MUST be closed once the stage is complete.
+     */
+    public static Span startDetachedSpan(String name) {
+        Span current = CURRENT.get();
+        if (current != null) {
+            return current.child(name);
+        }
+        return new Trace(newTraceId(), isSampled()).start(name);
+    }
+
+    /**
+     * Returns the current span of the calling thread.
+     *
+     * @return The current span, or <code>null</code> if there is no active trace.
+     */
+    public static Span current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Restores the parent of a closed span as the current span, if the closed span was the current one. The parent
+     * of a root span is the span that was current when the trace was started.
+     */
+    static void restore(Span closed) {
+        if (CURRENT.get() == closed) {
+            Span parent = closed.getParent() == null ? closed.previous : closed.getParent();
+            if (parent == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(parent);
+            }
+        }
+    }
+
+    private static String newTraceId() {
+        return String.format("%016x", ThreadLocalRandom.current().nextLong());
+    }
+
+    private static boolean isSampled() {
+        Jenkins jenkins = Jenkins.getInstance();
+        HipChatNotifier.DescriptorImpl descriptor = jenkins == null ? null
+                : jenkins.getDescriptorByType(HipChatNotifier.DescriptorImpl.class);
+        int percentage = descriptor == null ? 0 : descriptor.getTraceSamplePercentage();
+        return percentage > 0 && ThreadLocalRandom.current().nextInt(100) < percentage;
+    }
+}
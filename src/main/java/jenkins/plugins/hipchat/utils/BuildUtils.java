@@ -1,19 +1,97 @@
 package jenkins.plugins.hipchat.utils;
 
+import static jenkins.plugins.hipchat.utils.GuiceUtils.*;
+
+import hudson.Extension;
+import hudson.model.Job;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.util.Map;
+import java.util.WeakHashMap;
 import javax.inject.Singleton;
 
 @Singleton
 public class BuildUtils {
 
+    /**
+     * The recent results of every job that has sent a notification since Jenkins was started. Jobs are only
+     * referenced weakly, so deleted jobs are dropped automatically.
+     */
+    private final Map<Job<?, ?>, ResultHistory> histories = new WeakHashMap<>();
+
+    /**
+     * Finds the result of the last build preceding the given one that was neither aborted nor not built.
+     *
+     * @param run The build.
+     * @return The previous result, or <code>null</code> if there is no such build or if a build in between is still
+     * running.
+     */
     public Result findPreviousBuildResult(Run<?, ?> run) {
+        Job<?, ?> job = run.getParent();
+        if (job != null) {
+            ResultHistory history = getHistory(job, true);
+            history.initialize(job.getLastBuild());
+            try {
+                return history.findPreviousResult(run.getNumber());
+            } catch (IllegalStateException ise) {
+                // The build precedes the recorded history, e.g. a build that has been running for a long time
+            }
+        }
+        return walkPreviousBuilds(run);
+    }
+
+    private Result walkPreviousBuilds(Run<?, ?> run) {
         do {
             run = run.getPreviousBuild();
             if (run == null || run.isBuilding()) {
                 return null;
             }
-        } while (run.getResult() == Result.ABORTED || run.getResult() == Result.NOT_BUILT);
+        } while (!ResultHistory.isConclusive(run.getResult()));
         return run.getResult();
     }
+
+    private ResultHistory getHistory(Job<?, ?> job, boolean create) {
+        synchronized (histories) {
+            ResultHistory history = histories.get(job);
+            if (history == null && create) {
+                history = new ResultHistory();
+                histories.put(job, history);
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Keeps the result histories up to date, histories that have not been created yet are left alone, they will be
+     * initialized from the build records on first use.
+     */
+    @Extension
+    public static class ResultHistoryListener extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            ResultHistory history = get(BuildUtils.class).getHistory(run.getParent(), false);
+            if (history != null) {
+                history.started(run.getNumber());
+            }
+        }
+
+        @Override
+        public void onCompleted(Run<?, ?> run, TaskListener listener) {
+            ResultHistory history = get(BuildUtils.class).getHistory(run.getParent(), false);
+            if (history != null) {
+                history.completed(run.getNumber(), run.getResult());
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            ResultHistory history = get(BuildUtils.class).getHistory(run.getParent(), false);
+            if (history != null) {
+                history.deleted(run.getNumber());
+            }
+        }
+    }
 }
@@ -4,6 +4,7 @@ import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.cloudbees.plugins.credentials.common.AbstractIdCredentialsListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
@@ -14,9 +15,21 @@ import com.cloudbees.plugins.credentials.domains.HostnameSpecification;
 import com.cloudbees.plugins.credentials.domains.SchemeSpecification;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import com.cloudbees.plugins.credentials.impl.BaseStandardCredentials;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import hudson.Extension;
 import hudson.Util;
+import hudson.XmlFile;
 import hudson.model.AbstractProject;
 import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
 import hudson.model.Queue.Task;
 import hudson.model.queue.Tasks;
 import hudson.security.ACL;
@@ -24,6 +37,7 @@ import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
 import jenkins.plugins.hipchat.HipChatNotifier;
+import jenkins.plugins.hipchat.HipChatService;
 import jenkins.plugins.hipchat.HipChatNotifier.DescriptorImpl;
 
 import org.acegisecurity.Authentication;
@@ -36,6 +50,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static jenkins.plugins.hipchat.utils.GuiceUtils.get;
 
 /**
  * This class is here to help with credential related tasks, such as credential lookup and migration of insecurely
@@ -45,7 +64,20 @@ import java.util.UUID;
 public class CredentialUtils {
 
     /**
-     * Finds the credential with the given credentialId in the CredentialStore.
+     * Credentials provided by plugins that do not persist through Jenkins (e.g. external secret stores) cannot be
+     * tracked through save events, so resolved credentials are looked up again at least this often.
+     */
+    private static final long MAX_AGE_MINUTES = 5;
+    private static final int MAX_ENTRIES = 1000;
+
+    private final Cache<String, Optional<StringCredentials>> resolved = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ENTRIES)
+            .expireAfterWrite(MAX_AGE_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * Finds the credential with the given credentialId in the CredentialStore. The result is cached until a
+     * credential store is saved.
      *
      * @param context The context (job) to be used to find the right credential.
      * @param credentialId The ID of the credential.
@@ -53,13 +85,48 @@ public class CredentialUtils {
      * domain.
      * @return The found credential, or null if the credential cannot be found.
      */
-    public StringCredentials resolveCredential(Item context, @CheckForNull String credentialId, String server) {
-        return credentialId == null ? null
-                : CredentialsMatchers.firstOrNull(CredentialsProvider.lookupCredentials(StringCredentials.class,
+    public StringCredentials resolveCredential(final Item context, @CheckForNull final String credentialId,
+            final String server) {
+        if (credentialId == null) {
+            return null;
+        }
+        try {
+            return resolved.get(getCacheKey(context, credentialId, server),
+                    new Callable<Optional<StringCredentials>>() {
+
+                        @Override
+                        public Optional<StringCredentials> call() {
+                            return Optional.fromNullable(lookupCredential(context, credentialId, server));
+                        }
+                    }).orNull();
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    /**
+     * Discards every cached credential, should be called whenever a credential may have been added, changed or
+     * removed.
+     */
+    public void invalidate() {
+        resolved.invalidateAll();
+    }
+
+    private StringCredentials lookupCredential(Item context, String credentialId, String server) {
+        return CredentialsMatchers.firstOrNull(CredentialsProvider.lookupCredentials(StringCredentials.class,
                 context, ACL.SYSTEM, requirements(server)),
                 CredentialsMatchers.withId(credentialId));
     }
 
+    /**
+     * The credentials visible to a job are those of the folders containing it and the global ones, so jobs in the
+     * same folder share their cache entries.
+     */
+    private String getCacheKey(Item context, String credentialId, String server) {
+        String scope = context == null ? "" : context.getParent().getFullName();
+        return scope + '\n' + credentialId + '\n' + server;
+    }
+
     /**
      * Retrieves the UI model object containing all acceptable credentials. This method can operate in two modes
      * essentially:
@@ -200,6 +267,41 @@ public class CredentialUtils {
     }
 
     private List<DomainRequirement> requirements(String server) {
-        return URIRequirementBuilder.fromUri("https://" + server).build();
+        return URIRequirementBuilder.fromUri(HipChatService.getBaseUrl(server)).build();
+    }
+
+    /**
+     * Credential stores are persisted by the objects holding them: the system store, folders and users.
+     */
+    @Extension
+    public static class CredentialStoreListener extends SaveableListener {
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof SystemCredentialsProvider || o instanceof ItemGroup || o instanceof User) {
+                get(CredentialUtils.class).invalidate();
+            }
+        }
+    }
+
+    /**
+     * Moving or deleting a folder changes the credentials visible to the jobs within.
+     */
+    @Extension
+    public static class FolderListener extends ItemListener {
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof ItemGroup) {
+                get(CredentialUtils.class).invalidate();
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof ItemGroup) {
+                get(CredentialUtils.class).invalidate();
+            }
+        }
     }
 }
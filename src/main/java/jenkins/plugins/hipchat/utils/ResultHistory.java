@@ -0,0 +1,155 @@
+package jenkins.plugins.hipchat.utils;
+
+import hudson.model.Result;
+import hudson.model.Run;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The conclusive results of the most recent builds of a single job, so that the result preceding a build can be
+ * determined without loading older build records from disk. Conclusive results are the ones other than
+ * {@link Result#ABORTED} and {@link Result#NOT_BUILT}.
+ * <p>
+ * The history is authoritative for the builds numbered above {@link #floor}: every completed build in that range with
+ * a conclusive result is either recorded, or has been evicted in which case the floor has been raised accordingly.
+ */
+final class ResultHistory {
+
+    static final int CAPACITY = 16;
+    private static final Result[] CONCLUSIVE = {Result.SUCCESS, Result.UNSTABLE, Result.FAILURE};
+
+    /**
+     * Build numbers in ascending order, with their result ordinals at the same index.
+     */
+    private final int[] numbers = new int[CAPACITY];
+    private final byte[] ordinals = new byte[CAPACITY];
+    private final Set<Integer> building = new HashSet<>();
+    private int size;
+    private int floor;
+    private boolean initialized;
+
+    /**
+     * Builds the history by walking back from the last build of the job until the first conclusive result.
+     *
+     * @param lastBuild The last build of the job, may be null.
+     */
+    synchronized void initialize(Run<?, ?> lastBuild) {
+        if (initialized) {
+            return;
+        }
+        Run<?, ?> run = lastBuild;
+        while (run != null) {
+            if (run.isBuilding()) {
+                building.add(run.getNumber());
+            } else if (isConclusive(run.getResult())) {
+                insert(run.getNumber(), run.getResult());
+                floor = run.getNumber() - 1;
+                break;
+            }
+            run = run.getPreviousBuild();
+        }
+        initialized = true;
+    }
+
+    synchronized void started(int number) {
+        if (initialized) {
+            building.add(number);
+        }
+    }
+
+    synchronized void completed(int number, Result result) {
+        if (initialized) {
+            building.remove(number);
+            if (isConclusive(result) && number > floor) {
+                insert(number, result);
+            }
+        }
+    }
+
+    synchronized void deleted(int number) {
+        if (initialized) {
+            building.remove(number);
+            int index = indexOf(number);
+            if (index >= 0) {
+                System.arraycopy(numbers, index + 1, numbers, index, size - index - 1);
+                System.arraycopy(ordinals, index + 1, ordinals, index, size - index - 1);
+                size--;
+            }
+        }
+    }
+
+    /**
+     * Looks up the last conclusive result before the given build.
+     *
+     * @param number The number of the build.
+     * @return The result, or <code>null</code> if there is no such result or if a build in between is still running.
+     * @throws IllegalStateException If the history does not go back far enough to answer.
+     */
+    synchronized Result findPreviousResult(int number) {
+        int index = size - 1;
+        while (index >= 0 && numbers[index] >= number) {
+            index--;
+        }
+        int previous;
+        if (index >= 0) {
+            previous = numbers[index];
+        } else if (floor == 0) {
+            previous = 0;
+        } else {
+            throw new IllegalStateException("Result history does not cover build #" + number);
+        }
+        for (int running : building) {
+            if (running > previous && running < number) {
+                return null;
+            }
+        }
+        return index >= 0 ? CONCLUSIVE[ordinals[index]] : null;
+    }
+
+    private void insert(int number, Result result) {
+        if (indexOf(number) >= 0) {
+            return;
+        }
+        if (size == CAPACITY) {
+            if (number < numbers[0]) {
+                return;
+            }
+            // Evict the oldest result, the history no longer knows what happened before it
+            floor = numbers[0];
+            System.arraycopy(numbers, 1, numbers, 0, size - 1);
+            System.arraycopy(ordinals, 1, ordinals, 0, size - 1);
+            size--;
+        }
+        int index = size;
+        while (index > 0 && numbers[index - 1] > number) {
+            numbers[index] = numbers[index - 1];
+            ordinals[index] = ordinals[index - 1];
+            index--;
+        }
+        numbers[index] = number;
+        ordinals[index] = (byte) ordinalOf(result);
+        size++;
+    }
+
+    private int indexOf(int number) {
+        for (int i = 0; i < size; i++) {
+            if (numbers[i] == number) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int ordinalOf(Result result) {
+        for (int i = 0; i < CONCLUSIVE.length; i++) {
+            if (CONCLUSIVE[i] == result) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a conclusive result: " + result);
+    }
+
+    static boolean isConclusive(Result result) {
+        return result != null && result != Result.ABORTED && result != Result.NOT_BUILT;
+    }
+}
@@ -2,7 +2,6 @@ package jenkins.plugins.hipchat.workflow;
 
 import hudson.AbortException;
 import hudson.Extension;
-import hudson.ExtensionList;
 import hudson.FilePath;
 import hudson.model.Item;
 import hudson.model.Run;
@@ -15,23 +14,33 @@ import javax.inject.Inject;
 import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
 import jenkins.model.Jenkins;
 import jenkins.plugins.hipchat.CardProvider;
 import jenkins.plugins.hipchat.HipChatNotifier;
-import jenkins.plugins.hipchat.HipChatService;
 import jenkins.plugins.hipchat.Messages;
+import jenkins.plugins.hipchat.delivery.NotificationDispatcher;
 import jenkins.plugins.hipchat.exceptions.NotificationException;
-import jenkins.plugins.hipchat.impl.NoopCardProvider;
+import jenkins.plugins.hipchat.ledger.LedgerEntry;
+import jenkins.plugins.hipchat.ledger.NotificationLedgerAction;
+import jenkins.plugins.hipchat.model.HipChatTarget;
+import jenkins.plugins.hipchat.model.ServiceCapability;
+import jenkins.plugins.hipchat.model.notifications.Card;
 import jenkins.plugins.hipchat.model.notifications.Icon;
 import jenkins.plugins.hipchat.model.notifications.Notification;
 import jenkins.plugins.hipchat.model.notifications.Notification.Color;
 import jenkins.plugins.hipchat.model.notifications.Notification.MessageFormat;
+import jenkins.plugins.hipchat.template.CompiledTemplate;
+import jenkins.plugins.hipchat.template.MacroMemo;
+import jenkins.plugins.hipchat.template.TemplateCache;
+import jenkins.plugins.hipchat.tracing.Span;
+import jenkins.plugins.hipchat.tracing.Tracer;
 import jenkins.plugins.hipchat.utils.BuildUtils;
 import jenkins.plugins.hipchat.utils.CredentialUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
-import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
@@ -128,6 +137,10 @@ public class HipChatSendStep extends AbstractStepImpl {
         @Inject
         private transient CredentialUtils credentialUtils;
         @Inject
+        private transient NotificationDispatcher notificationDispatcher;
+        @Inject
+        private transient TemplateCache templateCache;
+        @Inject
         private transient HipChatSendStep step;
         @StepContextParameter
         private transient TaskListener listener;
@@ -146,6 +159,13 @@ public class HipChatSendStep extends AbstractStepImpl {
                 return null;
             }
 
+            try (Span trace = Tracer.startTrace("hipchatSend")) {
+                send();
+            }
+            return null;
+        }
+
+        private void send() throws AbortException {
             //default to global config values if not set in step, but allow step to override all global settings
             HipChatNotifier.DescriptorImpl hipChatDesc =
                     Jenkins.getInstance().getDescriptorByType(HipChatNotifier.DescriptorImpl.class);
@@ -164,16 +184,20 @@ public class HipChatSendStep extends AbstractStepImpl {
             }
 
             if (StringUtils.isNotEmpty(credentialId)) {
-                StringCredentials creds = credentialUtils.resolveCredential(run.getParent(), credentialId, server);
-                if (creds != null) {
-                    token = Secret.toString(creds.getSecret());
+                try (Span span = Tracer.startSpan("resolveCredential")) {
+                    StringCredentials creds = credentialUtils.resolveCredential(run.getParent(), credentialId,
+                            server);
+                    if (creds != null) {
+                        token = Secret.toString(creds.getSecret());
+                    }
                 }
             }
             //default to gray if not set in step
             Color color = step.color != null ? step.color : Color.GRAY;
             boolean v2enabled = step.v2enabled != null ? step.v2enabled : hipChatDesc.isV2Enabled();
 
-            HipChatService hipChatService = HipChatNotifier.getHipChatService(server, token, v2enabled, room, sendAs);
+            HipChatTarget target = new HipChatTarget(server, token, v2enabled, room, sendAs);
+            LedgerEntry entry = NotificationLedgerAction.record(run, "hipchatSend", room);
 
             logger.log(Level.FINER, "HipChat publish settings: api v2 - {0} server - {1} token - {2} room - {3}",
                     new Object[]{v2enabled, server, token, room});
@@ -186,25 +210,37 @@ public class HipChatSendStep extends AbstractStepImpl {
                 } catch (IOException | InterruptedException ex) {
                     //workspace is not always available, ignore these exceptions
                 }
-                String message = TokenMacro.expandAll(run, workspace, listener,
-                        HipChatNotifier.migrateMessageTemplate(step.message), false, null);
-
-                CardProvider cardProvider = ExtensionList.lookup(CardProvider.class).getDynamic(Jenkins.getInstance()
-                        .getDescriptorByType(jenkins.plugins.hipchat.HipChatNotifier.DescriptorImpl.class)
-                        .getCardProvider());
-                if (cardProvider == null) {
-                    cardProvider = new NoopCardProvider();
+                Set<ServiceCapability> capabilities = target.getCapabilities();
+                boolean html = !step.textFormat && capabilities.contains(ServiceCapability.HTML);
+                String message;
+                Card card = null;
+                try (MacroMemo memo = MacroMemo.open(run)) {
+                    CompiledTemplate messageTemplate = templateCache.get(step.message);
+                    try (Span span = Tracer.startSpan("expandAll")) {
+                        message = messageTemplate.expand(run, workspace, listener,
+                                Collections.<String, String>emptyMap(), false, target.getMaxMessageLength(), html);
+                    }
+                    if (capabilities.contains(ServiceCapability.CARD)) {
+                        Icon icon = StringUtils.isEmpty(step.icon) || !capabilities.contains(ServiceCapability.ICON)
+                                ? null : new Icon().withUrl(step.icon);
+                        try (Span span = Tracer.startSpan("getCard")) {
+                            card = CardProvider.getConfigured().getCard(run, listener, icon, message);
+                        }
+                    }
                 }
 
-                hipChatService.publish(new Notification()
+                notificationDispatcher.publish(target, new Notification()
                         .withColor(color)
                         .withMessage(message)
-                        .withCard(cardProvider.getCard(run, listener,
-                                StringUtils.isEmpty(step.icon) ? null : new Icon().withUrl(step.icon), message))
+                        .withCard(card)
                         .withNotify(step.notify)
-                        .withMessageFormat(step.textFormat ? MessageFormat.TEXT : MessageFormat.HTML));
+                        .withMessageFormat(html ? MessageFormat.HTML : MessageFormat.TEXT),
+                        entry.track(null));
                 listener.getLogger().println(Messages.NotificationSuccessful(room));
             } catch (MacroEvaluationException | IOException | NotificationException ex) {
+                if (entry.getStatus() == LedgerEntry.Status.PENDING) {
+                    entry.failed(ex.getMessage());
+                }
                 listener.getLogger().println(Messages.NotificationFailed(ex.getMessage()));
                 //allow entire run to fail based on failOnError field
                 if (step.failOnError) {
@@ -214,9 +250,9 @@ public class HipChatSendStep extends AbstractStepImpl {
                 }
             } catch (InterruptedException ie) {
                 Thread.currentThread().interrupt();
+            } finally {
+                entry.dispatched();
             }
-
-            return null;
         }
 
         private String firstNonEmpty(String value, String defaultValue) {
@@ -0,0 +1,41 @@
+package jenkins.plugins.hipchat;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jenkins.plugins.hipchat.impl.DefaultCardProvider;
+import jenkins.plugins.hipchat.impl.NoopCardProvider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class CardProviderTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void configuredProviderIsResolvedOnce() {
+        CardProvider provider = CardProvider.getConfigured();
+
+        assertThat(provider).isInstanceOf(DefaultCardProvider.class);
+        assertThat(CardProvider.getConfigured()).isSameAs(provider);
+    }
+
+    @Test
+    public void providerIsResolvedAgainAfterConfigurationChange() {
+        HipChatNotifier.DescriptorImpl descriptor =
+                j.jenkins.getDescriptorByType(HipChatNotifier.DescriptorImpl.class);
+        CardProvider.getConfigured();
+
+        descriptor.setCardProvider(NoopCardProvider.class.getName());
+
+        assertThat(CardProvider.getConfigured()).isInstanceOf(NoopCardProvider.class);
+    }
+
+    @Test
+    public void missingProviderFallsBackToSharedInstance() {
+        j.jenkins.getDescriptorByType(HipChatNotifier.DescriptorImpl.class).setCardProvider("com.example.Missing");
+
+        assertThat(CardProvider.getConfigured()).isSameAs(NoopCardProvider.INSTANCE);
+    }
+}
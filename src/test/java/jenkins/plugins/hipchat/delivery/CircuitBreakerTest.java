@@ -0,0 +1,95 @@
+package jenkins.plugins.hipchat.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jenkins.plugins.hipchat.delivery.CircuitBreaker.State;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final CircuitBreaker breaker = new CircuitBreaker("api.hipchat.com", ticker);
+
+    @Test
+    public void opensWhenFailureRateIsExceeded() {
+        record(CircuitBreaker.MIN_CALLS / 2, 100, false);
+        record(CircuitBreaker.MIN_CALLS / 2, 100, true);
+
+        assertThat(breaker.getState()).isEqualTo(State.OPEN);
+        assertThat(breaker.tryAcquire()).isEqualTo(CircuitBreaker.REJECTED);
+    }
+
+    @Test
+    public void opensWhenSlowCallRateIsExceeded() {
+        record(CircuitBreaker.MIN_CALLS, CircuitBreaker.SLOW_CALL_MILLIS, false);
+
+        assertThat(breaker.getState()).isEqualTo(State.OPEN);
+    }
+
+    @Test
+    public void staysClosedBelowMinimumCalls() {
+        record(CircuitBreaker.MIN_CALLS - 1, 100, true);
+
+        assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+        assertThat(breaker.tryAcquire()).isNotEqualTo(CircuitBreaker.REJECTED);
+    }
+
+    @Test
+    public void closesAfterSuccessfulProbes() {
+        record(CircuitBreaker.MIN_CALLS, 100, true);
+        ticker.advance(CircuitBreaker.OPEN_DURATION_MILLIS);
+
+        long[] permits = new long[CircuitBreaker.HALF_OPEN_PROBES];
+        for (int i = 0; i < permits.length; i++) {
+            permits[i] = breaker.tryAcquire();
+            assertThat(permits[i]).isNotEqualTo(CircuitBreaker.REJECTED);
+        }
+        assertThat(breaker.tryAcquire()).isEqualTo(CircuitBreaker.REJECTED);
+        assertThat(breaker.getState()).isEqualTo(State.HALF_OPEN);
+
+        for (long permit : permits) {
+            breaker.record(permit, 100, false);
+        }
+        assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    public void reopensAfterFailedProbe() {
+        record(CircuitBreaker.MIN_CALLS, 100, true);
+        ticker.advance(CircuitBreaker.OPEN_DURATION_MILLIS);
+
+        long permit = breaker.tryAcquire();
+        assertThat(permit).isNotEqualTo(CircuitBreaker.REJECTED);
+        breaker.record(permit, 100, true);
+
+        assertThat(breaker.getState()).isEqualTo(State.OPEN);
+        assertThat(breaker.tryAcquire()).isEqualTo(CircuitBreaker.REJECTED);
+    }
+
+    @Test
+    public void staleResultsAreNotCountedAsProbes() {
+        long stale = breaker.tryAcquire();
+        record(CircuitBreaker.MIN_CALLS, 100, true);
+        ticker.advance(CircuitBreaker.OPEN_DURATION_MILLIS);
+
+        long probe = breaker.tryAcquire();
+        for (int i = 0; i < CircuitBreaker.HALF_OPEN_PROBES; i++) {
+            breaker.record(stale, 100, false);
+        }
+        assertThat(breaker.getState()).isEqualTo(State.HALF_OPEN);
+
+        breaker.record(stale, 100, true);
+        assertThat(breaker.getState()).isEqualTo(State.HALF_OPEN);
+
+        breaker.record(probe, 100, true);
+        assertThat(breaker.getState()).isEqualTo(State.OPEN);
+    }
+
+    private void record(int count, long durationMillis, boolean failed) {
+        for (int i = 0; i < count; i++) {
+            long permit = breaker.tryAcquire();
+            assertThat(permit).isNotEqualTo(CircuitBreaker.REJECTED);
+            breaker.record(permit, durationMillis, failed);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package jenkins.plugins.hipchat.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import jenkins.plugins.hipchat.impl.HipChatV2Service;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import jenkins.plugins.hipchat.stub.HipChatStubServer;
+import jenkins.plugins.hipchat.stub.HipChatStubServer.Fault;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeduplicationStoreTest {
+
+    private static final long NOW = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keysAreDeterministic() {
+        assertThat(DeduplicationStore.getKey("job/1/SUCCESS", "api.hipchat.com", "room"))
+                .isEqualTo(DeduplicationStore.getKey("job/1/SUCCESS", "api.hipchat.com", "room"))
+                .isNotEqualTo(DeduplicationStore.getKey("job/1/SUCCESS", "api.hipchat.com", "other"))
+                .hasSize(32);
+    }
+
+    @Test
+    public void deliveredKeyIsRejected() throws Exception {
+        DeduplicationStore store = new DeduplicationStore(folder.newFile());
+        String key = DeduplicationStore.getKey("job/1/SUCCESS", "server", "room");
+
+        assertThat(store.tryAcquire(key, NOW)).isTrue();
+        assertThat(store.tryAcquire(key, NOW)).as("concurrent duplicate").isFalse();
+        store.release(key, true, NOW);
+
+        assertThat(store.tryAcquire(key, NOW + 1000)).isFalse();
+    }
+
+    @Test
+    public void failedKeyCanBeAttemptedAgain() throws Exception {
+        DeduplicationStore store = new DeduplicationStore(folder.newFile());
+        String key = DeduplicationStore.getKey("job/1/SUCCESS", "server", "room");
+
+        assertThat(store.tryAcquire(key, NOW)).isTrue();
+        store.release(key, false, NOW);
+
+        assertThat(store.tryAcquire(key, NOW)).isTrue();
+    }
+
+    @Test
+    public void keysExpireAfterWindow() throws Exception {
+        DeduplicationStore store = new DeduplicationStore(folder.newFile());
+        String key = DeduplicationStore.getKey("job/1/SUCCESS", "server", "room");
+        store.tryAcquire(key, NOW);
+        store.release(key, true, NOW);
+
+        assertThat(store.tryAcquire(key, NOW + DeduplicationStore.WINDOW_MILLIS / 2 + 1)).isFalse();
+        assertThat(store.tryAcquire(key, NOW + DeduplicationStore.WINDOW_MILLIS + 1)).isTrue();
+    }
+
+    @Test
+    public void olderKeysAreFoundInBloomFilter() throws Exception {
+        DeduplicationStore store = new DeduplicationStore(folder.newFile());
+        String first = DeduplicationStore.getKey("job/1/SUCCESS", "server", "room");
+        store.tryAcquire(first, NOW);
+        store.release(first, true, NOW);
+        // Push the first key out of the recent keys
+        for (int i = 0; i < DeduplicationStore.MAX_RECENT_KEYS; i++) {
+            String key = DeduplicationStore.getKey("job/" + (i + 2) + "/SUCCESS", "server", "room");
+            store.tryAcquire(key, NOW);
+            store.release(key, true, NOW);
+        }
+
+        assertThat(store.tryAcquire(first, NOW)).isFalse();
+    }
+
+    @Test
+    public void storeSurvivesRestart() throws Exception {
+        File file = new File(folder.getRoot(), "dedup.bin");
+        DeduplicationStore store = new DeduplicationStore(file);
+        String key = DeduplicationStore.getKey("job/1/SUCCESS", "server", "room");
+        store.tryAcquire(key, NOW);
+        store.release(key, true, NOW);
+        store.save();
+
+        DeduplicationStore reloaded = new DeduplicationStore(file);
+        assertThat(reloaded.tryAcquire(key, NOW + 1000)).isFalse();
+        assertThat(reloaded.tryAcquire(DeduplicationStore.getKey("job/2/SUCCESS", "server", "room"), NOW + 1000))
+                .isTrue();
+    }
+
+    @Test
+    public void eventIsDeliveredToEachRoomAtMostOnce() throws Exception {
+        DeduplicationStore store = new DeduplicationStore(folder.newFile());
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            HipChatV2Service service = new HipChatV2Service(stub.getServer(), "token", "room1,room2");
+            service.setDeduplication(store, "job/1/SUCCESS");
+            service.publish(new Notification().withMessage("hello"));
+
+            HipChatV2Service resent = new HipChatV2Service(stub.getServer(), "token", "room2,room3");
+            resent.setDeduplication(store, "job/1/SUCCESS");
+            PublishReport report = resent.publishAsync(new Notification().withMessage("hello"), null).get();
+
+            assertThat(report.isSuccessful()).isTrue();
+            assertThat(report.getOutcomes().get(0).isDuplicate()).isTrue();
+            assertThat(stub.getRequests()).hasSize(3);
+        }
+    }
+
+    @Test
+    public void ambiguousFailureIsNotRetried() throws Exception {
+        DeduplicationStore store = new DeduplicationStore(folder.newFile());
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            stub.enqueue(Fault.error(500));
+            HipChatV2Service service = new HipChatV2Service(stub.getServer(), "token", "room");
+            service.setDeduplication(store, "job/1/SUCCESS");
+
+            PublishReport report = service.publishAsync(new Notification().withMessage("hello"), null).get();
+
+            assertThat(report.isSuccessful()).isFalse();
+            assertThat(stub.getRequests()).hasSize(1);
+        }
+    }
+}
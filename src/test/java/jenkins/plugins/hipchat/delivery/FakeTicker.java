@@ -0,0 +1,21 @@
+package jenkins.plugins.hipchat.delivery;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Ticker} that only moves when told to.
+ */
+class FakeTicker extends Ticker {
+
+    private long nanos;
+
+    @Override
+    public long read() {
+        return nanos;
+    }
+
+    void advance(long millis) {
+        nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
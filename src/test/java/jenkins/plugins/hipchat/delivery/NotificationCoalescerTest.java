@@ -0,0 +1,70 @@
+package jenkins.plugins.hipchat.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import jenkins.plugins.hipchat.model.HipChatTarget;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import jenkins.plugins.hipchat.model.notifications.Notification.Color;
+import jenkins.plugins.hipchat.model.notifications.Notification.MessageFormat;
+import org.apache.http.concurrent.FutureCallback;
+import org.junit.Test;
+
+public class NotificationCoalescerTest {
+
+    private static final long WINDOW = 60000;
+    private final HipChatTarget target = new HipChatTarget("api.hipchat.com", "token", true, "room", null);
+    private final List<Notification> sent = new ArrayList<>();
+    private final NotificationCoalescer coalescer = new NotificationCoalescer(new NotificationCoalescer.Sender() {
+        @Override
+        public void send(HipChatTarget target, Notification notification, FutureCallback<PublishReport> callback) {
+            sent.add(notification);
+            callback.completed(new PublishReport(Collections.singletonList(new RoomOutcome("room", 204, null))));
+        }
+    });
+
+    @Test
+    public void notificationsAreHeldUntilBatchIsFull() throws Exception {
+        Future<PublishReport> first = coalescer.coalesce(target, notification("job1", Color.GREEN), null, WINDOW, 3);
+        coalescer.coalesce(target, notification("job2", Color.RED), null, WINDOW, 3);
+
+        assertThat(sent).isEmpty();
+        assertThat(first.isDone()).isFalse();
+
+        coalescer.coalesce(target, notification("job3", Color.GREEN), null, WINDOW, 3);
+
+        assertThat(sent).hasSize(1);
+        assertThat(sent.get(0).getMessage()).contains("job1<br>job2<br>job3");
+        assertThat(sent.get(0).getColor()).isEqualTo(Color.RED);
+        assertThat(first.get().isSuccessful()).isTrue();
+    }
+
+    @Test
+    public void singleNotificationIsSentUnchanged() {
+        Notification notification = notification("job1", Color.GREEN);
+        coalescer.coalesce(target, notification, null, WINDOW, 3);
+
+        coalescer.flushAll();
+
+        assertThat(sent).containsExactly(notification);
+    }
+
+    @Test
+    public void differentRoomsAreNotMerged() {
+        coalescer.coalesce(target, notification("job1", Color.GREEN), null, WINDOW, 3);
+        coalescer.coalesce(target.withRoom("other"), notification("job2", Color.GREEN), null, WINDOW, 3);
+
+        coalescer.flushAll();
+
+        assertThat(sent).hasSize(2);
+    }
+
+    private Notification notification(String message, Color color) {
+        return new Notification().withMessage(message).withColor(color).withMessageFormat(MessageFormat.HTML);
+    }
+}
@@ -0,0 +1,120 @@
+package jenkins.plugins.hipchat.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import jenkins.plugins.hipchat.delivery.NotificationJournal.RecoveredEntry;
+import jenkins.plugins.hipchat.exceptions.InvalidResponseCodeException;
+import jenkins.plugins.hipchat.model.HipChatTarget;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class NotificationJournalTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void undeliveredRoomsAreRecovered() throws Exception {
+        File directory = folder.newFolder();
+        NotificationJournal journal = new NotificationJournal(directory);
+        long first = journal.append(new HipChatTarget("api.hipchat.com", "token", true, "room1, room2", null),
+                new Notification().withMessage("first"));
+        long second = journal.append(new HipChatTarget("api.hipchat.com", "token", true, "room3", null),
+                new Notification().withMessage("second"));
+        journal.acknowledge(first, "room1");
+        journal.acknowledge(second, "room3");
+        journal.close();
+
+        List<RecoveredEntry> entries = new NotificationJournal(directory).drainRecoveredEntries();
+
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0).getId()).isEqualTo(first);
+        assertThat(entries.get(0).getTarget().getRoom()).isEqualTo("room2");
+        assertThat(entries.get(0).getTarget().getToken()).isEqualTo("token");
+        assertThat(entries.get(0).getNotification().getMessage()).isEqualTo("first");
+    }
+
+    @Test
+    public void recoveredEntriesAreOnlyReturnedOnce() throws Exception {
+        File directory = folder.newFolder();
+        NotificationJournal journal = new NotificationJournal(directory);
+        journal.append(new HipChatTarget("api.hipchat.com", "token", true, "room", null),
+                new Notification().withMessage("message"));
+        journal.close();
+
+        NotificationJournal reopened = new NotificationJournal(directory);
+
+        assertThat(reopened.drainRecoveredEntries()).hasSize(1);
+        assertThat(reopened.drainRecoveredEntries()).isEmpty();
+    }
+
+    @Test
+    public void releasedEntriesAreReturnedAgain() throws Exception {
+        NotificationJournal journal = new NotificationJournal(folder.newFolder());
+        long id = journal.append(new HipChatTarget("api.hipchat.com", "token", true, "room", null),
+                new Notification().withMessage("message"));
+
+        assertThat(journal.drainRecoveredEntries()).isEmpty();
+
+        journal.release(id);
+
+        assertThat(journal.drainRecoveredEntries()).hasSize(1);
+        assertThat(journal.drainRecoveredEntries()).isEmpty();
+    }
+
+    @Test
+    public void expiredEntriesAreGivenUp() throws Exception {
+        NotificationJournal journal = new NotificationJournal(folder.newFolder());
+        long id = journal.append(new HipChatTarget("api.hipchat.com", "token", true, "room", null),
+                new Notification().withMessage("message"));
+        journal.release(id);
+
+        assertThat(journal.drainRecoveredEntries(System.currentTimeMillis() + NotificationJournal.MAX_ENTRY_AGE + 1))
+                .isEmpty();
+
+        journal.release(id);
+
+        assertThat(journal.drainRecoveredEntries()).isEmpty();
+    }
+
+    @Test
+    public void rateLimitedRoomsAreReleased() throws Exception {
+        NotificationJournal journal = new NotificationJournal(folder.newFolder());
+        long id = journal.append(new HipChatTarget("api.hipchat.com", "token", true, "room1, room2, room3", null),
+                new Notification().withMessage("message"));
+
+        new NotificationDispatcher.JournalCallback(journal, id, null).completed(new PublishReport(Arrays.asList(
+                new RoomOutcome("room1", 204, null),
+                new RoomOutcome("room2", 429, new InvalidResponseCodeException(429)),
+                new RoomOutcome("room3", 404, new InvalidResponseCodeException(404)))));
+
+        List<RecoveredEntry> entries = journal.drainRecoveredEntries();
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0).getTarget().getRoom()).isEqualTo("room2");
+    }
+
+    @Test
+    public void idsAreNotReusedAfterRestart() throws Exception {
+        File directory = folder.newFolder();
+        NotificationJournal journal = new NotificationJournal(directory);
+        long id = journal.append(new HipChatTarget("api.hipchat.com", "token", true, "room", null),
+                new Notification().withMessage("message"));
+        journal.acknowledge(id, "room");
+        journal.close();
+
+        NotificationJournal reopened = new NotificationJournal(directory);
+
+        assertThat(reopened.append(new HipChatTarget("api.hipchat.com", "token", true, "room", null),
+                new Notification().withMessage("message"))).isGreaterThan(id);
+    }
+}
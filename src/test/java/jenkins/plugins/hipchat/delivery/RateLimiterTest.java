@@ -0,0 +1,92 @@
+package jenkins.plugins.hipchat.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    @Test
+    public void requestsWithinLimitAreNotDelayed() {
+        RateLimiter limiter = new RateLimiter(3, ticker);
+
+        assertThat(limiter.reserve()).isZero();
+        assertThat(limiter.reserve()).isZero();
+        assertThat(limiter.reserve()).isZero();
+    }
+
+    @Test
+    public void requestsAboveLimitArePaced() {
+        RateLimiter limiter = new RateLimiter(300, ticker);
+        for (int i = 0; i < 300; i++) {
+            limiter.reserve();
+        }
+
+        assertThat(limiter.reserve()).isCloseTo(1000L, within(1L));
+        assertThat(limiter.reserve()).isCloseTo(2000L, within(1L));
+
+        ticker.advance(2000);
+        assertThat(limiter.reserve()).isCloseTo(1000L, within(1L));
+    }
+
+    @Test
+    public void remainingHeaderResynchronizesBucket() {
+        RateLimiter limiter = new RateLimiter(500, ticker);
+
+        limiter.update(response(204, "100", "0",
+                String.valueOf(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 300)));
+
+        assertThat(limiter.reserve()).isGreaterThan(0);
+    }
+
+    @Test
+    public void resetIsMeasuredWithTicker() {
+        long start = System.currentTimeMillis();
+        RateLimiter limiter = new RateLimiter(100, ticker);
+        ticker.advance(200000);
+
+        limiter.update(response(204, "100", "0", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(start + 300000))));
+
+        // 100 requests are replenished over the remaining 100 seconds
+        assertThat(limiter.reserve()).isCloseTo(1000L, within(20L));
+    }
+
+    @Test
+    public void tooManyRequestsDrainsBucket() {
+        RateLimiter limiter = new RateLimiter(500, ticker);
+
+        limiter.update(response(429, null, null, null));
+
+        assertThat(limiter.reserve()).isGreaterThan(0);
+    }
+
+    @Test
+    public void responsesWithoutHeadersAreIgnored() {
+        RateLimiter limiter = new RateLimiter(1, ticker);
+
+        limiter.update(response(204, null, null, null));
+
+        assertThat(limiter.reserve()).isZero();
+    }
+
+    private HttpResponse response(int status, String limit, String remaining, String reset) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        if (limit != null) {
+            response.addHeader("X-Ratelimit-Limit", limit);
+        }
+        if (remaining != null) {
+            response.addHeader("X-Ratelimit-Remaining", remaining);
+        }
+        if (reset != null) {
+            response.addHeader("X-Ratelimit-Reset", reset);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,30 @@
+package jenkins.plugins.hipchat.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class RetryBudgetTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    @Test
+    public void freshBudgetAllowsRetries() {
+        RetryBudget budget = new RetryBudget(ticker);
+
+        assertThat(budget.tryRetry()).isTrue();
+    }
+
+    @Test
+    public void exhaustedBudgetIsToppedUpOverTime() {
+        RetryBudget budget = new RetryBudget(ticker);
+        while (budget.tryRetry()) {
+            // Withdraw the initial balance
+        }
+
+        ticker.advance(1000);
+
+        assertThat(budget.tryRetry()).isTrue();
+        assertThat(budget.tryRetry()).isFalse();
+    }
+}
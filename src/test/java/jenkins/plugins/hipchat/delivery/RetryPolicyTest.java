@@ -0,0 +1,63 @@
+package jenkins.plugins.hipchat.delivery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import jenkins.plugins.hipchat.exceptions.InvalidResponseCodeException;
+import jenkins.plugins.hipchat.exceptions.NotificationException;
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(4, 100, 1000, 10000);
+
+    @Test
+    public void transientResponseCodesAreRetried() {
+        assertThat(policy.isRetryable(response(429))).isTrue();
+        assertThat(policy.isRetryable(response(500))).isTrue();
+        assertThat(policy.isRetryable(response(503))).isTrue();
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() {
+        assertThat(policy.isRetryable(response(400))).isFalse();
+        assertThat(policy.isRetryable(response(401))).isFalse();
+        assertThat(policy.isRetryable(response(404))).isFalse();
+    }
+
+    @Test
+    public void connectionFailuresAreRetried() {
+        assertThat(policy.isRetryable(failure(new ConnectException("Connection refused")))).isTrue();
+        assertThat(policy.isRetryable(failure(new IOException("Connection reset")))).isTrue();
+    }
+
+    @Test
+    public void unknownHostIsNotRetried() {
+        assertThat(policy.isRetryable(failure(new UnknownHostException("api.hipchat.com")))).isFalse();
+    }
+
+    @Test
+    public void successfulDeliveryIsNotRetried() {
+        assertThat(policy.isRetryable(new RoomOutcome("room", 204, null))).isFalse();
+    }
+
+    @Test
+    public void delayIsBoundedByExponentialCeiling() {
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.getDelay(2)).isBetween(0L, 100L);
+            assertThat(policy.getDelay(3)).isBetween(0L, 200L);
+            assertThat(policy.getDelay(10)).isBetween(0L, 1000L);
+        }
+    }
+
+    private RoomOutcome response(int responseCode) {
+        return new RoomOutcome("room", responseCode, new InvalidResponseCodeException(responseCode));
+    }
+
+    private RoomOutcome failure(IOException cause) {
+        return new RoomOutcome("room", 0, new NotificationException(cause.getMessage(), cause));
+    }
+}
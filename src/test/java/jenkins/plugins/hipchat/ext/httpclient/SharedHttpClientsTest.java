@@ -0,0 +1,33 @@
+package jenkins.plugins.hipchat.ext.httpclient;
+
+import static org.assertj.core.api.Assertions.*;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Test;
+
+public class SharedHttpClientsTest {
+
+    @After
+    public void tearDown() {
+        SharedHttpClients.closeAll();
+    }
+
+    @Test
+    public void clientIsSharedPerServer() {
+        CloseableHttpClient client = SharedHttpClients.get("example.hipchat.com", RequestConfig.DEFAULT);
+
+        assertThat(SharedHttpClients.get("example.hipchat.com", RequestConfig.DEFAULT)).isSameAs(client);
+        assertThat(SharedHttpClients.get("other.hipchat.com", RequestConfig.DEFAULT)).isNotSameAs(client);
+    }
+
+    @Test
+    public void invalidatedClientIsReplaced() {
+        CloseableHttpClient client = SharedHttpClients.get("example.hipchat.com", RequestConfig.DEFAULT);
+
+        SharedHttpClients.invalidate();
+
+        assertThat(SharedHttpClients.get("example.hipchat.com", RequestConfig.DEFAULT)).isNotSameAs(client);
+    }
+}
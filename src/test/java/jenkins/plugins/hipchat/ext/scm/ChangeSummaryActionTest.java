@@ -0,0 +1,108 @@
+package jenkins.plugins.hipchat.ext.scm;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.BDDMockito.*;
+
+import hudson.model.Run;
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.ChangeLogSet.Entry;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ChangeSummaryActionTest {
+
+    @Mock
+    private Run<?, ?> run;
+
+    @Test
+    public void changesOfAllCheckoutsAreAggregated() {
+        ChangeSummaryAction summary = new ChangeSummaryAction();
+        summary.add(new FakeChangeLogSet(entry("alice", 2, "First"), entry("bob", 3, "Second")));
+        summary.add(new FakeChangeLogSet(entry("alice", 5, "Third\nwith details")));
+
+        assertThat(summary.getDescription()).contains("alice, bob", "10");
+        assertThat(summary.getLastMessage(false)).isEqualTo("Third");
+    }
+
+    @Test
+    public void commitsCheckedOutTwiceAreCountedOnce() {
+        ChangeSummaryAction summary = new ChangeSummaryAction();
+        summary.add(new FakeChangeLogSet(entry("alice", 2, "First", "abc"), entry("bob", 3, "Second", "def")));
+        summary.add(new FakeChangeLogSet(entry("alice", 2, "First", "abc"), entry("bob", 3, "Second", "def")));
+
+        assertThat(summary.getDescription()).contains("alice, bob", "(5 file(s) changed)");
+    }
+
+    @Test
+    public void emptyChangelogDoesNotReplaceTheLastMessage() {
+        ChangeSummaryAction summary = new ChangeSummaryAction();
+        summary.add(new FakeChangeLogSet(entry("alice", 1, "Fix")));
+        summary.add(new FakeChangeLogSet());
+
+        assertThat(summary.getLastMessage(false)).isEqualTo("Fix");
+    }
+
+    @Test
+    public void buildWithoutChangesHasNoDescription() {
+        ChangeSummaryAction summary = new ChangeSummaryAction();
+        summary.add(new FakeChangeLogSet());
+
+        assertThat(summary.getDescription()).isNull();
+        assertThat(summary.getLastMessage(true)).isEmpty();
+    }
+
+    @Test
+    public void recordedSummaryIsReused() {
+        ChangeSummaryAction summary = new ChangeSummaryAction();
+        given(run.getAction(ChangeSummaryAction.class)).willReturn(summary);
+
+        assertThat(ChangeSummaryAction.get(run)).isSameAs(summary);
+    }
+
+    private Entry entry(String author, int files, String message) {
+        return entry(author, files, message, null);
+    }
+
+    private Entry entry(String author, int files, String message, String commitId) {
+        User user = mock(User.class);
+        given(user.getDisplayName()).willReturn(author);
+        Entry entry = mock(Entry.class);
+        given(entry.getAuthor()).willReturn(user);
+        Collection affectedFiles = mock(List.class);
+        given(affectedFiles.size()).willReturn(files);
+        given(entry.getAffectedFiles()).willReturn(affectedFiles);
+        given(entry.getMsg()).willReturn(message);
+        given(entry.getMsgEscaped()).willReturn(message);
+        given(entry.getCommitId()).willReturn(commitId);
+        return entry;
+    }
+
+    private static class FakeChangeLogSet extends ChangeLogSet {
+
+        private final List<Entry> entries;
+
+        private FakeChangeLogSet(Entry... entries) {
+            super(null);
+            this.entries = entries.length > 0 ? Arrays.asList(entries) : Collections.<Entry>emptyList();
+        }
+
+        @Override
+        public boolean isEmptySet() {
+            return entries.isEmpty();
+        }
+
+        @Override
+        public Iterator<Entry> iterator() {
+            return entries.iterator();
+        }
+    }
+}
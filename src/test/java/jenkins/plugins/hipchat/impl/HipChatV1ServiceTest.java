@@ -0,0 +1,60 @@
+package jenkins.plugins.hipchat.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import jenkins.plugins.hipchat.model.notifications.Notification.Color;
+import jenkins.plugins.hipchat.model.notifications.Notification.MessageFormat;
+import jenkins.plugins.hipchat.stub.HipChatStubServer;
+import jenkins.plugins.hipchat.stub.HipChatStubServer.Fault;
+import jenkins.plugins.hipchat.stub.HipChatStubServer.RecordedRequest;
+import org.junit.Test;
+
+public class HipChatV1ServiceTest {
+
+    @Test
+    public void notificationIsDeliveredToStubServer() throws Exception {
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            HipChatV1Service service = new HipChatV1Service(stub.getServer(), "token", "room 1", "Jenkins");
+
+            service.publish(new Notification().withMessage("a & b").withColor(Color.RED).withNotify(true)
+                    .withMessageFormat(MessageFormat.TEXT));
+
+            assertThat(stub.getRequests()).hasSize(1);
+            RecordedRequest request = stub.getRequests().get(0);
+            assertThat(request.getRoomId()).isEqualTo("room 1");
+            assertThat(request.getFormParameter("auth_token")).isEqualTo("token");
+            assertThat(request.getFormParameter("from")).isEqualTo("Jenkins");
+            assertThat(request.getFormParameter("message")).isEqualTo("a & b");
+            assertThat(request.getFormParameter("message_format")).isEqualTo("text");
+            assertThat(request.getFormParameter("color")).isEqualTo("red");
+            assertThat(request.getFormParameter("notify")).isEqualTo("1");
+        }
+    }
+
+    @Test
+    public void slowDripResponseIsRead() throws Exception {
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            stub.enqueue(Fault.slowDrip(200, "{\"status\":\"sent\"}", 10));
+            HipChatV1Service service = new HipChatV1Service(stub.getServer(), "token", "room", "Jenkins");
+
+            PublishReport report = service.publishAsync(new Notification().withMessage("hello"), null).get();
+
+            assertThat(report.isSuccessful()).isTrue();
+        }
+    }
+
+    @Test
+    public void rateLimitIsEnforced() throws Exception {
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            stub.withRateLimit(2);
+            HipChatV1Service service = new HipChatV1Service(stub.getServer(), "token", "room1,room2", "Jenkins");
+
+            PublishReport report = service.publishAsync(new Notification().withMessage("hello"), null).get();
+
+            assertThat(report.isSuccessful()).isTrue();
+            assertThat(stub.getRequests()).hasSize(2);
+        }
+    }
+}
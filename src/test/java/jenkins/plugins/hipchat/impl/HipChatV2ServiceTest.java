@@ -0,0 +1,181 @@
+package jenkins.plugins.hipchat.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.hipchat.HipChatService;
+import jenkins.plugins.hipchat.HipChatTransport;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import jenkins.plugins.hipchat.model.notifications.Notification.Color;
+import jenkins.plugins.hipchat.stub.HipChatStubServer;
+import jenkins.plugins.hipchat.stub.HipChatStubServer.Fault;
+import jenkins.plugins.hipchat.stub.HipChatStubServer.RecordedRequest;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class HipChatV2ServiceTest {
+
+    @Test
+    public void notificationIsSentToEveryRoom() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport(204);
+        HipChatV2Service service = new HipChatV2Service("hipchat.example.com", "token", "room1, room 2");
+        service.setTransport(transport);
+
+        PublishReport report = service.publishAsync(new Notification().withMessage("hello").withColor(Color.GREEN),
+                null).get();
+
+        assertThat(report.isSuccessful()).isTrue();
+        assertThat(transport.requests).hasSize(2);
+        List<String> uris = new ArrayList<>();
+        for (HttpUriRequest request : transport.requests) {
+            uris.add(request.getURI().toString());
+            assertThat(request.getFirstHeader("Authorization").getValue()).isEqualTo("Bearer token");
+            assertThat(EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()))
+                    .contains("\"message\":\"hello\"");
+        }
+        assertThat(uris).containsOnly("https://hipchat.example.com/v2/room/room1/notification",
+                "https://hipchat.example.com/v2/room/room%202/notification");
+    }
+
+    @Test
+    public void plainHttpIsOnlyUsedForLoopbackServers() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport(204);
+        HipChatV2Service service = new HipChatV2Service("http://hipchat.example.com/", "token", "room");
+        service.setTransport(transport);
+
+        service.publishAsync(new Notification().withMessage("hello"), null).get();
+
+        assertThat(transport.requests.get(0).getURI().toString())
+                .isEqualTo("https://hipchat.example.com/v2/room/room/notification");
+        assertThat(HipChatService.getBaseUrl("http://127.0.0.1:8080")).isEqualTo("http://127.0.0.1:8080");
+        assertThat(HipChatService.getBaseUrl("http://localhost:8080/")).isEqualTo("http://localhost:8080");
+        assertThat(HipChatService.getBaseUrl("http://[::1]:8080")).isEqualTo("http://[::1]:8080");
+    }
+
+    @Test
+    public void clientErrorIsReportedWithoutRetry() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport(401);
+        HipChatV2Service service = new HipChatV2Service("hipchat.example.com", "token", "room");
+        service.setTransport(transport);
+
+        PublishReport report = service.publishAsync(new Notification().withMessage("hello"), null).get();
+
+        assertThat(report.isSuccessful()).isFalse();
+        assertThat(report.getFailures().get(0).getResponseCode()).isEqualTo(401);
+        assertThat(transport.requests).hasSize(1);
+    }
+
+    @Test
+    public void notificationIsDeliveredToStubServer() throws Exception {
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            HipChatV2Service service = new HipChatV2Service(stub.getServer(), "token", "room1,room2");
+
+            service.publish(new Notification().withMessage("hello").withColor(Color.GREEN));
+
+            List<String> rooms = new ArrayList<>();
+            for (RecordedRequest request : stub.getRequests()) {
+                rooms.add(request.getRoomId());
+                assertThat(request.getHeader("Authorization")).isEqualTo("Bearer token");
+                assertThat(request.getHeader("Content-Type")).startsWith("application/json");
+                assertThat(request.getBody()).contains("\"message\":\"hello\"").contains("\"color\":\"green\"");
+            }
+            assertThat(rooms).containsOnly("room1", "room2");
+        }
+    }
+
+    @Test
+    public void serverErrorBurstIsRetried() throws Exception {
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            stub.enqueue(2, Fault.error(503));
+            HipChatV2Service service = new HipChatV2Service(stub.getServer(), "token", "room");
+
+            PublishReport report = service.publishAsync(new Notification().withMessage("hello"), null).get();
+
+            assertThat(report.isSuccessful()).isTrue();
+            assertThat(report.getOutcomes().get(0).getAttempts()).isEqualTo(3);
+            assertThat(stub.getRequests()).hasSize(3);
+        }
+    }
+
+    @Test
+    public void connectionResetIsRetried() throws Exception {
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            stub.enqueue(Fault.connectionReset());
+            HipChatV2Service service = new HipChatV2Service(stub.getServer(), "token", "room");
+
+            PublishReport report = service.publishAsync(new Notification().withMessage("hello"), null).get();
+
+            assertThat(report.isSuccessful()).isTrue();
+            assertThat(report.getOutcomes().get(0).getAttempts()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void rateLimitedRequestIsRetriedAfterReset() throws Exception {
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            long reset = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 1;
+            stub.enqueue(Fault.rateLimited(reset));
+            HipChatV2Service service = new HipChatV2Service(stub.getServer(), "token", "room");
+
+            PublishReport report = service.publishAsync(new Notification().withMessage("hello"), null).get();
+
+            assertThat(report.isSuccessful()).isTrue();
+            assertThat(stub.getRequests()).hasSize(2);
+        }
+    }
+
+    @Test
+    public void roomNameIsEncoded() throws Exception {
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            HipChatV2Service service = new HipChatV2Service(stub.getServer(), "token", "Build & Release/Team");
+
+            PublishReport report = service.publishAsync(new Notification().withMessage("hello"), null).get();
+
+            assertThat(report.isSuccessful()).isTrue();
+            assertThat(stub.getRequests().get(0).getRoomId()).isEqualTo("Build & Release/Team");
+        }
+    }
+
+    @Test
+    public void slowResponsesAreAwaited() throws Exception {
+        try (HipChatStubServer stub = HipChatStubServer.start()) {
+            stub.withLatency(HipChatStubServer.fixedLatency(200));
+            HipChatV2Service service = new HipChatV2Service(stub.getServer(), "token", "room");
+
+            long start = System.nanoTime();
+            service.publish(new Notification().withMessage("hello"));
+
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(200);
+        }
+    }
+
+    private static class InMemoryTransport extends HipChatTransport {
+
+        private final int responseCode;
+        private final List<HttpUriRequest> requests = new ArrayList<>();
+
+        private InMemoryTransport(int responseCode) {
+            this.responseCode = responseCode;
+        }
+
+        @Override
+        public synchronized Future<HttpResponse> execute(String server, HttpUriRequest request,
+                FutureCallback<HttpResponse> callback) {
+            requests.add(request);
+            BasicFuture<HttpResponse> future = new BasicFuture<>(callback);
+            future.completed(new BasicHttpResponse(HttpVersion.HTTP_1_1, responseCode, null));
+            return future;
+        }
+    }
+}
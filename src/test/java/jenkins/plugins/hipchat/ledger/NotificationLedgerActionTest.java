@@ -0,0 +1,63 @@
+package jenkins.plugins.hipchat.ledger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import java.util.Arrays;
+import jenkins.plugins.hipchat.exceptions.InvalidResponseCodeException;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class NotificationLedgerActionTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void ledgerRecordsPerRoomOutcomes() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        LedgerEntry entry = NotificationLedgerAction.record(build, "SUCCESS", "room1,room2");
+        entry.dispatched();
+        entry.completed(new PublishReport(Arrays.asList(
+                new RoomOutcome("room1", 204, null, 1, 120, 512),
+                new RoomOutcome("room2", 500, new InvalidResponseCodeException(500), 3, 4000, 1536))));
+
+        NotificationLedgerAction ledger = build.getAction(NotificationLedgerAction.class);
+        assertThat(ledger.getEntries()).containsExactly(entry);
+        assertThat(entry.getStatus()).isEqualTo(LedgerEntry.Status.PARTIAL);
+        assertThat(entry.getDeliveries()).hasSize(2);
+        RoomDelivery failed = entry.getDeliveries().get(1);
+        assertThat(failed.getRoom()).isEqualTo("room2");
+        assertThat(failed.getResponseCode()).isEqualTo(500);
+        assertThat(failed.getRetries()).isEqualTo(2);
+        assertThat(failed.getLatencyMillis()).isEqualTo(4000);
+        assertThat(failed.getBytesSent()).isEqualTo(1536);
+        assertThat(failed.isSuccessful()).isFalse();
+
+        String api = j.createWebClient().goTo(build.getUrl() + "api/xml?depth=2", "application/xml")
+                .getWebResponse().getContentAsString();
+        assertThat(api).contains("<type>SUCCESS</type>", "<status>PARTIAL</status>", "<room>room1</room>",
+                "<responseCode>500</responseCode>");
+    }
+
+    @Test
+    public void ledgerIsPersistedWithTheBuild() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        NotificationLedgerAction.record(build, "FAILURE", "room").failed("Credential missing");
+        build.getAction(NotificationLedgerAction.class).awaitSave();
+
+        build.reload();
+        NotificationLedgerAction ledger = build.getAction(NotificationLedgerAction.class);
+        assertThat(ledger.getEntries()).hasSize(1);
+        assertThat(ledger.getEntries().get(0).getStatus()).isEqualTo(LedgerEntry.Status.FAILED);
+        assertThat(ledger.getEntries().get(0).getError()).isEqualTo("Credential missing");
+    }
+}
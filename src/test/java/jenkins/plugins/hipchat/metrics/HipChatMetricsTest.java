@@ -0,0 +1,125 @@
+package jenkins.plugins.hipchat.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.hipchat.model.NotificationType;
+import jenkins.plugins.hipchat.model.PublishReport;
+import jenkins.plugins.hipchat.model.RoomOutcome;
+import org.junit.Test;
+
+public class HipChatMetricsTest {
+
+    private final HipChatMetrics metrics = new HipChatMetrics();
+
+    @Test
+    public void stripedCounterIsAccurateUnderContention() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(counter.sum()).isEqualTo(80000L);
+    }
+
+    @Test
+    public void requestsAreExposedAsHistogramAndCounters() throws IOException {
+        metrics.requestStarted();
+        metrics.requestCompleted("api.hipchat.com", "room", 204, TimeUnit.MILLISECONDS.toNanos(40));
+        metrics.requestStarted();
+        metrics.requestCompleted("api.hipchat.com", "room", 0, TimeUnit.SECONDS.toNanos(2));
+
+        assertThat(scrape()).contains(
+                "# TYPE hipchat_request_duration_seconds histogram\n",
+                "hipchat_request_duration_seconds_bucket{server=\"api.hipchat.com\",room=\"room\",le=\"0.025\"} 0\n",
+                "hipchat_request_duration_seconds_bucket{server=\"api.hipchat.com\",room=\"room\",le=\"0.05\"} 1\n",
+                "hipchat_request_duration_seconds_bucket{server=\"api.hipchat.com\",room=\"room\",le=\"2.5\"} 2\n",
+                "hipchat_request_duration_seconds_bucket{server=\"api.hipchat.com\",room=\"room\",le=\"+Inf\"} 2\n",
+                "hipchat_request_duration_seconds_sum{server=\"api.hipchat.com\",room=\"room\"} 2.04\n",
+                "hipchat_request_duration_seconds_count{server=\"api.hipchat.com\",room=\"room\"} 2\n",
+                "hipchat_responses_total{server=\"api.hipchat.com\",code=\"204\"} 1\n",
+                "hipchat_responses_total{server=\"api.hipchat.com\",code=\"none\"} 1\n",
+                "hipchat_requests_in_flight 0\n");
+    }
+
+    @Test
+    public void notificationsAreCountedByTypeAndOutcome() throws IOException {
+        metrics.recordNotification(NotificationType.SUCCESS, new PublishReport(
+                Collections.singletonList(new RoomOutcome("room", 204, null))));
+        metrics.recordNotification(NotificationType.FAILURE, null);
+
+        assertThat(scrape()).contains(
+                "hipchat_notifications_total{type=\"SUCCESS\",outcome=\"delivered\"} 1\n",
+                "hipchat_notifications_total{type=\"FAILURE\",outcome=\"failed\"} 1\n");
+    }
+
+    @Test
+    public void roomSeriesAreBounded() throws IOException {
+        for (int i = 0; i < HipChatMetrics.MAX_ROOM_SERIES + 10; i++) {
+            metrics.requestStarted();
+            metrics.requestCompleted("server", "room" + i, 204, 1000);
+        }
+
+        assertThat(scrape()).contains(
+                "hipchat_request_duration_seconds_count{server=\"server\",room=\"room0\"} 1\n",
+                "hipchat_request_duration_seconds_count{server=\"server\",room=\"other\"} 10\n");
+    }
+
+    @Test
+    public void roomSeriesAreBoundedUnderContention() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final int thread = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < HipChatMetrics.MAX_ROOM_SERIES; j++) {
+                        metrics.requestStarted();
+                        metrics.requestCompleted("server", "room" + thread + "-" + j, 204, 1000);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        String output = scrape();
+        int series = output.split("hipchat_request_duration_seconds_count\\{").length - 1;
+        assertThat(series).isEqualTo(HipChatMetrics.MAX_ROOM_SERIES + 1);
+    }
+
+    @Test
+    public void labelValuesAreEscaped() throws IOException {
+        metrics.recordRetry("bad\"server\\\n");
+
+        assertThat(scrape()).contains("hipchat_retries_total{server=\"bad\\\"server\\\\\\n\"} 1\n");
+    }
+
+    private String scrape() throws IOException {
+        StringWriter writer = new StringWriter();
+        metrics.writeTo(writer);
+        return writer.toString();
+    }
+}
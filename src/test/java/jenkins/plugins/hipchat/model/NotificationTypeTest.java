@@ -1,8 +1,25 @@
 package jenkins.plugins.hipchat.model;
 
 import static org.assertj.core.api.Assertions.*;
+import static org.mockito.BDDMockito.*;
 
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import jenkins.plugins.hipchat.CardProvider;
 import jenkins.plugins.hipchat.Messages;
+import jenkins.plugins.hipchat.impl.HipChatV1Service;
+import jenkins.plugins.hipchat.impl.HipChatV2Service;
+import jenkins.plugins.hipchat.model.notifications.Card;
+import jenkins.plugins.hipchat.model.notifications.Icon;
+import jenkins.plugins.hipchat.model.notifications.Notification;
+import jenkins.plugins.hipchat.model.notifications.Notification.Color;
+import jenkins.plugins.hipchat.model.notifications.Notification.MessageFormat;
+import jenkins.plugins.hipchat.template.CompiledTemplate;
+import jenkins.plugins.hipchat.template.TemplateCache;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 import org.junit.Test;
 
 public class NotificationTypeTest {
@@ -41,4 +58,58 @@ public class NotificationTypeTest {
     public void testUnstableStatus() {
         assertThat(NotificationType.UNSTABLE.getStatus().contains(Messages.Unstable()));
     }
+
+    @Test
+    public void cardIsNotComputedForV1() throws Exception {
+        CardProvider cardProvider = mock(CardProvider.class);
+
+        Notification notification = getNotification(HipChatV1Service.CAPABILITIES, cardProvider);
+
+        assertThat(notification.getMessage()).isEqualTo("Build finished");
+        assertThat(notification.getMessageFormat()).isEqualTo(MessageFormat.HTML);
+        assertThat(notification.getCard()).isNull();
+        verifyZeroInteractions(cardProvider);
+    }
+
+    @Test
+    public void cardIsComputedForV2() throws Exception {
+        CardProvider cardProvider = mock(CardProvider.class);
+        Card card = new Card();
+        given(cardProvider.getCard(any(AbstractBuild.class), any(BuildListener.class), any(Icon.class),
+                eq("Build finished"))).willReturn(card);
+
+        Notification notification = getNotification(HipChatV2Service.CAPABILITIES, cardProvider);
+
+        assertThat(notification.getCard()).isSameAs(card);
+    }
+
+    @Test
+    public void iconIsOnlyPassedWhenSupported() throws Exception {
+        CardProvider cardProvider = mock(CardProvider.class);
+
+        getNotification(EnumSet.of(ServiceCapability.CARD, ServiceCapability.HTML), cardProvider);
+
+        verify(cardProvider).getCard(any(AbstractBuild.class), any(BuildListener.class), (Icon) isNull(),
+                eq("Build finished"));
+    }
+
+    @Test
+    public void messageIsSentAsTextWithoutHtmlSupport() throws Exception {
+        Notification notification = getNotification(EnumSet.noneOf(ServiceCapability.class),
+                mock(CardProvider.class));
+
+        assertThat(notification.getMessageFormat()).isEqualTo(MessageFormat.TEXT);
+    }
+
+    private Notification getNotification(Set<ServiceCapability> capabilities, CardProvider cardProvider)
+            throws Exception {
+        TemplateCache templateCache = mock(TemplateCache.class);
+        given(templateCache.get("Build finished"))
+                .willReturn(CompiledTemplate.compile("Build finished", Collections.<TokenMacro>emptyList()));
+        NotificationConfig config = new NotificationConfig(false, false, NotificationType.SUCCESS, Color.GREEN,
+                "http://example.com/icon.png", "Build finished");
+
+        return NotificationType.SUCCESS.getNotification(config, mock(AbstractBuild.class), mock(BuildListener.class),
+                capabilities, HipChatV2Service.MAX_MESSAGE_LENGTH, templateCache, cardProvider);
+    }
 }
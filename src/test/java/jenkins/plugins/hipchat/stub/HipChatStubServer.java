@@ -0,0 +1,457 @@
+package jenkins.plugins.hipchat.stub;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local stand-in for the HipChat API, implementing the endpoints used by the v1 and v2 services. The server
+ * records every request it receives, and can be told to delay its responses, or to respond with various failures, so
+ * that the services can be tested end-to-end without network access.
+ * <p>
+ * The server listens on a random port of the loopback interface; use {@link #getServer()} as the HipChat server
+ * setting.
+ */
+public class HipChatStubServer implements Closeable {
+
+    private static final Pattern V2_NOTIFICATION = Pattern.compile("/v2/room/([^/]+)/notification");
+    private static final long WINDOW_SECONDS = 300;
+
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+    private final List<RecordedRequest> requests = Collections.synchronizedList(new ArrayList<RecordedRequest>());
+    private final Queue<Fault> faults = new LinkedList<>();
+    private volatile Latency latency = fixedLatency(0);
+    private int rateLimit;
+    private int remaining;
+    private long resetEpochSeconds;
+
+    private HipChatStubServer() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        httpServer.setExecutor(executor);
+        httpServer.createContext("/v1/rooms/message", new Handler() {
+            @Override
+            protected String getRoomId(HttpExchange exchange, RecordedRequest request) {
+                return request.getFormParameter("room_id");
+            }
+
+            @Override
+            protected void respond(HttpExchange exchange) throws IOException {
+                send(exchange, 200, "{\"status\":\"sent\"}".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        httpServer.createContext("/v2/room/", new Handler() {
+            @Override
+            protected String getRoomId(HttpExchange exchange, RecordedRequest request) {
+                Matcher matcher = V2_NOTIFICATION.matcher(exchange.getRequestURI().getRawPath());
+                return matcher.matches() ? decode(matcher.group(1)) : null;
+            }
+
+            @Override
+            protected void respond(HttpExchange exchange) throws IOException {
+                send(exchange, 204, null);
+            }
+        });
+        httpServer.start();
+    }
+
+    /**
+     * Starts a new stub server.
+     *
+     * @return The started server.
+     * @throws IOException If the server could not be started.
+     */
+    public static HipChatStubServer start() throws IOException {
+        return new HipChatStubServer();
+    }
+
+    /**
+     * Returns the value to use as the HipChat server setting in order to send the requests to this server.
+     *
+     * @return The base URL of the server.
+     */
+    public String getServer() {
+        return "http://127.0.0.1:" + httpServer.getAddress().getPort();
+    }
+
+    /**
+     * Delays every response by the given latency.
+     *
+     * @param latency The latency distribution.
+     * @return This server.
+     */
+    public HipChatStubServer withLatency(Latency latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Enforces a rate limit: every response carries the <code>X-Ratelimit-*</code> headers, and once the limit is
+     * exhausted, requests are rejected with 429 until the five minute window is over.
+     *
+     * @param limit The number of requests allowed in the window.
+     * @return This server.
+     */
+    public synchronized HipChatStubServer withRateLimit(int limit) {
+        this.rateLimit = limit;
+        this.remaining = limit;
+        this.resetEpochSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + WINDOW_SECONDS;
+        return this;
+    }
+
+    /**
+     * Makes the next requests fail with the provided faults, in order. Once all the faults are used up, requests are
+     * served normally again.
+     *
+     * @param faults The faults to inject.
+     * @return This server.
+     */
+    public synchronized HipChatStubServer enqueue(Fault... faults) {
+        Collections.addAll(this.faults, faults);
+        return this;
+    }
+
+    /**
+     * Makes the next requests fail with the same fault.
+     *
+     * @param times The number of requests to fail.
+     * @param fault The fault to inject.
+     * @return This server.
+     */
+    public synchronized HipChatStubServer enqueue(int times, Fault fault) {
+        for (int i = 0; i < times; i++) {
+            faults.add(fault);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the requests received so far, in the order they were received.
+     *
+     * @return The recorded requests.
+     */
+    public List<RecordedRequest> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+
+    public static Latency fixedLatency(final long millis) {
+        return new Latency() {
+            @Override
+            public long nextMillis() {
+                return millis;
+            }
+        };
+    }
+
+    public static Latency uniformLatency(final long minMillis, final long maxMillis) {
+        final Random random = new Random();
+        return new Latency() {
+            @Override
+            public long nextMillis() {
+                return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+            }
+        };
+    }
+
+    /**
+     * Returns exponentially distributed latencies, which resemble the long tail of real world response times.
+     *
+     * @param meanMillis The mean latency.
+     * @return The latency distribution.
+     */
+    public static Latency exponentialLatency(final long meanMillis) {
+        final Random random = new Random();
+        return new Latency() {
+            @Override
+            public long nextMillis() {
+                return (long) (-Math.log(1 - random.nextDouble()) * meanMillis);
+            }
+        };
+    }
+
+    private synchronized Fault nextFault() {
+        return faults.poll();
+    }
+
+    /**
+     * Adds the rate limit headers to the response.
+     *
+     * @return <code>false</code> if the rate limit has been exhausted.
+     */
+    private synchronized boolean consumeRateLimit(Headers responseHeaders) {
+        if (rateLimit == 0) {
+            return true;
+        }
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        if (now >= resetEpochSeconds) {
+            remaining = rateLimit;
+            resetEpochSeconds = now + WINDOW_SECONDS;
+        }
+        boolean allowed = remaining > 0;
+        if (allowed) {
+            remaining--;
+        }
+        responseHeaders.set("X-Ratelimit-Limit", String.valueOf(rateLimit));
+        responseHeaders.set("X-Ratelimit-Remaining", String.valueOf(remaining));
+        responseHeaders.set("X-Ratelimit-Reset", String.valueOf(resetEpochSeconds));
+        return allowed;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body == null ? -1 : body.length);
+        if (body != null) {
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+        exchange.close();
+    }
+
+    private abstract class Handler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            RecordedRequest request = new RecordedRequest(exchange.getRequestMethod(),
+                    exchange.getRequestURI().getRawPath(), exchange.getRequestHeaders(),
+                    readBody(exchange.getRequestBody()));
+            request.roomId = getRoomId(exchange, request);
+            requests.add(request);
+            try {
+                Thread.sleep(latency.nextMillis());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (!"POST".equals(request.getMethod()) || request.getRoomId() == null) {
+                send(exchange, "POST".equals(request.getMethod()) ? 404 : 405, null);
+                return;
+            }
+            if (!consumeRateLimit(exchange.getResponseHeaders())) {
+                send(exchange, 429, null);
+                return;
+            }
+            Fault fault = nextFault();
+            if (fault != null) {
+                fault.apply(exchange);
+            } else {
+                respond(exchange);
+            }
+        }
+
+        protected abstract String getRoomId(HttpExchange exchange, RecordedRequest request);
+
+        protected abstract void respond(HttpExchange exchange) throws IOException;
+
+        private byte[] readBody(InputStream is) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * A latency distribution.
+     */
+    public interface Latency {
+
+        long nextMillis();
+    }
+
+    /**
+     * A failure injected in place of a regular response.
+     */
+    public abstract static class Fault {
+
+        abstract void apply(HttpExchange exchange) throws IOException;
+
+        /**
+         * Rejects the request with 429, telling the client that no requests are remaining until the given time.
+         *
+         * @param resetEpochSeconds The time when the rate limit is reset, in seconds since the epoch.
+         * @return The fault.
+         */
+        public static Fault rateLimited(final long resetEpochSeconds) {
+            return new Fault() {
+                @Override
+                void apply(HttpExchange exchange) throws IOException {
+                    Headers headers = exchange.getResponseHeaders();
+                    headers.set("X-Ratelimit-Remaining", "0");
+                    headers.set("X-Ratelimit-Reset", String.valueOf(resetEpochSeconds));
+                    send(exchange, 429, null);
+                }
+            };
+        }
+
+        /**
+         * Responds with the given status code and an error body.
+         *
+         * @param status The status code, typically 5xx.
+         * @return The fault.
+         */
+        public static Fault error(final int status) {
+            return new Fault() {
+                @Override
+                void apply(HttpExchange exchange) throws IOException {
+                    send(exchange, status, ("{\"error\":{\"code\":" + status + "}}").getBytes(StandardCharsets.UTF_8));
+                }
+            };
+        }
+
+        /**
+         * Closes the connection without sending any response.
+         *
+         * @return The fault.
+         */
+        public static Fault connectionReset() {
+            return new Fault() {
+                @Override
+                void apply(HttpExchange exchange) {
+                    exchange.close();
+                }
+            };
+        }
+
+        /**
+         * Sends a successful response, but writes its body one byte at a time.
+         *
+         * @param status The status code of the response.
+         * @param body The response body.
+         * @param delayPerByteMillis The delay before each byte.
+         * @return The fault.
+         */
+        public static Fault slowDrip(final int status, final String body, final long delayPerByteMillis) {
+            return new Fault() {
+                @Override
+                void apply(HttpExchange exchange) throws IOException {
+                    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(status, bytes.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        for (byte b : bytes) {
+                            Thread.sleep(delayPerByteMillis);
+                            os.write(b);
+                            os.flush();
+                        }
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    exchange.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * A request received by the stub server.
+     */
+    public static class RecordedRequest {
+
+        private final String method;
+        private final String path;
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+        private String roomId;
+
+        private RecordedRequest(String method, String path, Headers headers, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.headers = new HashMap<>(headers);
+            this.body = body;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the name or ID of the room the notification was sent to.
+         *
+         * @return The room, or null if the request did not target a valid endpoint.
+         */
+        public String getRoomId() {
+            return roomId;
+        }
+
+        public String getHeader(String name) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+                    return header.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+        public String getBody() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns a parameter of a form encoded (v1) request.
+         *
+         * @param name The name of the parameter.
+         * @return The decoded value of the parameter, or null if not present.
+         */
+        public String getFormParameter(String name) {
+            for (String pair : getBody().split("&")) {
+                int index = pair.indexOf('=');
+                if (index > 0 && decode(pair.substring(0, index)).equals(name)) {
+                    return decode(pair.substring(index + 1));
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + path + " " + getBody();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package jenkins.plugins.hipchat.template;
+
+import static org.assertj.core.api.Assertions.*;
+
+import org.junit.Test;
+
+public class BoundedMessageTest {
+
+    @Test
+    public void shortMessageIsKept() {
+        assertThat(BoundedMessage.truncate("Build succeeded", 15, true)).isEqualTo("Build succeeded");
+    }
+
+    @Test
+    public void longMessageEndsWithEllipsis() {
+        String result = BoundedMessage.truncate("Build succeeded", 10, false);
+
+        assertThat(result).isEqualTo("Build s...").hasSize(10);
+    }
+
+    @Test
+    public void tagsAreNotSplit() {
+        assertThat(BoundedMessage.truncate("Build <a href=\"job/1/\">#1</a>", 16, true)).isEqualTo("Build ...");
+    }
+
+    @Test
+    public void tagsAreOnlyConsideredForHtml() {
+        assertThat(BoundedMessage.truncate("Build <a href=\"job/1/\">#1</a>", 16, false))
+                .isEqualTo("Build <a href...");
+    }
+
+    @Test
+    public void completeTagsAreKept() {
+        assertThat(BoundedMessage.truncate("<b>Build</b> succeeded", 15, true)).isEqualTo("<b>Build</b>...");
+    }
+
+    @Test
+    public void entitiesAreNotSplit() {
+        assertThat(BoundedMessage.truncate("Tom &amp; Jerry", 11, true)).isEqualTo("Tom ...");
+        assertThat(BoundedMessage.truncate("Tom &amp; Jerry", 12, true)).isEqualTo("Tom &amp;...");
+    }
+
+    @Test
+    public void surrogatePairsAreNotSplit() {
+        String result = BoundedMessage.truncate("Done \uD83D\uDE00 today", 9, false);
+
+        assertThat(result).isEqualTo("Done ...");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void limitMustLeaveRoomForContent() {
+        BoundedMessage.truncate("Build succeeded", 3, false);
+    }
+}
@@ -0,0 +1,185 @@
+package jenkins.plugins.hipchat.template;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.BDDMockito.*;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CompiledTemplateTest {
+
+    private static final Map<String, String> NO_PARAMETERS = Collections.emptyMap();
+
+    @Mock
+    private Run<?, ?> run;
+    @Mock
+    private TaskListener listener;
+    private final List<TokenMacro> macros = Arrays.<TokenMacro>asList(new EchoMacro(), new FailingMacro());
+
+    @Before
+    public void setUp() throws Exception {
+        given(run.getEnvironment(listener)).willReturn(new EnvVars("JOB_NAME", "example", "BUILD_NUMBER", "42"));
+    }
+
+    @Test
+    public void templateIsSplitIntoLiteralsAndReferences() {
+        CompiledTemplate template = CompiledTemplate.compile("$JOB_NAME #${BUILD_NUMBER} costs $$5", macros);
+
+        assertThat(template.getSegments()).hasSize(4);
+        assertThat(((CompiledTemplate.Reference) template.getSegments().get(0)).getName()).isEqualTo("JOB_NAME");
+        assertThat(((CompiledTemplate.Literal) template.getSegments().get(1)).getText()).isEqualTo(" #");
+        assertThat(((CompiledTemplate.Reference) template.getSegments().get(2)).getName()).isEqualTo("BUILD_NUMBER");
+        assertThat(((CompiledTemplate.Literal) template.getSegments().get(3)).getText()).isEqualTo(" costs $5");
+    }
+
+    @Test
+    public void environmentVariablesAreExpanded() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("$JOB_NAME #${BUILD_NUMBER}", macros);
+
+        assertThat(template.expand(run, null, listener, NO_PARAMETERS, false)).isEqualTo("example #42");
+    }
+
+    @Test
+    public void buildVariablesAreExpanded() throws Exception {
+        AbstractBuild<?, ?> build = mock(AbstractBuild.class);
+        given(build.getEnvironment(listener)).willReturn(new EnvVars());
+        given(build.getBuildVariables()).willReturn(ImmutableMap.of("TARGET", "production"));
+        CompiledTemplate template = CompiledTemplate.compile("Deployed to $TARGET", macros);
+
+        assertThat(template.expand(build, null, listener, NO_PARAMETERS, false)).isEqualTo("Deployed to production");
+    }
+
+    @Test
+    public void parametersTakePrecedence() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("$JOB_NAME ${STATUS}", macros);
+
+        assertThat(template.expand(run, null, listener, ImmutableMap.of("STATUS", "Build failed"), false))
+                .isEqualTo("example Build failed");
+    }
+
+    @Test
+    public void variablesTakePrecedenceOverMacros() throws Exception {
+        AbstractBuild<?, ?> build = mock(AbstractBuild.class);
+        given(build.getEnvironment(listener)).willReturn(new EnvVars("ECHO", "from environment"));
+        given(build.getBuildVariables()).willReturn(ImmutableMap.of("FAIL", "from parameter"));
+        CompiledTemplate template = CompiledTemplate.compile("$ECHO, ${FAIL}, ${ECHO, text=\"from macro\"}", macros);
+
+        assertThat(template.expand(build, null, listener, NO_PARAMETERS, false))
+                .isEqualTo("from environment, from parameter, from macro");
+    }
+
+    @Test
+    public void macroArgumentsAreParsedOnce() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile(
+                "${ECHO, text=\"say \\\"hi\\\"\", count = 2, escape=false}", macros);
+
+        CompiledTemplate.Reference reference = (CompiledTemplate.Reference) template.getSegments().get(0);
+        assertThat(reference.getArguments()).containsEntry("text", "say \"hi\"").containsEntry("count", "2")
+                .containsEntry("escape", "false");
+        assertThat(template.expand(run, null, listener, NO_PARAMETERS, false)).isEqualTo("say \"hi\"say \"hi\"");
+    }
+
+    @Test
+    public void environmentIsOnlyReadWhenNeeded() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("${ECHO, text=\"a\"} and ${ECHO, text=\"b\"}", macros);
+
+        assertThat(template.expand(run, null, listener, NO_PARAMETERS, false)).isEqualTo("a and b");
+        verify(run, never()).getEnvironment(listener);
+    }
+
+    @Test
+    public void unresolvedReferencesAreKept() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("$UNKNOWN ${UNKNOWN, arg=1} ${broken", macros);
+
+        assertThat(template.expand(run, null, listener, NO_PARAMETERS, false))
+                .isEqualTo("$UNKNOWN ${UNKNOWN, arg=1} ${broken");
+    }
+
+    @Test
+    public void macroFailureIsReportedInline() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("Result: $FAIL", macros);
+
+        assertThat(template.expand(run, null, listener, NO_PARAMETERS, false))
+                .isEqualTo("Result: [Error replacing 'FAIL' - no luck]");
+    }
+
+    @Test
+    public void expansionStopsOnceTheLimitIsReached() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("${ECHO, text=\"0123456789\", count=3} $FAIL", macros);
+
+        // The failing macro would raise an exception if it was evaluated
+        assertThat(template.expand(run, null, listener, NO_PARAMETERS, true, 20, false))
+                .isEqualTo("01234567890123456...");
+    }
+
+    @Test
+    public void messageWithinTheLimitIsNotTruncated() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("$JOB_NAME #${BUILD_NUMBER}", macros);
+
+        assertThat(template.expand(run, null, listener, NO_PARAMETERS, false, 11, true)).isEqualTo("example #42");
+    }
+
+    private static class EchoMacro extends TokenMacro {
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return "ECHO".equals(macroName);
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
+            return evaluate(context, null, listener, macroName, arguments, argumentMultimap);
+        }
+
+        @Override
+        public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
+            StringBuilder sb = new StringBuilder();
+            int count = arguments.containsKey("count") ? Integer.parseInt(arguments.get("count")) : 1;
+            for (int i = 0; i < count; i++) {
+                sb.append(arguments.get("text"));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class FailingMacro extends TokenMacro {
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return "FAIL".equals(macroName);
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
+                throws MacroEvaluationException {
+            throw new MacroEvaluationException("no luck");
+        }
+
+        @Override
+        public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
+                throws MacroEvaluationException {
+            throw new MacroEvaluationException("no luck");
+        }
+    }
+}
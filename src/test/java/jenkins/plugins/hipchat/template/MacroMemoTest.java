@@ -0,0 +1,168 @@
+package jenkins.plugins.hipchat.template;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.BDDMockito.*;
+
+import com.google.common.collect.ListMultimap;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MacroMemoTest {
+
+    private static final Map<String, String> NO_PARAMETERS = Collections.emptyMap();
+
+    @Mock
+    private Run<?, ?> run;
+    @Mock
+    private Run<?, ?> otherRun;
+    @Mock
+    private TaskListener listener;
+    private final CountingMacro counting = new CountingMacro();
+    private final List<TokenMacro> macros = Arrays.<TokenMacro>asList(counting, new UrlMacro());
+
+    @Before
+    public void setUp() throws Exception {
+        // Simple references consult the environment before the macros
+        given(run.getEnvironment(listener)).willReturn(new EnvVars());
+    }
+
+    @After
+    public void tearDown() {
+        assertThat(MacroMemo.current(run)).as("memo left open").isNull();
+    }
+
+    @Test
+    public void macrosAreEvaluatedOncePerNotification() throws Exception {
+        try (MacroMemo memo = MacroMemo.open(run)) {
+            assertThat(expand("${COUNT, var=\"pass\"} ${COUNT, var=\"fail\"}")).isEqualTo("1 2");
+            assertThat(expand("${COUNT,var=\"fail\"} / ${COUNT, var=\"pass\"}")).isEqualTo("2 / 1");
+        }
+        assertThat(counting.evaluations).isEqualTo(2);
+    }
+
+    @Test
+    public void macrosAreEvaluatedAgainWithoutMemo() throws Exception {
+        assertThat(expand("$COUNT $COUNT")).isEqualTo("1 2");
+    }
+
+    @Test
+    public void environmentIsSharedByTemplates() throws Exception {
+        given(run.getEnvironment(listener)).willReturn(new EnvVars("JOB_NAME", "example"));
+        try (MacroMemo memo = MacroMemo.open(run)) {
+            assertThat(expand("$JOB_NAME")).isEqualTo("example");
+            assertThat(expand("Job ${JOB_NAME}")).isEqualTo("Job example");
+        }
+        verify(run, times(1)).getEnvironment(listener);
+    }
+
+    @Test
+    public void nestedContentIsExpanded() throws Exception {
+        try (MacroMemo memo = MacroMemo.open(run)) {
+            assertThat(expand("$URL")).isEqualTo("job/1/");
+            assertThat(memo.get("URL")).isEqualTo("job/1/");
+        }
+    }
+
+    @Test
+    public void nestedScopesShareTheOutermostMemo() throws Exception {
+        try (MacroMemo outer = MacroMemo.open(run)) {
+            try (MacroMemo inner = MacroMemo.open(run)) {
+                assertThat(expand("$COUNT")).isEqualTo("1");
+            }
+            assertThat(MacroMemo.current(run)).isNotNull();
+            assertThat(expand("$COUNT")).isEqualTo("1");
+        }
+    }
+
+    @Test
+    public void memoIsBoundToItsRun() throws Exception {
+        try (MacroMemo memo = MacroMemo.open(run)) {
+            assertThat(MacroMemo.current(otherRun)).isNull();
+            try (MacroMemo other = MacroMemo.open(otherRun)) {
+                assertThat(MacroMemo.current(run)).isNull();
+                assertThat(MacroMemo.current(otherRun)).isSameAs(other);
+            }
+            assertThat(MacroMemo.current(run)).isSameAs(memo);
+        }
+    }
+
+    @Test
+    public void unresolvedReferenceFailsWhenRequested() throws Exception {
+        given(run.getEnvironment(listener)).willReturn(new EnvVars());
+        CompiledTemplate template = CompiledTemplate.compile("$UNKNOWN", macros);
+
+        try {
+            template.expand(run, null, listener, NO_PARAMETERS, true);
+            failBecauseExceptionWasNotThrown(MacroEvaluationException.class);
+        } catch (MacroEvaluationException mee) {
+            assertThat(mee).hasMessageContaining("UNKNOWN");
+        }
+    }
+
+    private String expand(String template) throws Exception {
+        return CompiledTemplate.compile(template, macros).expand(run, null, listener, NO_PARAMETERS, false);
+    }
+
+    private static class CountingMacro extends TokenMacro {
+
+        private int evaluations;
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return "COUNT".equals(macroName);
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
+            return evaluate(context, null, listener, macroName, arguments, argumentMultimap);
+        }
+
+        @Override
+        public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
+            return String.valueOf(++evaluations);
+        }
+    }
+
+    private static class UrlMacro extends TokenMacro {
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return "URL".equals(macroName) || "BASE".equals(macroName);
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
+            return evaluate(context, null, listener, macroName, arguments, argumentMultimap);
+        }
+
+        @Override
+        public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
+            return "URL".equals(macroName) ? "${BASE}1/" : "job/";
+        }
+
+        @Override
+        public boolean hasNestedContent() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package jenkins.plugins.hipchat.tracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TracerTest {
+
+    private final List<LogRecord> records = new ArrayList<>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+    private Level level;
+
+    @Before
+    public void setUp() {
+        level = Trace.LOGGER.getLevel();
+        Trace.LOGGER.setLevel(Level.FINE);
+        Trace.LOGGER.addHandler(handler);
+    }
+
+    @After
+    public void tearDown() {
+        Trace.LOGGER.removeHandler(handler);
+        Trace.LOGGER.setLevel(level);
+    }
+
+    @Test
+    public void spansFormATree() {
+        Span root = Tracer.startTrace("notification", true);
+        try (Span expand = Tracer.startSpan("expandAll")) {
+            assertThat(Tracer.current()).isSameAs(expand);
+            Tracer.startSpan("nested").close();
+        }
+        assertThat(Tracer.current()).isSameAs(root);
+        root.close();
+
+        assertThat(Tracer.current()).isNull();
+        assertThat(root.getChildren()).hasSize(1);
+        assertThat(root.getChildren().get(0).getName()).isEqualTo("expandAll");
+        assertThat(root.getChildren().get(0).getChildren().get(0).getName()).isEqualTo("nested");
+        assertThat(root.getDurationNanos()).isGreaterThanOrEqualTo(0L);
+    }
+
+    @Test
+    public void nestedTraceRestoresEnclosingSpan() {
+        Span outer = Tracer.startTrace("notification", false);
+        try (Span expand = Tracer.startSpan("expandAll")) {
+            Span inner = Tracer.startTrace("nested notification", false);
+            assertThat(Tracer.current()).isSameAs(inner);
+            inner.close();
+
+            assertThat(Tracer.current()).isSameAs(expand);
+        }
+        assertThat(Tracer.current()).isSameAs(outer);
+        outer.close();
+
+        assertThat(Tracer.current()).isNull();
+    }
+
+    @Test
+    public void sampledTraceIsLoggedOnceAllSpansAreClosed() {
+        Span root = Tracer.startTrace("notification", true);
+        Span publish = Tracer.startDetachedSpan("publish");
+        root.close();
+        assertThat(records).isEmpty();
+
+        publish.close();
+        assertThat(records).hasSize(1);
+        String trace = records.get(0).getParameters()[0].toString();
+        assertThat(trace).startsWith("HipChat trace " + root.getTraceId() + "\n");
+        assertThat(trace).contains("\n  notification ", "\n    publish ");
+    }
+
+    @Test
+    public void unsampledTraceIsNotLogged() {
+        Span root = Tracer.startTrace("notification", false);
+        Tracer.startSpan("expandAll").close();
+        root.close();
+
+        assertThat(root.getTraceId()).hasSize(16);
+        assertThat(records).isEmpty();
+    }
+
+    @Test
+    public void spansAreNoopWithoutTrace() {
+        Span span = Tracer.startSpan("expandAll");
+
+        assertThat(span.getTraceId()).isNull();
+        assertThat(span.child("child")).isSameAs(span);
+        assertThat(Tracer.current()).isNull();
+        span.close();
+    }
+}
@@ -0,0 +1,84 @@
+package jenkins.plugins.hipchat.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.domains.DomainSpecification;
+import com.cloudbees.plugins.credentials.domains.HostnameSpecification;
+import com.cloudbees.plugins.credentials.domains.SchemeSpecification;
+import hudson.model.FreeStyleProject;
+import hudson.util.Secret;
+import java.util.Arrays;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class CredentialUtilsTest {
+
+    private static final String SERVER = "api.hipchat.com";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+    private CredentialUtils credentialUtils;
+    private CredentialsStore store;
+    private FreeStyleProject project;
+
+    @Before
+    public void setUp() throws Exception {
+        credentialUtils = j.jenkins.getInjector().getInstance(CredentialUtils.class);
+        store = CredentialsProvider.lookupStores(j.jenkins).iterator().next();
+        project = j.createFreeStyleProject();
+    }
+
+    @Test
+    public void resolvedCredentialIsCached() throws Exception {
+        store.addCredentials(Domain.global(), token("hipchat", "secret"));
+
+        StringCredentials credential = credentialUtils.resolveCredential(project, "hipchat", SERVER);
+
+        assertThat(Secret.toString(credential.getSecret())).isEqualTo("secret");
+        assertThat(credentialUtils.resolveCredential(project, "hipchat", SERVER)).isSameAs(credential);
+    }
+
+    @Test
+    public void updatedCredentialIsResolvedAgain() throws Exception {
+        StringCredentials original = token("hipchat", "secret");
+        store.addCredentials(Domain.global(), original);
+        credentialUtils.resolveCredential(project, "hipchat", SERVER);
+
+        store.updateCredentials(Domain.global(), original, token("hipchat", "rotated"));
+
+        StringCredentials credential = credentialUtils.resolveCredential(project, "hipchat", SERVER);
+        assertThat(Secret.toString(credential.getSecret())).isEqualTo("rotated");
+    }
+
+    @Test
+    public void missingCredentialIsFoundOnceAdded() throws Exception {
+        assertThat(credentialUtils.resolveCredential(project, "hipchat", SERVER)).isNull();
+
+        store.addCredentials(Domain.global(), token("hipchat", "secret"));
+
+        assertThat(credentialUtils.resolveCredential(project, "hipchat", SERVER)).isNotNull();
+    }
+
+    @Test
+    public void domainScopedCredentialIsFoundForServerWithScheme() throws Exception {
+        store.addDomain(new Domain(SERVER, null, Arrays.<DomainSpecification>asList(
+                new HostnameSpecification(SERVER, null), new SchemeSpecification("https"))),
+                token("hipchat", "secret"));
+
+        assertThat(credentialUtils.resolveCredential(project, "hipchat", SERVER)).isNotNull();
+        assertThat(credentialUtils.resolveCredential(project, "hipchat", "https://" + SERVER)).isNotNull();
+        assertThat(credentialUtils.resolveCredential(project, "hipchat", "http://" + SERVER)).isNotNull();
+    }
+
+    private StringCredentials token(String id, String secret) {
+        return new StringCredentialsImpl(CredentialsScope.GLOBAL, id, id, Secret.fromString(secret));
+    }
+}
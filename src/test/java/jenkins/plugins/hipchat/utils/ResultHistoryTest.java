@@ -0,0 +1,98 @@
+package jenkins.plugins.hipchat.utils;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.BDDMockito.*;
+
+import hudson.model.Result;
+import hudson.model.Run;
+import org.junit.Test;
+
+public class ResultHistoryTest {
+
+    private final ResultHistory history = new ResultHistory();
+
+    @Test
+    public void historyIsInitializedFromLastConclusiveBuild() {
+        Run<?, ?> first = run(1, Result.SUCCESS, null);
+        Run<?, ?> second = run(2, Result.FAILURE, first);
+        Run<?, ?> third = run(3, Result.ABORTED, second);
+
+        history.initialize(third);
+
+        assertThat(history.findPreviousResult(4)).isEqualTo(Result.FAILURE);
+        verify(first, never()).getResult();
+    }
+
+    @Test
+    public void completedBuildsAreRecorded() {
+        history.initialize(null);
+        assertThat(history.findPreviousResult(1)).isNull();
+
+        history.started(1);
+        history.completed(1, Result.SUCCESS);
+        history.started(2);
+        history.completed(2, Result.ABORTED);
+        history.started(3);
+        history.completed(3, Result.NOT_BUILT);
+
+        assertThat(history.findPreviousResult(4)).isEqualTo(Result.SUCCESS);
+    }
+
+    @Test
+    public void runningBuildInBetweenHidesResult() {
+        history.initialize(null);
+        history.started(1);
+        history.completed(1, Result.FAILURE);
+        history.started(2);
+        history.started(3);
+
+        assertThat(history.findPreviousResult(3)).isNull();
+
+        history.completed(2, Result.SUCCESS);
+        assertThat(history.findPreviousResult(3)).isEqualTo(Result.SUCCESS);
+    }
+
+    @Test
+    public void deletedBuildIsSkipped() {
+        history.initialize(null);
+        history.completed(1, Result.FAILURE);
+        history.completed(2, Result.SUCCESS);
+
+        history.deleted(2);
+
+        assertThat(history.findPreviousResult(3)).isEqualTo(Result.FAILURE);
+    }
+
+    @Test
+    public void evictedResultsAreNotGuessed() {
+        history.initialize(null);
+        for (int i = 1; i <= ResultHistory.CAPACITY + 1; i++) {
+            history.completed(i, i == 1 ? Result.FAILURE : Result.SUCCESS);
+        }
+
+        assertThat(history.findPreviousResult(ResultHistory.CAPACITY + 2)).isEqualTo(Result.SUCCESS);
+        try {
+            history.findPreviousResult(2);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expected) {
+            // Build #1 has been evicted
+        }
+    }
+
+    @Test
+    public void eventsBeforeInitializationAreIgnored() {
+        history.completed(1, Result.FAILURE);
+
+        history.initialize(run(1, Result.SUCCESS, null));
+
+        assertThat(history.findPreviousResult(2)).isEqualTo(Result.SUCCESS);
+    }
+
+    private Run<?, ?> run(int number, Result result, Run<?, ?> previous) {
+        Run run = mock(Run.class);
+        given(run.getNumber()).willReturn(number);
+        given(run.getResult()).willReturn(result);
+        given(run.getPreviousBuild()).willReturn(previous);
+        return run;
+    }
+}